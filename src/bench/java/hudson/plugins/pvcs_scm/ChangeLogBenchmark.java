@@ -0,0 +1,155 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.plugins.pvcs_scm.changelog.ChangeLogDocument;
+import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Measures writing the changelog in {@link PvcsScm#checkout} and reading it
+ * back with {@link PvcsChangeLogParser#parse} and the set's iterator.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+@State(Scope.Benchmark)
+public class ChangeLogBenchmark
+{
+    @Param({ "10000", "100000" })
+    public int entries;
+
+    private ChangeLogDocument doc;
+
+    /** The entries of {@link #doc}, for the streaming writer. */
+    private String[] fileNames;
+    private String[] revisions;
+    private String[] comments;
+    private String[] userNames;
+    private Date modifiedTime;
+
+    private File saveFile;
+    private File parseFile;
+
+    // {{{ setUp
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        doc = ChangeLogDocument.Factory.newInstance();
+        doc.addNewChangeLog();
+
+        Calendar modified = Calendar.getInstance();
+        modifiedTime = modified.getTime();
+
+        fileNames = new String[entries];
+        revisions = new String[entries];
+        comments = new String[entries];
+        userNames = new String[entries];
+
+        for (int i = 0; i < entries; i++) {
+            fileNames[i] = VlogGenerator.PATH_PREFIX + "MYORG-Java/module" + (i % 50)
+                + "/src/main/java/com/abc/File" + i + ".java";
+            revisions[i] = "1." + (i % 7);
+            comments[i] = "comment for change " + (i % 100);
+            userNames[i] = "a" + (i % 20);
+
+            PvcsChangeLogEntry entry = doc.getChangeLog().addNewEntry();
+
+            entry.setFileName(fileNames[i]);
+            entry.setRevision(revisions[i]);
+            entry.setModifiedTime(modified);
+            entry.setComment(comments[i]);
+            entry.setUserName(userNames[i]);
+        }
+
+        doc.getChangeLog().setBuildId("2008-10-16_09-15-00");
+
+        saveFile = File.createTempFile("changelog", ".xml");
+        parseFile = File.createTempFile("changelog", ".xml");
+        doc.save(parseFile);
+    }
+    // }}}
+
+    // {{{ tearDown
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        saveFile.delete();
+        parseFile.delete();
+    }
+    // }}}
+
+    // {{{ save
+    /**
+     * Saves the whole document with XMLBeans, as checkout used to.
+     */
+    @Benchmark
+    public File save() throws IOException {
+        doc.save(saveFile);
+        return saveFile;
+    }
+    // }}}
+
+    // {{{ write
+    /**
+     * Streams the same entries with {@link PvcsChangeLogWriter}, as
+     * checkout does.
+     */
+    @Benchmark
+    public File write() throws IOException {
+        PvcsChangeLogWriter writer =
+            new PvcsChangeLogWriter(new BufferedOutputStream(new FileOutputStream(saveFile)),
+                                    "2008-10-16_09-15-00", null, null);
+        try {
+            for (int i = 0; i < entries; i++) {
+                writer.record(fileNames[i], revisions[i], modifiedTime, userNames[i], comments[i]);
+            }
+        } finally {
+            writer.close();
+        }
+
+        return saveFile;
+    }
+    // }}}
+
+    // {{{ parse
+    /**
+     * Parses the changelog and iterates its entries, as a build page does;
+     * parsing alone only reads the header.
+     */
+    @Benchmark
+    public void parse(final Blackhole blackhole) throws IOException, SAXException {
+        // ChangeLogSet tolerates a null build
+        PvcsChangeLogSet changeSet = new PvcsChangeLogParser().parse(null, parseFile);
+
+        for (PvcsChangeLogSet.Entry entry : changeSet) {
+            blackhole.consume(entry);
+        }
+    }
+    // }}}
+}
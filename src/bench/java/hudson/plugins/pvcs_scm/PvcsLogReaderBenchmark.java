@@ -0,0 +1,128 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogSet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link PvcsLogReader#run} on the <code>testPvcsLog.log</code>
+ * fixture and on generated vlog output.
+ * <p>
+ * The <code>lines</code> and <code>archives</code> counters are reported as
+ * rates, so they read as lines/s and archives/s.  Run with
+ * <code>-prof gc</code> and divide <code>gc.alloc.rate.norm</code> by the
+ * archive count to get allocations per archive.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class PvcsLogReaderBenchmark
+{
+    // {{{ Fixture
+    @State(Scope.Benchmark)
+    public static class Fixture
+    {
+        byte[] data;
+        int lines;
+        int archives;
+        Date lastBuild = new Date(0);
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            data = VlogGenerator.readResource("testPvcsLog.log");
+            lines = VlogGenerator.countLines(data);
+            archives = VlogGenerator.countArchives(data);
+        }
+    }
+    // }}}
+
+    // {{{ Generated
+    @State(Scope.Benchmark)
+    public static class Generated
+    {
+        /** 20,000 archives is a little over 2 million lines. */
+        @Param({ "1000", "20000" })
+        public int archives;
+
+        @Param({ "3" })
+        public int revisions;
+
+        @Param({ "60" })
+        public int labels;
+
+        byte[] data;
+        int lines;
+        Date lastBuild = new Date(0);
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            data = VlogGenerator.generate(archives, revisions, labels, 2);
+            lines = VlogGenerator.countLines(data);
+        }
+    }
+    // }}}
+
+    // {{{ Counters
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters
+    {
+        public long lines;
+        public long archives;
+    }
+    // }}}
+
+    // {{{ parseFixture
+    @Benchmark
+    public PvcsChangeLogSet parseFixture(final Fixture fixture, final Counters counters) {
+        PvcsLogReader reader = new PvcsLogReader(new ByteArrayInputStream(fixture.data),
+                                                 VlogGenerator.ARCHIVE_ROOT,
+                                                 VlogGenerator.PATH_PREFIX,
+                                                 fixture.lastBuild);
+        reader.run();
+
+        counters.lines += fixture.lines;
+        counters.archives += fixture.archives;
+
+        return reader.getChangeLogSet();
+    }
+    // }}}
+
+    // {{{ parseGenerated
+    @Benchmark
+    public PvcsChangeLogSet parseGenerated(final Generated generated, final Counters counters) {
+        PvcsLogReader reader = new PvcsLogReader(new ByteArrayInputStream(generated.data),
+                                                 VlogGenerator.ARCHIVE_ROOT,
+                                                 VlogGenerator.PATH_PREFIX,
+                                                 generated.lastBuild);
+        reader.run();
+
+        counters.lines += generated.lines;
+        counters.archives += generated.archives;
+
+        return reader.getChangeLogSet();
+    }
+    // }}}
+}
@@ -0,0 +1,157 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+import java.util.Random;
+
+/**
+ * Generates synthetic <code>pcli vlog</code> output shaped like
+ * <code>testPvcsLog.log</code>: an attribute block, a version label block
+ * and several revisions per archive.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class VlogGenerator
+{
+    static final String ARCHIVE_ROOT = "//repository/pvcs/repository/MYORG_MAINT";
+    static final String PATH_PREFIX = "2008_10/";
+
+    private static final String[] MONTHS = {
+        "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+    };
+
+    private static final String[] ATTRIBUTES = {
+        "WRITEPROTECT", "CHECKLOCK", "NOEXCLUSIVELOCK", "NOEXPANDKEYWORDS", "NOTRANSLATE",
+        "NOCOMPRESSDELTA", "NOCOMPRESSWORKIMAGE", "NOGENERATEDELTA", "COMMENTPREFIX = \"\"",
+        "NEWLINE = \"\\r\\n\""
+    };
+
+    private static final String[] AUTHORS = {
+        "a273094", "a430016", "a441621", "a112358", "a314159"
+    };
+
+    private VlogGenerator() {
+    }
+
+    // {{{ generate
+    /**
+     * Returns the vlog output for <code>archives</code> archives.
+     *
+     * @param archives number of archive records
+     * @param revisions revisions per archive
+     * @param labels version labels per archive
+     * @param commentLines lines per revision comment
+     */
+    static byte[] generate(final int archives,
+                           final int revisions,
+                           final int labels,
+                           final int commentLines)
+    {
+        Random random = new Random(archives);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(archives * (labels + 40) * 40);
+        PrintStream out = new PrintStream(baos);
+
+        for (int a = 0; a < archives; a++) {
+            String path = "MYORG-Java/module" + (a % 50) + "/src/main/java/com/abc/File" + a + ".java";
+
+            out.print("Archive:          " + ARCHIVE_ROOT + "/" + path + "_v\r\n");
+            out.print("Workfile:         File" + a + ".java\r\n");
+            out.print("Archive created:  04 Dec 2007 14:50:22\r\n");
+            out.print("Owner:            a441621\r\n");
+            out.print("Last trunk rev:   1." + revisions + "\r\n");
+            out.print("Locks:            \r\n");
+            out.print("Groups:           \r\n");
+            out.print("Rev count:        " + revisions + "\r\n");
+            out.print("Attributes:\r\n");
+            for (String attribute : ATTRIBUTES) {
+                out.print("   " + attribute + "\r\n");
+            }
+            out.print("Version labels:\r\n");
+            for (int l = 0; l < labels; l++) {
+                out.print("   \"LABEL_" + l + "\" = 1." + random.nextInt(revisions) + "\r\n");
+            }
+            out.print("Description:\r\n");
+            out.print("prelim\r\n");
+            out.print("\r\n");
+
+            for (int r = revisions - 1; r >= 0; r--) {
+                String date = String.format("%02d %s 2008 %02d:%02d:%02d",
+                                            1 + random.nextInt(28),
+                                            MONTHS[random.nextInt(12)],
+                                            random.nextInt(24),
+                                            random.nextInt(60),
+                                            random.nextInt(60));
+
+                out.print("-----------------------------------\r\n");
+                out.print("Rev 1." + r + "\r\n");
+                out.print("Checked in:     " + date + "\r\n");
+                out.print("Last modified:  " + date + "\r\n");
+                out.print("Author id: " + AUTHORS[random.nextInt(AUTHORS.length)]
+                          + "     lines deleted/added/moved: 0/0/0\r\n");
+                for (int c = 0; c < commentLines; c++) {
+                    out.print("comment line " + c + " for revision 1." + r + "\r\n");
+                }
+            }
+
+            out.print("===================================\r\n");
+            out.print("\r\n");
+        }
+
+        out.flush();
+        return baos.toByteArray();
+    }
+    // }}}
+
+    // {{{ countLines
+    static int countLines(final byte[] data) {
+        int lines = 0;
+        for (byte b : data) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+
+        return lines;
+    }
+    // }}}
+
+    // {{{ countArchives
+    static int countArchives(final byte[] data) {
+        int archives = 0;
+        for (int i = 0; i + 8 <= data.length; i++) {
+            if ((i == 0 || data[i - 1] == '\n') && (data[i] == 'A') && (data[i + 7] == ':')
+                && (data[i + 1] == 'r') && (data[i + 2] == 'c'))
+            {
+                archives++;
+            }
+        }
+
+        return archives;
+    }
+    // }}}
+
+    // {{{ readResource
+    static byte[] readResource(final String name) throws IOException {
+        InputStream is = VlogGenerator.class.getResourceAsStream(name);
+        if (is == null) {
+            throw new IOException("no such resource " + name);
+        }
+
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = is.read(buf)) != -1) {
+                baos.write(buf, 0, read);
+            }
+
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+    // }}}
+}
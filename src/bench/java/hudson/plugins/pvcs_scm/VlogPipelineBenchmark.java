@@ -0,0 +1,134 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogSet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the ways of getting <code>pcli vlog</code> output from the
+ * process into the parser.
+ * <p>
+ * <code>piped</code> is the old hand-off: a pump thread copies the process'
+ * stdout into a <code>PipedOutputStream</code> in 8k chunks, as the launcher
+ * does, and a second thread parses from the default 1k pipe.
+ * <code>direct</code> parses the process' stdout on the calling thread, as
+ * <code>PvcsScm</code> does now.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class VlogPipelineBenchmark
+{
+    /** Chunk size of the launcher's stream copier. */
+    private static final int PUMP_BUFFER_SIZE = 8192;
+
+    // {{{ Generated
+    @State(Scope.Benchmark)
+    public static class Generated
+    {
+        @Param({ "1000", "20000" })
+        public int archives;
+
+        byte[] data;
+        Date lastBuild = new Date(0);
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            data = VlogGenerator.generate(archives, 3, 60, 2);
+        }
+    }
+    // }}}
+
+    // {{{ Counters
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters
+    {
+        public long bytes;
+    }
+    // }}}
+
+    // {{{ piped
+    @Benchmark
+    public PvcsChangeLogSet piped(final Generated generated, final Counters counters)
+        throws IOException, InterruptedException
+    {
+        final InputStream stdout = new ByteArrayInputStream(generated.data);
+        final PipedOutputStream os = new PipedOutputStream();
+
+        PvcsLogReader reader = new PvcsLogReader(new PipedInputStream(os),
+                                                 VlogGenerator.ARCHIVE_ROOT,
+                                                 VlogGenerator.PATH_PREFIX,
+                                                 generated.lastBuild);
+
+        Thread pump = new Thread() {
+            public void run() {
+                try {
+                    byte[] buf = new byte[PUMP_BUFFER_SIZE];
+                    for (int len = stdout.read(buf); len >= 0; len = stdout.read(buf)) {
+                        os.write(buf, 0, len);
+                    }
+
+                    os.close();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
+        Thread parser = new Thread(reader);
+
+        pump.start();
+        parser.start();
+
+        pump.join();
+        parser.join();
+
+        counters.bytes += generated.data.length;
+
+        return reader.getChangeLogSet();
+    }
+    // }}}
+
+    // {{{ direct
+    @Benchmark
+    public PvcsChangeLogSet direct(final Generated generated, final Counters counters)
+        throws IOException
+    {
+        PvcsLogReader reader = new PvcsLogReader(new ByteArrayInputStream(generated.data),
+                                                 VlogGenerator.ARCHIVE_ROOT,
+                                                 VlogGenerator.PATH_PREFIX,
+                                                 generated.lastBuild);
+        reader.parse();
+
+        counters.bytes += generated.data.length;
+
+        return reader.getChangeLogSet();
+    }
+    // }}}
+}
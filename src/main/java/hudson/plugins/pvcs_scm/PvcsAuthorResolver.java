@@ -0,0 +1,125 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.model.User;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Turns PVCS author ids into Jenkins users, applying the configured
+ * mapping table.
+ * <p>
+ * With the <code>cacheSize</code> system property set, resolved users are
+ * also kept in a bounded cache shared by all change sets, so a PVCS id is
+ * looked up once per controller rather than once per change set.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsAuthorResolver
+{
+    private static final Log LOGGER = LogFactory.getLog(PvcsAuthorResolver.class);
+
+    /** Size of the controller-wide cache; 0 disables it. */
+    private static final int CACHE_SIZE =
+        Integer.getInteger(PvcsAuthorResolver.class.getName() + ".cacheSize", 0);
+
+    /** PVCS id to Jenkins user id. */
+    private final Map<String, String> mapping;
+
+    private final Map<String, User> cache =
+        new LinkedHashMap<String, User>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, User> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    // {{{ constructor
+    /**
+     * @param mapping PVCS id to Jenkins user id
+     */
+    PvcsAuthorResolver(final Map<String, String> mapping) {
+        this.mapping = Collections.unmodifiableMap(new HashMap<String, String>(mapping));
+    }
+    // }}}
+
+    // {{{ parse
+    /**
+     * Reads a mapping table of <code>pvcsId=jenkinsId</code> lines.  Blank
+     * lines and lines starting with <code>#</code> are ignored.
+     */
+    static PvcsAuthorResolver parse(final String table) {
+        Map<String, String> mapping = new HashMap<String, String>();
+
+        if (table != null) {
+            BufferedReader reader = new BufferedReader(new StringReader(table));
+            try {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    line = line.trim();
+                    if ((line.length() == 0) || line.startsWith("#")) {
+                        continue;
+                    }
+
+                    int eq = line.indexOf('=');
+                    if (eq == -1) {
+                        LOGGER.warn("ignoring malformed author mapping " + line);
+                        continue;
+                    }
+
+                    mapping.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+                }
+            } catch (IOException e) {
+                // reading a string
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return new PvcsAuthorResolver(mapping);
+    }
+    // }}}
+
+    // {{{ map
+    /**
+     * Returns the Jenkins user id for a PVCS id.
+     */
+    String map(final String pvcsId) {
+        String id = mapping.get(pvcsId);
+        return (id != null) ? id : pvcsId;
+    }
+    // }}}
+
+    // {{{ resolve
+    /**
+     * Returns the Jenkins user for a PVCS id.
+     */
+    User resolve(final String pvcsId) {
+        if (CACHE_SIZE <= 0) {
+            return User.get(map(pvcsId));
+        }
+
+        synchronized (cache) {
+            User user = cache.get(pvcsId);
+            if (user != null) {
+                return user;
+            }
+        }
+
+        User user = User.get(map(pvcsId));
+
+        synchronized (cache) {
+            cache.put(pvcsId, user);
+        }
+
+        return user;
+    }
+    // }}}
+}
@@ -0,0 +1,777 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+
+import hudson.model.TaskListener;
+
+import hudson.remoting.VirtualChannel;
+
+import hudson.util.ArgumentListBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+
+import jenkins.security.MasterToSlaveCallable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs several pcli commands in a single <code>pcli run -s</code> process,
+ * so that pcli's startup is paid once.
+ * <p>
+ * The commands are written to a script in which each command is bracketed
+ * by <code>echo</code>ed markers:
+ * <pre>
+ *   echo &lt;tag&gt; begin 0
+ *   vlog ...
+ *   echo &lt;tag&gt; end 0 $?
+ * </pre>
+ * The output is split at the markers and each command's part is handed to
+ * that command alone.  The script goes to the temporary directory of the
+ * node that runs pcli, so that it stays out of the workspace.  A single
+ * command, or commands with arguments pcli would expand in a script, are
+ * run as processes of their own, as before.
+ * <p>
+ * Every process waits for a {@link PvcsProcessLimit} permit first.  It is
+ * killed when it runs longer than its commands' timeouts, or when the
+ * calling thread is interrupted because the build or poll was aborted;
+ * both are checked periodically, as reading pcli's output cannot be
+ * interrupted.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsBatch
+{
+    private static final Log LOGGER = LogFactory.getLog(PvcsBatch.class);
+
+    private static final Random RANDOM = new Random();
+
+    /** Exit status of a command whose end marker was not seen. */
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Default limit on the run time of a command, in minutes; 0 for none.
+     * <code>timeoutMinutes.&lt;command&gt;</code> overrides it for one
+     * command, such as <code>get</code>.
+     */
+    private static final int TIMEOUT_MINUTES =
+        Integer.getInteger(PvcsBatch.class.getName() + ".timeoutMinutes", 60);
+
+    /** How often running processes are checked. */
+    private static final long WATCHDOG_MILLIS = 500;
+
+    /**
+     * A pcli command and the consumer of its output.
+     */
+    abstract static class Command
+    {
+        private final String runOption;
+        private final List<String> args;
+
+        // {{{ constructor
+        /**
+         * @param runOption option for <code>pcli run</code> that the command
+         *        needs, such as <code>-q</code>
+         * @param args the command and its arguments
+         */
+        Command(final String runOption, final List<String> args) {
+            this.runOption = runOption;
+            this.args = args;
+        }
+        // }}}
+
+        // {{{ getName
+        String getName() {
+            return args.get(0);
+        }
+        // }}}
+
+        // {{{ getTimeoutMillis
+        /**
+         * Returns how long the command may run, or 0 for no limit.
+         */
+        long getTimeoutMillis() {
+            return Math.max(0, Integer.getInteger(PvcsBatch.class.getName() + ".timeoutMinutes." + getName(),
+                                                  TIMEOUT_MINUTES)) * 60000L;
+        }
+        // }}}
+
+        // {{{ read
+        /**
+         * Consumes the command's output.  The stream must not be closed;
+         * whatever is left unread is discarded.
+         */
+        abstract void read(InputStream output, PvcsCallStats call) throws IOException;
+        // }}}
+
+        // {{{ finished
+        /**
+         * Called with the command's exit status once its process has ended.
+         */
+        abstract void finished(int status);
+        // }}}
+    }
+
+    private final String executable;
+    private final List<Command> commands = new ArrayList<Command>();
+
+    // {{{ constructor
+    PvcsBatch(final String executable) {
+        this.executable = executable;
+    }
+    // }}}
+
+    // {{{ add
+    void add(final Command command) {
+        commands.add(command);
+    }
+    // }}}
+
+    // {{{ isEmpty
+    boolean isEmpty() {
+        return commands.isEmpty();
+    }
+    // }}}
+
+    // {{{ run
+    /**
+     * Runs the commands added so far, in order, and empties the batch.
+     *
+     * @param pwd working directory of pcli; may be null.  A script goes to
+     *        the temporary directory of the launcher's node, never to the
+     *        workspace
+     * @param stats where the calls are recorded; may be null
+     */
+    void run(final Launcher launcher,
+             final FilePath pwd,
+             final TaskListener listener,
+             final PvcsJobStats stats)
+        throws IOException, InterruptedException
+    {
+        List<Command> batch = new ArrayList<Command>(commands);
+        commands.clear();
+
+        boolean scriptable = (batch.size() > 1);
+        for (Command command : batch) {
+            scriptable &= isScriptable(command.args);
+        }
+
+        if (scriptable) {
+            runScript(launcher, pwd, listener, stats, batch);
+        } else {
+            for (Command command : batch) {
+                runSingle(launcher, pwd, listener, stats, command);
+            }
+        }
+    }
+    // }}}
+
+    // {{{ isScriptable
+    /**
+     * Returns false for arguments that would not survive a script: pcli
+     * expands variables and interprets quotes there.
+     */
+    private static boolean isScriptable(final List<String> args) {
+        for (String arg : args) {
+            if ((arg.indexOf('"') >= 0) || (arg.indexOf('$') >= 0)
+                || (arg.indexOf('\n') >= 0) || (arg.indexOf('\r') >= 0))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+    // }}}
+
+    // {{{ runSingle
+    private void runSingle(final Launcher launcher,
+                           final FilePath pwd,
+                           final TaskListener listener,
+                           final PvcsJobStats stats,
+                           final Command command)
+        throws IOException, InterruptedException
+    {
+        ArgumentListBuilder cmd = new ArgumentListBuilder();
+        cmd.add(executable);
+        cmd.add("-nb", "run", "-ns", command.runOption);
+        cmd.add(command.args);
+
+        final PvcsCallStats call = new PvcsCallStats(command.getName());
+
+        int rc = launch(launcher, pwd, listener, stats, cmd, call, command.getTimeoutMillis(), new Consumer() {
+            public void consume(final InputStream output) throws IOException {
+                command.read(output, call);
+                drain(output);
+            }
+        });
+
+        command.finished(rc);
+    }
+    // }}}
+
+    // {{{ runScript
+    private void runScript(final Launcher launcher,
+                           final FilePath pwd,
+                           final TaskListener listener,
+                           final PvcsJobStats stats,
+                           final List<Command> batch)
+        throws IOException, InterruptedException
+    {
+        final String tag = "PVCS-BATCH-" + Long.toHexString(RANDOM.nextLong() & Long.MAX_VALUE);
+
+        Set<String> runOptions = new LinkedHashSet<String>();
+        Set<String> names = new LinkedHashSet<String>();
+        long timeoutMillis = 0;
+
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < batch.size(); i++) {
+            Command command = batch.get(i);
+
+            runOptions.add(command.runOption);
+            names.add(command.getName());
+
+            if ((i == 0) || (timeoutMillis > 0)) {
+                // no limit if any command has none
+                timeoutMillis = (command.getTimeoutMillis() > 0) ? timeoutMillis + command.getTimeoutMillis() : 0;
+            }
+
+            script.append("echo ").append(tag).append(" begin ").append(i).append('\n');
+            for (String arg : command.args) {
+                script.append(quote(arg)).append(' ');
+            }
+            script.append('\n');
+            script.append("echo ").append(tag).append(" end ").append(i).append(" $?\n");
+        }
+
+        FilePath scriptFile = getTempDir(launcher).createTextTempFile("pcli", ".scr", script.toString(), false);
+        try {
+            ArgumentListBuilder cmd = new ArgumentListBuilder();
+            cmd.add(executable);
+            cmd.add("-nb", "run", "-ns");
+            cmd.add(new ArrayList<String>(runOptions));
+            cmd.add("-s" + scriptFile.getRemote());
+
+            LOGGER.debug("script:\n" + script);
+            listener.getLogger().println("running " + batch.size() + " pcli commands in one process");
+
+            final List<Command> commands = batch;
+            final int[] status = new int[batch.size()];
+            Arrays.fill(status, UNKNOWN);
+            final boolean[] begun = new boolean[batch.size()];
+
+            final PvcsCallStats call = new PvcsCallStats(join(names));
+
+            int rc = launch(launcher, pwd, listener, stats, cmd, call, timeoutMillis, new Consumer() {
+                public void consume(final InputStream output) throws IOException {
+                    Demultiplexer demux = new Demultiplexer(output, tag);
+
+                    for (String[] marker = demux.nextMarker(); marker != null; marker = demux.nextMarker()) {
+                        int index = parseInt(marker[1]);
+                        if ((index < 0) || (index >= commands.size())) {
+                            continue;
+                        }
+
+                        if ("begin".equals(marker[0])) {
+                            begun[index] = true;
+
+                            InputStream segment = demux.segment();
+                            commands.get(index).read(segment, call);
+                            drain(segment);
+                        } else if ("end".equals(marker[0]) && (marker.length > 2)) {
+                            int rc = parseInt(marker[2]);
+                            if (rc >= 0) {
+                                status[index] = rc;
+                            }
+                        }
+                    }
+                }
+            });
+
+            for (int i = 0; i < batch.size(); i++) {
+                if (status[i] == UNKNOWN) {
+                    // pcli didn't expand $?, or stopped before the command
+                    status[i] = (rc != 0) ? rc : (begun[i] ? 0 : -1);
+                }
+
+                batch.get(i).finished(status[i]);
+            }
+        } finally {
+            try {
+                scriptFile.delete();
+            } catch (IOException e) {
+                LOGGER.warn("unable to delete pcli script " + scriptFile, e);
+            }
+        }
+    }
+    // }}}
+
+    // {{{ getTempDir
+    /**
+     * Returns the temporary directory of the launcher's node.
+     */
+    private static FilePath getTempDir(final Launcher launcher)
+        throws IOException, InterruptedException
+    {
+        VirtualChannel channel = launcher.getChannel();
+        if (channel == null) {
+            return new FilePath(new File(System.getProperty("java.io.tmpdir")));
+        }
+
+        return new FilePath(channel, channel.call(new TempDir()));
+    }
+    // }}}
+
+    /** Looks up <code>java.io.tmpdir</code> on a node. */
+    private static final class TempDir extends MasterToSlaveCallable<String, IOException>
+    {
+        private static final long serialVersionUID = 1L;
+
+        public String call() {
+            return System.getProperty("java.io.tmpdir");
+        }
+    }
+
+    // {{{ launch
+    /**
+     * Starts pcli once a permit is available, passes its output to the
+     * consumer, records the call, and returns the exit code.
+     *
+     * @param timeoutMillis how long the process may run; 0 for no limit
+     * @throws IOException if the process timed out
+     * @throws InterruptedException if the calling thread was interrupted;
+     *         the process is killed
+     */
+    private static int launch(final Launcher launcher,
+                              final FilePath pwd,
+                              final TaskListener listener,
+                              final PvcsJobStats stats,
+                              final ArgumentListBuilder cmd,
+                              final PvcsCallStats call,
+                              final long timeoutMillis,
+                              final Consumer consumer)
+        throws IOException, InterruptedException
+    {
+        PvcsProcessLimit.Permit permit = PvcsProcessLimit.acquire(launcher, listener, call);
+        try {
+            LOGGER.debug("launching command " + cmd.toList());
+
+            Proc proc = start(launcher, pwd, listener, cmd);
+            call.started();
+
+            Watchdog watchdog = new Watchdog(proc, timeoutMillis);
+
+            int rc;
+            try {
+                InputStream output = call.meter(proc.getStdout());
+                try {
+                    consumer.consume(output);
+                } finally {
+                    output.close();
+                }
+
+                rc = proc.join();
+            } catch (IOException e) {
+                kill(proc);
+
+                if (! watchdog.fired()) {
+                    throw e;
+                }
+
+                // the stream broke because the watchdog killed the process
+                rc = -1;
+            } catch (InterruptedException e) {
+                kill(proc);
+                throw e;
+            } catch (RuntimeException e) {
+                kill(proc);
+                throw e;
+            } catch (Error e) {
+                kill(proc);
+                throw e;
+            } finally {
+                watchdog.stop();
+            }
+
+            call.finish(rc);
+            PvcsStats.INSTANCE.record(stats, call);
+
+            watchdog.check(call.getCommand(), listener);
+
+            return rc;
+        } finally {
+            permit.release();
+        }
+    }
+    // }}}
+
+    // {{{ kill
+    private static void kill(final Proc proc) throws InterruptedException {
+        try {
+            proc.kill();
+        } catch (IOException e) {
+            LOGGER.warn("unable to kill pcli", e);
+        }
+    }
+    // }}}
+
+    // {{{ start
+    private static Proc start(final Launcher launcher,
+                              final FilePath pwd,
+                              final TaskListener listener,
+                              final ArgumentListBuilder cmd)
+        throws IOException
+    {
+        Launcher.ProcStarter starter = launcher.launch().cmds(cmd).readStdout().stderr(listener.getLogger());
+        if (pwd != null) {
+            starter.pwd(pwd);
+        }
+
+        return starter.start();
+    }
+    // }}}
+
+    // {{{ quote
+    private static String quote(final String arg) {
+        for (int i = 0; i < arg.length(); i++) {
+            if (Character.isWhitespace(arg.charAt(i))) {
+                return '"' + arg + '"';
+            }
+        }
+
+        return arg;
+    }
+    // }}}
+
+    // {{{ join
+    private static String join(final Set<String> names) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            if (sb.length() > 0) {
+                sb.append('+');
+            }
+
+            sb.append(name);
+        }
+
+        return sb.toString();
+    }
+    // }}}
+
+    // {{{ parseInt
+    /**
+     * Returns the number, or -1 if it isn't one.
+     */
+    private static int parseInt(final String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    // }}}
+
+    // {{{ drain
+    private static void drain(final InputStream in) throws IOException {
+        byte[] buf = new byte[8192];
+        while (in.read(buf) >= 0) {
+            // discard
+        }
+    }
+    // }}}
+
+    /**
+     * Reads the output of a pcli process.
+     */
+    private interface Consumer
+    {
+        void consume(InputStream output) throws IOException;
+    }
+
+    /**
+     * Kills a process that runs too long, or whose caller was interrupted
+     * while it was blocked reading the process' output.
+     */
+    private static final class Watchdog implements Runnable
+    {
+        private final Proc proc;
+        private final Thread caller = Thread.currentThread();
+        private final long timeoutMillis;
+        private final long start = System.nanoTime();
+        private final ScheduledFuture<?> future;
+
+        private volatile boolean timedOut;
+        private volatile boolean aborted;
+
+        // {{{ constructor
+        /**
+         * Starts watching the process for the calling thread.
+         *
+         * @param timeoutMillis 0 for no limit
+         */
+        Watchdog(final Proc proc, final long timeoutMillis) {
+            this.proc = proc;
+            this.timeoutMillis = timeoutMillis;
+            this.future = PvcsExecutors.schedule(this, WATCHDOG_MILLIS);
+        }
+        // }}}
+
+        // {{{ run
+        public void run() {
+            if (fired()) {
+                return;
+            }
+
+            if (caller.isInterrupted()) {
+                aborted = true;
+            } else if ((timeoutMillis > 0) && ((System.nanoTime() - start) / 1000000L > timeoutMillis)) {
+                timedOut = true;
+            } else {
+                return;
+            }
+
+            LOGGER.warn("killing pcli: " + (aborted ? "caller was interrupted" : "timed out"));
+
+            try {
+                proc.kill();
+            } catch (IOException e) {
+                LOGGER.warn("unable to kill pcli", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // }}}
+
+        // {{{ fired
+        /**
+         * Returns true if the process was killed by the watchdog.
+         */
+        boolean fired() {
+            return timedOut || aborted;
+        }
+        // }}}
+
+        // {{{ stop
+        void stop() {
+            future.cancel(false);
+        }
+        // }}}
+
+        // {{{ check
+        /**
+         * Throws if the process was killed by the watchdog.
+         */
+        void check(final String command, final TaskListener listener) throws IOException, InterruptedException {
+            if (aborted) {
+                // the flag is still set; throwing reports it
+                Thread.interrupted();
+                throw new InterruptedException("pcli " + command + " aborted");
+            }
+
+            if (timedOut) {
+                PvcsStats.INSTANCE.recordTimeout();
+
+                String message = "pcli " + command + " timed out after " + (timeoutMillis / 1000) + " s and was killed";
+                listener.error(message);
+                throw new IOException(message);
+            }
+        }
+        // }}}
+    }
+
+    /**
+     * Splits the output of a script at its marker lines.
+     */
+    static final class Demultiplexer
+    {
+        private final InputStream in;
+        private final String tag;
+
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int bufPos;
+        private int bufLength;
+
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private int linePos;
+
+        /** Marker that ended the last segment; returned next. */
+        private String[] pendingMarker;
+
+        // {{{ constructor
+        Demultiplexer(final InputStream in, final String tag) {
+            this.in = in;
+            this.tag = tag;
+        }
+        // }}}
+
+        // {{{ nextMarker
+        /**
+         * Skips to the next marker line and returns its words after the
+         * tag, or null at the end of the output.
+         */
+        String[] nextMarker() throws IOException {
+            if (pendingMarker != null) {
+                String[] marker = pendingMarker;
+                pendingMarker = null;
+                return marker;
+            }
+
+            while (readLine()) {
+                String[] marker = parseMarker();
+                if (marker != null) {
+                    return marker;
+                }
+
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("pcli output outside of any command: " + new String(line, 0, lineLength).trim());
+                }
+            }
+
+            return null;
+        }
+        // }}}
+
+        // {{{ segment
+        /**
+         * Returns the output up to the next marker line.
+         */
+        InputStream segment() {
+            linePos = lineLength;
+
+            return new InputStream() {
+                private boolean ended;
+
+                @Override
+                public int read() throws IOException {
+                    if (! fill()) {
+                        return -1;
+                    }
+
+                    return line[linePos++] & 0xff;
+                }
+
+                @Override
+                public int read(final byte[] buf, final int off, final int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+
+                    if (! fill()) {
+                        return -1;
+                    }
+
+                    int n = Math.min(len, lineLength - linePos);
+                    System.arraycopy(line, linePos, buf, off, n);
+                    linePos += n;
+
+                    return n;
+                }
+
+                private boolean fill() throws IOException {
+                    while (! ended && (linePos == lineLength)) {
+                        if (! readLine()) {
+                            ended = true;
+                        } else {
+                            pendingMarker = parseMarker();
+                            if (pendingMarker != null) {
+                                linePos = lineLength;
+                                ended = true;
+                            }
+                        }
+                    }
+
+                    return ! ended;
+                }
+            };
+        }
+        // }}}
+
+        // {{{ readLine
+        /**
+         * Reads the next line, with its terminator, into the line buffer.
+         *
+         * @return false at the end of the output
+         */
+        private boolean readLine() throws IOException {
+            lineLength = 0;
+            linePos = 0;
+
+            while (true) {
+                if (bufPos == bufLength) {
+                    bufPos = 0;
+                    bufLength = Math.max(0, in.read(buf, 0, buf.length));
+
+                    if (bufLength == 0) {
+                        return lineLength > 0;
+                    }
+                }
+
+                int end = bufPos;
+                while ((end < bufLength) && (buf[end] != '\n')) {
+                    end++;
+                }
+
+                boolean complete = (end < bufLength);
+                if (complete) {
+                    end++;
+                }
+
+                int n = end - bufPos;
+                if (lineLength + n > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + n));
+                }
+
+                System.arraycopy(buf, bufPos, line, lineLength, n);
+                lineLength += n;
+                bufPos = end;
+
+                if (complete) {
+                    return true;
+                }
+            }
+        }
+        // }}}
+
+        // {{{ parseMarker
+        /**
+         * Returns the words after the tag if the current line is a marker,
+         * else null.
+         */
+        private String[] parseMarker() {
+            if (lineLength < tag.length()) {
+                return null;
+            }
+
+            for (int i = 0; i < tag.length(); i++) {
+                if (line[i] != tag.charAt(i)) {
+                    return null;
+                }
+            }
+
+            String rest = new String(line, tag.length(), lineLength - tag.length()).trim();
+            return rest.split("\\s+");
+        }
+        // }}}
+
+        // {{{ close
+        void close() throws IOException {
+            in.close();
+        }
+        // }}}
+    }
+}
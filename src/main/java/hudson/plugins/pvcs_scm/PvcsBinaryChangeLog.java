@@ -0,0 +1,436 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Compact binary copy of a changelog, written next to
+ * <code>changelog.xml</code>.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ *   header     magic, version, entry count, string count, offset of the
+ *              string data, offset of the string index, build id and last
+ *              build id as string numbers
+ *   records    one fixed-width record per entry: file name, revision,
+ *              comment and user as string numbers, check-in time in
+ *              milliseconds
+ *   strings    every distinct string once, as length and UTF-8 bytes
+ *   index      offset of each string
+ * </pre>
+ * Since records are fixed-width, the offset of entry <i>n</i> is
+ * <code>HEADER_SIZE + n * RECORD_SIZE</code>.  A missing string is stored as
+ * -1 and a missing time as {@link Long#MIN_VALUE}.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsBinaryChangeLog
+{
+    private static final Log LOGGER = LogFactory.getLog(PvcsBinaryChangeLog.class);
+
+    private static final String SUFFIX = ".bin";
+
+    private static final int MAGIC = 0x5056434c; // "PVCL"
+    private static final short VERSION = 1;
+
+    static final int HEADER_SIZE = 4 + 2 + 4 + 4 + 8 + 8 + 4 + 4;
+    static final int RECORD_SIZE = 4 + 4 + 4 + 4 + 8;
+
+    private static final int NONE = -1;
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /** Strings kept by a reader; users and comments repeat a lot. */
+    private static final int STRING_CACHE_SIZE = 256;
+
+    private PvcsBinaryChangeLog() {
+    }
+
+    // {{{ sidecarFor
+    static File sidecarFor(final File changelogFile) {
+        return new File(changelogFile.getParentFile(), changelogFile.getName() + SUFFIX);
+    }
+    // }}}
+
+    // {{{ isUsable
+    /**
+     * Returns true if the changelog has a sidecar that is at least as new as
+     * the XML.
+     */
+    static boolean isUsable(final File changelogFile) {
+        File sidecar = sidecarFor(changelogFile);
+        return sidecar.isFile() && (sidecar.lastModified() >= changelogFile.lastModified());
+    }
+    // }}}
+
+    /**
+     * The header fields of a sidecar.
+     */
+    static final class Header
+    {
+        int entryCount;
+        int stringCount;
+        long stringsOffset;
+        long indexOffset;
+        String buildId;
+        String lastBuildId;
+    }
+
+    // {{{ readHeader
+    static Header readHeader(final File sidecar) throws IOException {
+        StringTable strings = new StringTable(sidecar);
+        try {
+            return strings.header;
+        } finally {
+            strings.close();
+        }
+    }
+    // }}}
+
+    /**
+     * Random access to the string table of a sidecar, with a small cache.
+     */
+    private static final class StringTable implements Closeable
+    {
+        final Header header = new Header();
+
+        private final RandomAccessFile file;
+        private final byte[] longBuf = new byte[8];
+
+        private final Map<Integer, String> cache =
+            new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Integer, String> eldest) {
+                    return size() > STRING_CACHE_SIZE;
+                }
+            };
+
+        // {{{ constructor
+        StringTable(final File sidecar) throws IOException {
+            file = new RandomAccessFile(sidecar, "r");
+
+            try {
+                byte[] buf = new byte[HEADER_SIZE];
+                file.readFully(buf);
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf));
+                if ((in.readInt() != MAGIC) || (in.readShort() != VERSION)) {
+                    throw new IOException(sidecar + " is not a binary changelog");
+                }
+
+                header.entryCount = in.readInt();
+                header.stringCount = in.readInt();
+                header.stringsOffset = in.readLong();
+                header.indexOffset = in.readLong();
+
+                int buildId = in.readInt();
+                int lastBuildId = in.readInt();
+
+                if (header.indexOffset + (8L * header.stringCount) != file.length()) {
+                    throw new IOException(sidecar + " is truncated");
+                }
+
+                header.buildId = get(buildId);
+                header.lastBuildId = get(lastBuildId);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+        // }}}
+
+        // {{{ get
+        String get(final int index) throws IOException {
+            if (index == NONE) {
+                return null;
+            }
+
+            if ((index < 0) || (index >= header.stringCount)) {
+                throw new IOException("bad string number " + index);
+            }
+
+            String value = cache.get(index);
+            if (value == null) {
+                file.seek(header.indexOffset + (8L * index));
+                file.readFully(longBuf);
+
+                long offset = 0;
+                for (byte b : longBuf) {
+                    offset = (offset << 8) | (b & 0xff);
+                }
+
+                file.seek(offset);
+                byte[] bytes = new byte[file.readInt()];
+                file.readFully(bytes);
+
+                value = new String(bytes, ENCODING);
+                cache.put(index, value);
+            }
+
+            return value;
+        }
+        // }}}
+
+        // {{{ close
+        public void close() throws IOException {
+            file.close();
+        }
+        // }}}
+    }
+
+    /**
+     * Reads the records of a sidecar in order.
+     */
+    static final class Reader implements PvcsChangeLogParser.RecordReader
+    {
+        private final StringTable strings;
+        private final DataInputStream records;
+
+        private int remaining;
+
+        // {{{ constructor
+        Reader(final File sidecar) throws IOException {
+            strings = new StringTable(sidecar);
+            remaining = strings.header.entryCount;
+
+            FileInputStream fis = new FileInputStream(sidecar);
+            try {
+                long skip = HEADER_SIZE;
+                while (skip > 0) {
+                    long skipped = fis.skip(skip);
+                    if (skipped <= 0) {
+                        throw new EOFException();
+                    }
+
+                    skip -= skipped;
+                }
+            } catch (IOException e) {
+                fis.close();
+                strings.close();
+                throw e;
+            }
+
+            records = new DataInputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+        }
+        // }}}
+
+        // {{{ read
+        public PvcsChangeLogParser.Record read() throws IOException {
+            if (remaining == 0) {
+                return null;
+            }
+
+            remaining--;
+
+            PvcsChangeLogParser.Record record = new PvcsChangeLogParser.Record();
+            record.fileName = strings.get(records.readInt());
+            record.revision = strings.get(records.readInt());
+            record.comment = strings.get(records.readInt());
+            record.userName = strings.get(records.readInt());
+
+            long time = records.readLong();
+            record.modifiedTime = (time != NO_TIME) ? new Date(time) : null;
+
+            return record;
+        }
+        // }}}
+
+        // {{{ skip
+        public void skip(final int count) throws IOException {
+            int n = Math.min(count, remaining);
+            remaining -= n;
+
+            long skip = (long) n * RECORD_SIZE;
+            while (skip > 0) {
+                int skipped = records.skipBytes((int) Math.min(skip, Integer.MAX_VALUE));
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+
+                skip -= skipped;
+            }
+        }
+        // }}}
+
+        // {{{ close
+        public void close() {
+            try {
+                records.close();
+            } catch (IOException e) {
+                LOGGER.debug("error closing binary changelog", e);
+            }
+
+            try {
+                strings.close();
+            } catch (IOException e) {
+                LOGGER.debug("error closing binary changelog", e);
+            }
+        }
+        // }}}
+    }
+
+    /**
+     * Writes a sidecar from the same records as the XML changelog.  Records
+     * without a check-in time are dropped, as they are from the XML.
+     */
+    static final class Writer implements PvcsVlogParser.Handler, Closeable
+    {
+        private final File sidecar;
+        private final DataOutputStream out;
+
+        private final Map<String, Integer> stringNumbers = new HashMap<String, Integer>();
+        private final List<String> strings = new ArrayList<String>();
+
+        private final int buildId;
+        private final int lastBuildId;
+
+        private int entryCount;
+
+        /** First write error; reported by {@link #close}. */
+        private IOException error;
+
+        // {{{ constructor
+        Writer(final File sidecar, final String buildId, final String lastBuildId) throws IOException {
+            this.sidecar = sidecar;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar), BUFFER_SIZE));
+
+            try {
+                // filled in by close()
+                out.write(new byte[HEADER_SIZE]);
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+
+            this.buildId = intern(buildId);
+            this.lastBuildId = intern(lastBuildId);
+        }
+        // }}}
+
+        // {{{ record
+        /**
+         * {@inheritDoc}
+         */
+        public void record(final String fileName,
+                           final String revision,
+                           final Date modifiedTime,
+                           final String userName,
+                           final String comment)
+        {
+            if ((error != null) || (modifiedTime == null)) {
+                return;
+            }
+
+            try {
+                out.writeInt(intern(fileName));
+                out.writeInt(intern(revision));
+                out.writeInt(intern(comment));
+                out.writeInt(intern(userName));
+                out.writeLong(modifiedTime.getTime());
+
+                entryCount++;
+            } catch (IOException e) {
+                LOGGER.error("unable to write binary changelog entry for " + fileName, e);
+                error = e;
+            }
+        }
+        // }}}
+
+        // {{{ intern
+        private int intern(final String value) {
+            if (value == null) {
+                return NONE;
+            }
+
+            Integer number = stringNumbers.get(value);
+            if (number == null) {
+                number = strings.size();
+                stringNumbers.put(value, number);
+                strings.add(value);
+            }
+
+            return number;
+        }
+        // }}}
+
+        // {{{ close
+        /**
+         * Writes the strings, the index and the header and closes the file.
+         *
+         * @throws IOException if anything could not be written
+         */
+        public void close() throws IOException {
+            try {
+                if (error != null) {
+                    throw error;
+                }
+
+                long stringsOffset = HEADER_SIZE + ((long) entryCount * RECORD_SIZE);
+                long[] offsets = new long[strings.size()];
+
+                long offset = stringsOffset;
+                for (int i = 0; i < offsets.length; i++) {
+                    byte[] bytes = strings.get(i).getBytes(ENCODING);
+
+                    offsets[i] = offset;
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+
+                    offset += 4 + bytes.length;
+                }
+
+                long indexOffset = offset;
+                for (long stringOffset : offsets) {
+                    out.writeLong(stringOffset);
+                }
+
+                out.close();
+
+                ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+                DataOutputStream headerOut = new DataOutputStream(header);
+                headerOut.writeInt(MAGIC);
+                headerOut.writeShort(VERSION);
+                headerOut.writeInt(entryCount);
+                headerOut.writeInt(strings.size());
+                headerOut.writeLong(stringsOffset);
+                headerOut.writeLong(indexOffset);
+                headerOut.writeInt(buildId);
+                headerOut.writeInt(lastBuildId);
+
+                RandomAccessFile file = new RandomAccessFile(sidecar, "rw");
+                try {
+                    file.write(header.toByteArray());
+                } finally {
+                    file.close();
+                }
+            } finally {
+                out.close();
+            }
+        }
+        // }}}
+    }
+}
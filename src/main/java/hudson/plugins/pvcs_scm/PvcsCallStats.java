@@ -0,0 +1,342 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.Date;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Measurements of a single pcli invocation.
+ * <p>
+ * A call is started when the process is about to be launched, or before
+ * waiting for permission to launch it; the streams returned by the
+ * <code>meter</code> methods count what the process produces, and
+ * {@link #finish} stops the clock.  Except for the queue wait, times are
+ * measured from the end of the wait.  A call made on another node is sent
+ * back with its results.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class PvcsCallStats implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final String command;
+    private final long timestamp;
+    private volatile long startNanos;
+
+    private volatile long queueNanos = -1;
+    private volatile long startupNanos = -1;
+    private volatile long firstByteNanos = -1;
+    private volatile long wallNanos = -1;
+
+    /** Only ever updated by the thread draining the process. */
+    private volatile long bytes;
+    private volatile long lines;
+
+    private volatile int archives;
+    private volatile int entries;
+    private volatile int files;
+
+    private volatile long parseCpuNanos = -1;
+
+    private volatile int exitCode;
+
+    // {{{ constructor
+    /**
+     * Starts the clock.
+     *
+     * @param command the pcli command, such as <code>vlog</code>
+     */
+    PvcsCallStats(final String command) {
+        this.command = command;
+        this.timestamp = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+    // }}}
+
+    // {{{ queued
+    /**
+     * Records the time spent waiting for permission to launch the process,
+     * which ends now.
+     */
+    void queued(final long nanos) {
+        queueNanos = nanos;
+        startNanos = System.nanoTime();
+    }
+    // }}}
+
+    // {{{ started
+    /**
+     * Records that the process has been launched.
+     */
+    void started() {
+        startupNanos = System.nanoTime() - startNanos;
+    }
+    // }}}
+
+    // {{{ meter
+    /**
+     * Returns a stream that counts what is read from the process' output.
+     */
+    InputStream meter(final InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    count((byte) b);
+                }
+
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] buf, final int off, final int len) throws IOException {
+                int read = super.read(buf, off, len);
+                count(buf, off, read);
+
+                return read;
+            }
+        };
+    }
+    // }}}
+
+    // {{{ meter
+    /**
+     * Returns a stream that counts what the process writes to
+     * <code>out</code>.
+     */
+    OutputStream meter(final OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(final int b) throws IOException {
+                out.write(b);
+                count((byte) b);
+            }
+
+            @Override
+            public void write(final byte[] buf, final int off, final int len) throws IOException {
+                out.write(buf, off, len);
+                count(buf, off, len);
+            }
+        };
+    }
+    // }}}
+
+    // {{{ count
+    private void count(final byte b) {
+        if (firstByteNanos < 0) {
+            firstByteNanos = System.nanoTime() - startNanos;
+        }
+
+        bytes++;
+        if (b == '\n') {
+            lines++;
+        }
+    }
+    // }}}
+
+    // {{{ count
+    private void count(final byte[] buf, final int off, final int len) {
+        if (len <= 0) {
+            return;
+        }
+
+        if (firstByteNanos < 0) {
+            firstByteNanos = System.nanoTime() - startNanos;
+        }
+
+        int newlines = 0;
+        for (int i = off; i < off + len; i++) {
+            if (buf[i] == '\n') {
+                newlines++;
+            }
+        }
+
+        bytes += len;
+        lines += newlines;
+    }
+    // }}}
+
+    // {{{ currentThreadCpuTime
+    /**
+     * Returns the CPU time of the current thread in nanoseconds, or -1 if
+     * the JVM cannot tell.
+     */
+    static long currentThreadCpuTime() {
+        if (! THREADS.isCurrentThreadCpuTimeSupported()) {
+            return -1;
+        }
+
+        return THREADS.getCurrentThreadCpuTime();
+    }
+    // }}}
+
+    // {{{ parsed
+    /**
+     * Adds the work done by a vlog parser; a batch may run several.
+     *
+     * @param cpuNanos CPU time spent parsing, or -1 if not known
+     */
+    synchronized void parsed(final int archives, final int entries, final long cpuNanos) {
+        this.archives += archives;
+        this.entries += entries;
+
+        if (cpuNanos >= 0) {
+            this.parseCpuNanos = Math.max(0, parseCpuNanos) + cpuNanos;
+        }
+    }
+    // }}}
+
+    // {{{ addFiles
+    /**
+     * Adds to the number of workfiles written by gets.
+     */
+    synchronized void addFiles(final int files) {
+        this.files += files;
+    }
+    // }}}
+
+    // {{{ finish
+    /**
+     * Stops the clock.
+     */
+    void finish(final int exitCode) {
+        this.exitCode = exitCode;
+        this.wallNanos = System.nanoTime() - startNanos;
+    }
+    // }}}
+
+    // {{{ getCommand
+    @Exported
+    public String getCommand() {
+        return command;
+    }
+    // }}}
+
+    // {{{ getTimestamp
+    @Exported
+    public Date getTimestamp() {
+        return new Date(timestamp);
+    }
+    // }}}
+
+    // {{{ getQueueWaitMillis
+    /**
+     * Returns the time spent waiting for other pcli processes, or -1.
+     */
+    @Exported
+    public long getQueueWaitMillis() {
+        return millis(queueNanos);
+    }
+    // }}}
+
+    // {{{ getStartupMillis
+    /**
+     * Returns the time it took to launch the process, or -1.
+     */
+    @Exported
+    public long getStartupMillis() {
+        return millis(startupNanos);
+    }
+    // }}}
+
+    // {{{ getFirstByteMillis
+    /**
+     * Returns the time until the process produced its first output, or -1
+     * if it produced none.
+     */
+    @Exported
+    public long getFirstByteMillis() {
+        return millis(firstByteNanos);
+    }
+    // }}}
+
+    // {{{ getWallMillis
+    @Exported
+    public long getWallMillis() {
+        return millis(wallNanos);
+    }
+    // }}}
+
+    // {{{ getBytes
+    @Exported
+    public long getBytes() {
+        return bytes;
+    }
+    // }}}
+
+    // {{{ getLines
+    @Exported
+    public long getLines() {
+        return lines;
+    }
+    // }}}
+
+    // {{{ getArchives
+    /**
+     * Returns the number of archives in vlog output.
+     */
+    @Exported
+    public int getArchives() {
+        return archives;
+    }
+    // }}}
+
+    // {{{ getEntries
+    /**
+     * Returns the number of changelog records parsed from vlog output.
+     */
+    @Exported
+    public int getEntries() {
+        return entries;
+    }
+    // }}}
+
+    // {{{ getFiles
+    /**
+     * Returns the number of workfiles written by a get.
+     */
+    @Exported
+    public int getFiles() {
+        return files;
+    }
+    // }}}
+
+    // {{{ getParseCpuMillis
+    /**
+     * Returns the CPU time spent parsing vlog output, or -1.
+     */
+    @Exported
+    public long getParseCpuMillis() {
+        return millis(parseCpuNanos);
+    }
+    // }}}
+
+    // {{{ getExitCode
+    @Exported
+    public int getExitCode() {
+        return exitCode;
+    }
+    // }}}
+
+    // {{{ millis
+    private static long millis(final long nanos) {
+        return (nanos < 0) ? -1 : (nanos / 1000000L);
+    }
+    // }}}
+}
@@ -0,0 +1,275 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogEntry;
+import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogSet;
+
+import java.io.IOException;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Short-lived, bounded cache of <code>pcli vlog</code> results, so that a
+ * checkout following a poll (or a poll following another) only has to ask
+ * PVCS for what was checked in since the cached query ran.
+ * <p>
+ * The cache is shared by every job on the controller.  Concurrent
+ * requests for the same key are coalesced: one of them runs the query and
+ * the others wait for its result.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsChangeLogCache
+{
+    private static final Log LOGGER = LogFactory.getLog(PvcsChangeLogCache.class);
+
+    /** Maximum number of cached results. */
+    private static final int MAX_ENTRIES =
+        Integer.getInteger(PvcsChangeLogCache.class.getName() + ".maxEntries", 64);
+
+    /**
+     * Time a result stays usable after the full query it started from; a
+     * result extended by later queries does not live longer.
+     */
+    private static final long TTL_MILLIS =
+        Integer.getInteger(PvcsChangeLogCache.class.getName() + ".ttlSeconds", 600) * 1000L;
+
+    static final PvcsChangeLogCache INSTANCE = new PvcsChangeLogCache();
+
+    /**
+     * A cached result covering check-ins from the key's start time up to
+     * {@link #end}.
+     */
+    static final class Result
+    {
+        final PvcsChangeLogSet changeLogSet;
+        final Calendar end;
+        final long created;
+
+        /** False if pcli failed and the set may be incomplete. */
+        final boolean complete;
+
+        Result(final PvcsChangeLogSet changeLogSet,
+               final Calendar end,
+               final long created,
+               final boolean complete)
+        {
+            this.changeLogSet = changeLogSet;
+            this.end = end;
+            this.created = created;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * Runs the query behind a key.
+     */
+    interface Loader
+    {
+        /**
+         * Returns the result of a full query, or of <code>cached</code>
+         * extended up to now.  The set must not be changed afterwards.
+         *
+         * @param cached the unexpired result for the key; null if there is
+         * none
+         */
+        Result load(Result cached) throws IOException, InterruptedException;
+
+        /**
+         * Called instead of {@link #load} when the same query is already
+         * running for another caller, before waiting for it.
+         */
+        void joined();
+    }
+
+    private final Map<String, Result> results =
+        new LinkedHashMap<String, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Result> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    /** Queries currently running, by key. */
+    private final Map<String, FutureTask<Result>> pending = new HashMap<String, FutureTask<Result>>();
+
+    private PvcsChangeLogCache() {
+    }
+
+    // {{{ get
+    /**
+     * Returns the cached result for the key, or null if there is none or it
+     * has expired.
+     */
+    synchronized Result get(final String key) {
+        expire();
+
+        return results.get(key);
+    }
+    // }}}
+
+    // {{{ put
+    /**
+     * @param created time of the full query the result started from
+     */
+    synchronized void put(final String key,
+                          final PvcsChangeLogSet changeLogSet,
+                          final Calendar end,
+                          final long created)
+    {
+        results.put(key, new Result(changeLogSet, end, created, true));
+    }
+    // }}}
+
+    // {{{ load
+    /**
+     * Returns the result for the key, running the loader unless the same
+     * query is already running, in which case its result is shared.  A
+     * complete result replaces the cached one.
+     */
+    Result load(final String key, final Loader loader) throws IOException, InterruptedException {
+        while (true) {
+            FutureTask<Result> task;
+            boolean owner = false;
+
+            synchronized (this) {
+                task = pending.get(key);
+                if (task == null) {
+                    final Result cached = get(key);
+                    if (cached != null) {
+                        PvcsStats.INSTANCE.recordCacheHit();
+                    }
+
+                    task = new FutureTask<Result>(new Callable<Result>() {
+                        public Result call() throws IOException, InterruptedException {
+                            return loader.load(cached);
+                        }
+                    });
+
+                    pending.put(key, task);
+                    owner = true;
+                }
+            }
+
+            if (owner) {
+                task.run();
+                finish(key, task);
+            } else {
+                LOGGER.debug("joining running query for " + key);
+                PvcsStats.INSTANCE.recordCoalescedVlog();
+                loader.joined();
+            }
+
+            try {
+                return task.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+
+                if (! owner && (cause instanceof InterruptedException) && ! Thread.interrupted()) {
+                    // the caller running the query was aborted, not us
+                    continue;
+                }
+
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof InterruptedException) {
+                    throw (InterruptedException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+
+                throw new IOException(cause);
+            }
+        }
+    }
+    // }}}
+
+    // {{{ finish
+    /**
+     * Caches the result of a finished query, if complete, and lets the next
+     * caller start a new one.
+     */
+    private synchronized void finish(final String key, final FutureTask<Result> task) {
+        pending.remove(key);
+
+        try {
+            Result result = task.get();
+            if (result.complete) {
+                results.put(key, result);
+            }
+        } catch (ExecutionException e) {
+            // nothing to cache; the callers get the exception
+        } catch (InterruptedException e) {
+            // cannot happen, the task is done
+            Thread.currentThread().interrupt();
+        }
+    }
+    // }}}
+
+    // {{{ isKnown
+    /**
+     * Returns true if a result for the key is cached or being loaded.
+     */
+    synchronized boolean isKnown(final String key) {
+        return pending.containsKey(key) || (get(key) != null);
+    }
+    // }}}
+
+    // {{{ clear
+    synchronized void clear() {
+        results.clear();
+    }
+    // }}}
+
+    // {{{ expire
+    private void expire() {
+        long oldest = System.currentTimeMillis() - TTL_MILLIS;
+
+        for (Iterator<Result> it = results.values().iterator(); it.hasNext(); ) {
+            if (it.next().created < oldest) {
+                it.remove();
+            }
+        }
+    }
+    // }}}
+
+    // {{{ merge
+    /**
+     * Returns a new set holding the cached entries extended with a later
+     * query.  An archive present in both keeps the later entry, in the
+     * position of the earlier one.
+     */
+    static PvcsChangeLogSet merge(final PvcsChangeLogSet cached, final PvcsChangeLogSet delta) {
+        Map<String, PvcsChangeLogEntry> entries = new LinkedHashMap<String, PvcsChangeLogEntry>();
+
+        for (PvcsChangeLogEntry entry : cached.getEntryArray()) {
+            entries.put(entry.getFileName(), entry);
+        }
+
+        for (PvcsChangeLogEntry entry : delta.getEntryArray()) {
+            entries.put(entry.getFileName(), entry);
+        }
+
+        LOGGER.debug(String.format("merged %d cached and %d new entries into %d",
+                                   cached.sizeOfEntryArray(),
+                                   delta.sizeOfEntryArray(),
+                                   entries.size()));
+
+        PvcsChangeLogSet merged = PvcsChangeLogSet.Factory.newInstance();
+        merged.setEntryArray(entries.values().toArray(new PvcsChangeLogEntry[entries.size()]));
+
+        return merged;
+    }
+    // }}}
+}
@@ -0,0 +1,58 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogEntry;
+import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogSet;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Collects the records of a <code>pcli vlog</code> into an in-memory
+ * changelog set.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+class PvcsChangeLogCollector implements PvcsVlogParser.Handler
+{
+    private final PvcsChangeLogSet changeLogSet = PvcsChangeLogSet.Factory.newInstance();
+
+    // {{{ getChangeLogSet
+    PvcsChangeLogSet getChangeLogSet() {
+        return changeLogSet;
+    }
+    // }}}
+
+    // {{{ record
+    /**
+     * {@inheritDoc}
+     */
+    public void record(final String fileName,
+                       final String revision,
+                       final Date modifiedTime,
+                       final String userName,
+                       final String comment)
+    {
+        PvcsChangeLogEntry modification = changeLogSet.addNewEntry();
+
+        modification.setFileName(fileName);
+
+        if (revision != null) {
+            modification.setRevision(revision);
+        }
+
+        if (modifiedTime != null) {
+            Calendar modCal = Calendar.getInstance();
+            modCal.setTime(modifiedTime);
+            modification.setModifiedTime(modCal);
+        }
+
+        if (userName != null) {
+            modification.setUserName(userName);
+        }
+
+        if (comment != null) {
+            modification.setComment(comment);
+        }
+    }
+    // }}}
+}
@@ -1,31 +1,94 @@
 package hudson.plugins.pvcs_scm;
 
-import hudson.plugins.pvcs_scm.changelog.ChangeLogDocument;
-import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogEntry;
-
 import hudson.model.AbstractBuild;
 import hudson.scm.ChangeLogParser;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Collections;
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.xml.sax.SAXException;
-import org.apache.xmlbeans.XmlException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
  * Encapsulates the file format of the changelog.
+ * <p>
+ * Parsing only reads the attributes of the <code>changeLog</code> element
+ * and whether it has any entries; the entries themselves are read from the
+ * file with StAX as the set's iterator advances.
  *
  * @author Brian Lalor &lt;blalor@bravo5.org&gt;
  */
 public class PvcsChangeLogParser extends ChangeLogParser
 {
     private static final Log LOGGER = LogFactory.getLog(PvcsChangeLogParser.class);
-    
+
+    /** Records read each time an entry iterator opens the changelog. */
+    private static final int CHUNK_SIZE =
+        Integer.getInteger(PvcsChangeLogParser.class.getName() + ".readChunkSize", 1024);
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    /** Window for grouping records into one entry, in milliseconds. */
+    private final long groupWindow;
+
+    /** Maps author ids to users; may be null. */
+    private final PvcsAuthorResolver authorResolver;
+
+    // {{{ constructor
+    /**
+     * Creates a parser that returns every record as its own entry.
+     */
+    public PvcsChangeLogParser() {
+        this(0);
+    }
+    // }}}
+
+    // {{{ constructor
+    /**
+     * @param groupWindowSeconds maximum spread of the check-in times of
+     *        records grouped into one entry; 0 disables grouping
+     */
+    public PvcsChangeLogParser(final int groupWindowSeconds) {
+        this(groupWindowSeconds, null);
+    }
+    // }}}
+
+    // {{{ constructor
+    /**
+     * @param groupWindowSeconds maximum spread of the check-in times of
+     *        records grouped into one entry; 0 disables grouping
+     * @param authorResolver maps author ids to users; may be null
+     */
+    PvcsChangeLogParser(final int groupWindowSeconds, final PvcsAuthorResolver authorResolver) {
+        this.groupWindow = Math.max(0, groupWindowSeconds) * 1000L;
+        this.authorResolver = authorResolver;
+    }
+    // }}}
+
     // {{{ parse
     /**
      * {@inheritDoc}
@@ -35,35 +98,587 @@ public class PvcsChangeLogParser extends ChangeLogParser
                                   final File changelogFile)
         throws IOException, SAXException
     {
-        PvcsChangeLogSet clSet = null;
-        SimpleDateFormat df = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-        
         LOGGER.debug("parsing " + changelogFile);
-        
-        try {
-            ChangeLogDocument doc = ChangeLogDocument.Factory.parse(changelogFile);
 
-            clSet = new PvcsChangeLogSet(build);
+        if (PvcsBinaryChangeLog.isUsable(changelogFile)) {
+            try {
+                PvcsBinaryChangeLog.Header header =
+                    PvcsBinaryChangeLog.readHeader(PvcsBinaryChangeLog.sidecarFor(changelogFile));
 
-            PvcsChangeLogSet.Entry clEntry;
-            if (doc.getChangeLog().sizeOfEntryArray() > 0) {
-                for (PvcsChangeLogEntry entry : doc.getChangeLog().getEntryArray()) {
-                    clEntry = clSet.addNewEntry(Collections.singleton(entry.getFileName()),
-                                                entry.getUserName(),
-                                                entry.getComment());
+                return new PvcsChangeLogSet(build, changelogFile, header.buildId, header.lastBuildId,
+                                            header.entryCount == 0, groupWindow, authorResolver);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read binary changelog for " + changelogFile + "; using XML", e);
+            }
+        }
 
-                    clEntry.setRevision(entry.getRevision());
-                    clEntry.setModifiedTime(df.format(entry.getModifiedTime().getTime()));
-                }
+        InputStream is = new BufferedInputStream(new FileInputStream(changelogFile));
+        try {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(is);
+            try {
+                reader.nextTag();
+
+                String buildId = reader.getAttributeValue(null, "buildId");
+                String lastBuildId = reader.getAttributeValue(null, "lastBuildId");
+                boolean empty = (reader.nextTag() == XMLStreamConstants.END_ELEMENT);
+
+                return new PvcsChangeLogSet(build, changelogFile, buildId, lastBuildId, empty, groupWindow, authorResolver);
+            } finally {
+                reader.close();
             }
-        } catch (XmlException e) {
-            // @todo
+        } catch (XMLStreamException e) {
             LOGGER.error(String.format("Unable to parse %s: %s", changelogFile, e.getMessage()), e);
             throw new SAXException(e);
+        } finally {
+            is.close();
+        }
+    }
+    // }}}
+
+    // {{{ openRecords
+    /**
+     * Opens the records of a changelog, from its binary sidecar if it has a
+     * usable one and from the XML otherwise.
+     */
+    static RecordReader openRecords(final File changelogFile) throws IOException {
+        if (PvcsBinaryChangeLog.isUsable(changelogFile)) {
+            try {
+                return new PvcsBinaryChangeLog.Reader(PvcsBinaryChangeLog.sidecarFor(changelogFile));
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read binary changelog for " + changelogFile + "; using XML", e);
+            }
         }
-    
-        return clSet;
+
+        return new XmlRecordReader(changelogFile);
     }
     // }}}
-    
+
+    /**
+     * A single changelog record.
+     */
+    static final class Record
+    {
+        String fileName;
+        String revision;
+        Date modifiedTime;
+        String comment;
+        String userName;
+    }
+
+    /**
+     * Reads changelog records in file order.
+     */
+    interface RecordReader
+    {
+        /**
+         * Returns the next record, or null at the end.
+         */
+        Record read() throws IOException;
+
+        /**
+         * Skips up to <code>count</code> records.
+         */
+        void skip(int count) throws IOException;
+
+        void close();
+    }
+
+    /**
+     * Reads the <code>entry</code> elements of a changelog with StAX.
+     */
+    static final class XmlRecordReader implements RecordReader
+    {
+        /** Start of an entry element, as the changelog writers put it. */
+        private static final byte[] ENTRY_TAG = { '<', 'e', 'n', 't', 'r', 'y' };
+
+        private static final int SCAN_BUFFER_SIZE = 65536;
+
+        private final File changelogFile;
+        private final InputStream is;
+        private final XMLStreamReader reader;
+
+        // {{{ constructor
+        XmlRecordReader(final File changelogFile) throws IOException {
+            this(changelogFile, new FileInputStream(changelogFile));
+        }
+        // }}}
+
+        // {{{ constructor
+        /**
+         * Reads the entries from <code>offset</code> on, which must be where
+         * an entry element starts.  The document up to
+         * <code>headerEnd</code> is read first, so the entries are still
+         * inside the root element.
+         */
+        XmlRecordReader(final File changelogFile, final long headerEnd, final long offset) throws IOException {
+            this(changelogFile, resume(changelogFile, headerEnd, offset));
+        }
+        // }}}
+
+        // {{{ constructor
+        private XmlRecordReader(final File changelogFile, final InputStream in) throws IOException {
+            this.changelogFile = changelogFile;
+
+            is = new BufferedInputStream(in);
+            try {
+                reader = INPUT_FACTORY.createXMLStreamReader(is);
+            } catch (XMLStreamException e) {
+                is.close();
+                throw new IOException("Unable to parse " + changelogFile + ": " + e.getMessage(), e);
+            }
+        }
+        // }}}
+
+        // {{{ resume
+        /**
+         * Returns the header of the changelog followed by the rest of it from
+         * <code>offset</code>.
+         */
+        private static InputStream resume(final File changelogFile, final long headerEnd, final long offset)
+            throws IOException
+        {
+            byte[] header = new byte[(int) headerEnd];
+
+            FileInputStream fis = new FileInputStream(changelogFile);
+            try {
+                new DataInputStream(fis).readFully(header);
+                skipFully(fis, offset - headerEnd);
+            } catch (IOException e) {
+                fis.close();
+                throw e;
+            }
+
+            return new SequenceInputStream(new ByteArrayInputStream(header), fis);
+        }
+        // }}}
+
+        // {{{ findEntry
+        /**
+         * Returns the offset of the entry element reached by passing
+         * <code>count</code> of them from <code>from</code> on, or -1 if the
+         * file ends first.  Only the bytes are scanned, not the XML; the
+         * changelog writers put no comments or CDATA sections into the
+         * file, where the same bytes could appear as text.
+         */
+        static long findEntry(final File changelogFile, final long from, final int count) throws IOException {
+            InputStream in = new FileInputStream(changelogFile);
+            try {
+                skipFully(in, from);
+
+                byte[] buf = new byte[SCAN_BUFFER_SIZE];
+                int matched = 0;
+                int left = count;
+                long pos = from;
+
+                for (int len = in.read(buf); len >= 0; len = in.read(buf)) {
+                    for (int i = 0; i < len; i++, pos++) {
+                        byte b = buf[i];
+
+                        if (matched == ENTRY_TAG.length) {
+                            matched = 0;
+
+                            if (endsTagName(b)) {
+                                if (left == 0) {
+                                    return pos - ENTRY_TAG.length;
+                                }
+
+                                left--;
+                            }
+                        }
+
+                        if (b == ENTRY_TAG[matched]) {
+                            matched++;
+                        } else {
+                            matched = (b == '<') ? 1 : 0;
+                        }
+                    }
+                }
+
+                return -1;
+            } finally {
+                in.close();
+            }
+        }
+        // }}}
+
+        // {{{ endsTagName
+        private static boolean endsTagName(final byte b) {
+            return (b == '>') || (b == '/') || (b == ' ') || (b == '\t') || (b == '\r') || (b == '\n');
+        }
+        // }}}
+
+        // {{{ skipFully
+        private static void skipFully(final InputStream in, final long count) throws IOException {
+            long left = count;
+            while (left > 0) {
+                long skipped = in.skip(left);
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+
+                left -= skipped;
+            }
+        }
+        // }}}
+
+        // {{{ read
+        public Record read() throws IOException {
+            try {
+                while (reader.hasNext()) {
+                    if ((reader.next() == XMLStreamConstants.START_ELEMENT)
+                        && "entry".equals(reader.getLocalName()))
+                    {
+                        return readEntryElement();
+                    }
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Unable to parse " + changelogFile + ": " + e.getMessage(), e);
+            }
+
+            return null;
+        }
+        // }}}
+
+        // {{{ skip
+        public void skip(final int count) throws IOException {
+            int left = count;
+
+            try {
+                while ((left > 0) && reader.hasNext()) {
+                    if ((reader.next() == XMLStreamConstants.START_ELEMENT)
+                        && "entry".equals(reader.getLocalName()))
+                    {
+                        left--;
+                    }
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Unable to parse " + changelogFile + ": " + e.getMessage(), e);
+            }
+        }
+        // }}}
+
+        // {{{ readEntryElement
+        /**
+         * Reads the children of the current <code>entry</code> element.
+         */
+        private Record readEntryElement() throws XMLStreamException {
+            Record record = new Record();
+
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                String text = reader.getElementText();
+
+                if ("fileName".equals(name)) {
+                    record.fileName = text;
+                } else if ("revision".equals(name)) {
+                    record.revision = text;
+                } else if ("modifiedTime".equals(name)) {
+                    record.modifiedTime = parseDateTime(text);
+                } else if ("comment".equals(name)) {
+                    record.comment = text;
+                } else if ("userName".equals(name)) {
+                    record.userName = text.trim();
+                }
+            }
+
+            return record;
+        }
+        // }}}
+
+        // {{{ parseDateTime
+        /**
+         * Parses an <code>xsd:dateTime</code>.
+         */
+        private Date parseDateTime(final String text) {
+            long time = PvcsDateCodec.parseXsd(text);
+            if (time == PvcsDateCodec.NO_TIME) {
+                LOGGER.warn("Unable to parse modification time " + text);
+                return null;
+            }
+
+            return new Date(time);
+        }
+        // }}}
+
+        // {{{ close
+        public void close() {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                LOGGER.debug("error closing " + changelogFile, e);
+            }
+
+            try {
+                is.close();
+            } catch (IOException e) {
+                LOGGER.debug("error closing " + changelogFile, e);
+            }
+        }
+        // }}}
+    }
+
+    /**
+     * Reads the entries of a changelog file one at a time.  Records are read
+     * in chunks; the file is opened for each chunk and closed again before
+     * the chunk is used, so an iteration that stops early leaves no file
+     * open.  Each chunk starts where the previous one ended: at a record
+     * number in the fixed-width binary sidecar, and at a byte offset found
+     * by scanning the bytes of the previous chunk in the XML.  A malformed
+     * file ends the iteration early.
+     * <p>
+     * With a group window, consecutive records by the same author with the
+     * same comment whose check-ins all lie within the window are returned
+     * as one entry with several paths.
+     */
+    static final class EntryIterator implements Iterator<PvcsChangeLogSet.Entry>
+    {
+        private final PvcsChangeLogSet parent;
+        private final File changelogFile;
+        private final long groupWindow;
+        private final int chunkSize;
+
+        /**
+         * Strings shared by the entries of one pass over the file; dropped
+         * with the iterator, so a file-backed set does not keep them.
+         */
+        private final PvcsStringPool strings = new PvcsStringPool();
+
+        /** Records of the current chunk not yet returned. */
+        private final LinkedList<Record> chunk = new LinkedList<Record>();
+
+        /** Records read from the file so far. */
+        private int consumed;
+
+        private PvcsChangeLogSet.Entry next;
+
+        /** Record read past the end of the previous group. */
+        private Record pending;
+
+        /** The file has been read to its end or could not be read. */
+        private boolean done;
+
+        /** Whether the records come from the binary sidecar. */
+        private boolean binary;
+
+        /** Whether the XML has been scanned for its first entry. */
+        private boolean scanned;
+
+        /** Offset of the first entry element in the XML; -1 if not found. */
+        private long headerEnd = -1;
+
+        /** Offset of the entry element of record <code>offsetRecord</code>. */
+        private long offset;
+        private int offsetRecord;
+
+        // {{{ constructor
+        /**
+         * @param groupWindow maximum spread of the check-in times of a
+         *        group, in milliseconds; 0 to return every record on its
+         *        own
+         */
+        EntryIterator(final PvcsChangeLogSet parent, final File changelogFile, final long groupWindow) {
+            this(parent, changelogFile, groupWindow, CHUNK_SIZE);
+        }
+        // }}}
+
+        // {{{ constructor
+        /**
+         * @param chunkSize number of records read each time the file is
+         *        opened
+         */
+        EntryIterator(final PvcsChangeLogSet parent,
+                      final File changelogFile,
+                      final long groupWindow,
+                      final int chunkSize)
+        {
+            this.parent = parent;
+            this.changelogFile = changelogFile;
+            this.groupWindow = groupWindow;
+            this.chunkSize = Math.max(1, chunkSize);
+        }
+        // }}}
+
+        // {{{ hasNext
+        public boolean hasNext() {
+            if (next == null) {
+                next = readEntry();
+            }
+
+            return next != null;
+        }
+        // }}}
+
+        // {{{ next
+        public PvcsChangeLogSet.Entry next() {
+            if (! hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            PvcsChangeLogSet.Entry entry = next;
+            next = null;
+            return entry;
+        }
+        // }}}
+
+        // {{{ remove
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        // }}}
+
+        // {{{ readEntry
+        /**
+         * Returns the next entry, or null at the end of the file.
+         */
+        private PvcsChangeLogSet.Entry readEntry() {
+            Record first = pending;
+            pending = null;
+
+            if (first == null) {
+                first = readRecord();
+
+                if (first == null) {
+                    return null;
+                }
+            }
+
+            long oldest = (first.modifiedTime != null)
+                ? first.modifiedTime.getTime()
+                : PvcsChangeLogSet.Entry.NO_TIME;
+            long newest = oldest;
+
+            PvcsChangeLogSet.Entry entry =
+                new PvcsChangeLogSet.Entry(parent, strings, first.fileName, first.revision,
+                                           first.userName, first.comment, oldest);
+
+            while (groupWindow > 0) {
+                Record record = readRecord();
+                if (record == null) {
+                    break;
+                }
+
+                if ((newest == PvcsChangeLogSet.Entry.NO_TIME)
+                    || (record.modifiedTime == null)
+                    || ! equal(first.userName, record.userName)
+                    || ! equal(first.comment, record.comment))
+                {
+                    pending = record;
+                    break;
+                }
+
+                long time = record.modifiedTime.getTime();
+                if (Math.max(newest, time) - Math.min(oldest, time) > groupWindow) {
+                    pending = record;
+                    break;
+                }
+
+                entry.addPath(strings, record.fileName, record.revision);
+
+                oldest = Math.min(oldest, time);
+                newest = Math.max(newest, time);
+            }
+
+            entry.setTimestamp(newest);
+
+            return entry;
+        }
+        // }}}
+
+        // {{{ readRecord
+        /**
+         * Returns the next record, or null at the end of the file.
+         */
+        private Record readRecord() {
+            if (chunk.isEmpty() && ! done) {
+                readChunk();
+            }
+
+            return chunk.poll();
+        }
+        // }}}
+
+        // {{{ readChunk
+        /**
+         * Reads the next chunk of records and closes the file again.
+         */
+        private void readChunk() {
+            RecordReader reader = null;
+
+            try {
+                reader = open();
+                if (reader == null) {
+                    done = true;
+                    return;
+                }
+
+                while (chunk.size() < chunkSize) {
+                    Record record = reader.read();
+                    if (record == null) {
+                        done = true;
+                        break;
+                    }
+
+                    chunk.add(record);
+                }
+            } catch (IOException e) {
+                LOGGER.error(String.format("Unable to read %s: %s", changelogFile, e.getMessage()), e);
+                done = true;
+            } finally {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+
+            consumed += chunk.size();
+        }
+        // }}}
+
+        // {{{ open
+        /**
+         * Opens the records at the first one not read yet, or returns null
+         * if there are none left.
+         */
+        private RecordReader open() throws IOException {
+            if (consumed == 0) {
+                RecordReader reader = openRecords(changelogFile);
+                binary = ! (reader instanceof XmlRecordReader);
+
+                return reader;
+            }
+
+            if (binary) {
+                RecordReader reader = new PvcsBinaryChangeLog.Reader(PvcsBinaryChangeLog.sidecarFor(changelogFile));
+                reader.skip(consumed);
+
+                return reader;
+            }
+
+            if (! scanned) {
+                headerEnd = XmlRecordReader.findEntry(changelogFile, 0, 0);
+                offset = headerEnd;
+                scanned = true;
+            }
+
+            if (headerEnd == -1) {
+                // not written the usual way; parse the records read again
+                RecordReader reader = new XmlRecordReader(changelogFile);
+                reader.skip(consumed);
+
+                return reader;
+            }
+
+            offset = XmlRecordReader.findEntry(changelogFile, offset, consumed - offsetRecord);
+            offsetRecord = consumed;
+
+            return (offset != -1) ? new XmlRecordReader(changelogFile, headerEnd, offset) : null;
+        }
+        // }}}
+
+        // {{{ equal
+        private static boolean equal(final String a, final String b) {
+            return (a == null) ? (b == null) : a.equals(b);
+        }
+        // }}}
+
+    }
 }
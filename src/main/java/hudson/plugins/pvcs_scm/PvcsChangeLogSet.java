@@ -1,30 +1,81 @@
 package hudson.plugins.pvcs_scm;
 
 import hudson.scm.ChangeLogSet;
+import hudson.scm.EditType;
 import hudson.model.User;
 import hudson.model.AbstractBuild;
 
+import java.io.File;
+
+
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 /**
  * Represents a set of changelog entries for a given build.
+ * <p>
+ * A set returned by {@link PvcsChangeLogParser} is backed by the changelog
+ * file: it only holds the file's header, and each iteration reads the
+ * entries from the file again.
  *
  * @author Brian Lalor &lt;blalor@bravo5.org&gt;
  */
 public class PvcsChangeLogSet extends ChangeLogSet<PvcsChangeLogSet.Entry>
 {
+    private static final Log LOGGER = LogFactory.getLog(PvcsChangeLogSet.class);
+
     private List<PvcsChangeLogSet.Entry> entries;
+
+    /** Changelog file the entries are read from; null if held in memory. */
+    private File changelogFile;
+
+    private String buildId;
+    private String lastBuildId;
+    private boolean empty;
+    private long groupWindow;
+
+    /** Maps author ids to users; null to use them as they are. */
+    private PvcsAuthorResolver authorResolver;
+
+    /** Users already resolved for this set, by PVCS id. */
+    private final Map<String, User> authors = new HashMap<String, User>();
+
+    /** Strings shared by the entries held in memory. */
+    private final PvcsStringPool strings = new PvcsStringPool();
     
     public static class Entry extends ChangeLogSet.Entry 
     {
-        private Collection<String> affectedPaths;
+        /** Check-in time of an entry whose time is not known. */
+        static final long NO_TIME = PvcsDateCodec.NO_TIME;
+
+        private static final String[] NO_STRINGS = new String[0];
+
+        /**
+         * Directory of each affected path, including the trailing separator,
+         * and its file name.  Both are pooled, so entries of the same set
+         * share them.
+         */
+        private String[] dirs;
+        private String[] names;
+
+        /**
+         * Revision of each affected path; always has at least one slot, for
+         * the revision of an entry without paths.
+         */
+        private String[] revisions;
+
         private String user;
         private String msg;
-        private String revision;
-        private String modifiedTime;
+        private long modifiedTime = NO_TIME;
         
         // {{{ constructor
         public Entry(final ChangeLogSet parent,
@@ -35,10 +86,77 @@ public class PvcsChangeLogSet extends ChangeLogSet<PvcsChangeLogSet.Entry>
             super();
             
             setParent(parent);
-            
-            this.affectedPaths = affectedPaths;
-            this.user = user;
-            this.msg = msg;
+
+            PvcsStringPool pool = poolFor(parent);
+
+            dirs = NO_STRINGS;
+            names = NO_STRINGS;
+            revisions = new String[Math.max(1, affectedPaths.size())];
+
+            for (String path : affectedPaths) {
+                appendPath(pool, path);
+            }
+
+            this.user = pool.intern(user);
+            this.msg = pool.intern(msg);
+        }
+        // }}}
+
+        // {{{ constructor
+        /**
+         * Creates an entry for a single check-in, pooling its strings in
+         * <code>pool</code>.
+         *
+         * @param modifiedTime check-in time in milliseconds, or
+         *        {@link #NO_TIME}
+         */
+        Entry(final ChangeLogSet parent,
+              final PvcsStringPool pool,
+              final String path,
+              final String revision,
+              final String user,
+              final String msg,
+              final long modifiedTime)
+        {
+            super();
+
+            setParent(parent);
+
+            dirs = NO_STRINGS;
+            names = NO_STRINGS;
+            revisions = new String[] { revision };
+            appendPath(pool, path);
+
+            this.user = pool.intern(user);
+            this.msg = pool.intern(msg);
+            this.modifiedTime = modifiedTime;
+        }
+        // }}}
+
+        // {{{ poolFor
+        private static PvcsStringPool poolFor(final ChangeLogSet parent) {
+            if (parent instanceof PvcsChangeLogSet) {
+                return ((PvcsChangeLogSet) parent).strings;
+            }
+
+            return new PvcsStringPool();
+        }
+        // }}}
+
+        // {{{ appendPath
+        /**
+         * Splits a path into its pooled directory and name and appends them.
+         * The caller keeps <code>revisions</code> in step.
+         */
+        private void appendPath(final PvcsStringPool pool, final String path) {
+            int sep = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1;
+
+            int n = names.length;
+            dirs = Arrays.copyOf(dirs, n + 1);
+            names = Arrays.copyOf(names, n + 1);
+
+            dirs[n] = pool.intern(path.substring(0, sep));
+            names[n] = pool.intern(path.substring(sep));
         }
         // }}}
 
@@ -47,7 +165,58 @@ public class PvcsChangeLogSet extends ChangeLogSet<PvcsChangeLogSet.Entry>
          * {@inheritDoc}
          */
         public Collection<String> getAffectedPaths() {
-            return affectedPaths;
+            return new AbstractList<String>() {
+                @Override
+                public String get(final int index) {
+                    return dirs[index] + names[index];
+                }
+
+                @Override
+                public int size() {
+                    return names.length;
+                }
+            };
+        }
+        // }}}
+
+        // {{{ addPath
+        /**
+         * Adds another archive's check-in to this entry.
+         */
+        public void addPath(final String path, final String pathRevision) {
+            addPath(poolFor(getParent()), path, pathRevision);
+        }
+        // }}}
+
+        // {{{ addPath
+        /**
+         * Adds another archive's check-in to this entry, pooling the path in
+         * <code>pool</code>.
+         */
+        void addPath(final PvcsStringPool pool, final String path, final String pathRevision) {
+            appendPath(pool, path);
+
+            if (revisions.length < names.length) {
+                revisions = Arrays.copyOf(revisions, names.length);
+            }
+
+            revisions[names.length - 1] = pathRevision;
+        }
+        // }}}
+
+        // {{{ getAffectedFiles
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Collection<AffectedArchive> getAffectedFiles() {
+            List<AffectedArchive> files = new ArrayList<AffectedArchive>(names.length);
+
+            for (int i = 0; i < names.length; i++) {
+                files.add(new AffectedArchive(dirs[i] + names[i], revisions[i]));
+            }
+
+            return files;
         }
         // }}}
 
@@ -56,6 +225,11 @@ public class PvcsChangeLogSet extends ChangeLogSet<PvcsChangeLogSet.Entry>
          * {@inheritDoc}
          */
         public User getAuthor() {
+            ChangeLogSet parent = getParent();
+            if (parent instanceof PvcsChangeLogSet) {
+                return ((PvcsChangeLogSet) parent).resolveAuthor(user);
+            }
+
             return User.get(user);
         }
         // }}}
@@ -71,29 +245,107 @@ public class PvcsChangeLogSet extends ChangeLogSet<PvcsChangeLogSet.Entry>
 
         // {{{ getRevision
         public String getRevision() {
-            return revision;
+            return revisions[0];
         }
         // }}}
         
         // {{{ setRevision
         public void setRevision(final String revision) {
-            this.revision = revision;
+            revisions[0] = revision;
         }
         // }}}
         
         // {{{ getModifiedTime
+        /**
+         * Returns the check-in time for display, or null if it is not known.
+         */
         public String getModifiedTime() {
-            return modifiedTime;
+            if (modifiedTime == NO_TIME) {
+                return null;
+            }
+
+            return PvcsDateCodec.LOCAL.formatDisplay(modifiedTime);
         }
         // }}}
         
         // {{{ setModifiedTime
+        /**
+         * Sets the check-in time from its display form.
+         */
         public void setModifiedTime(final String modifiedTime) {
+            if (modifiedTime == null) {
+                this.modifiedTime = NO_TIME;
+                return;
+            }
+
+            this.modifiedTime = PvcsDateCodec.LOCAL.parseDisplay(modifiedTime);
+            if (this.modifiedTime == NO_TIME) {
+                LOGGER.warn("ignoring unparseable check-in time " + modifiedTime);
+            }
+        }
+        // }}}
+
+        // {{{ getTimestamp
+        /**
+         * Returns the check-in time in milliseconds, or -1 if it is not
+         * known.
+         */
+        public long getTimestamp() {
+            return (modifiedTime == NO_TIME) ? -1 : modifiedTime;
+        }
+        // }}}
+
+        // {{{ setTimestamp
+        /**
+         * Sets the check-in time in milliseconds, or {@link #NO_TIME}.
+         */
+        void setTimestamp(final long modifiedTime) {
             this.modifiedTime = modifiedTime;
         }
         // }}}
     }
     
+    /**
+     * An archive affected by an entry, with the revision it was checked in
+     * as.
+     */
+    public static class AffectedArchive implements ChangeLogSet.AffectedFile
+    {
+        private final String path;
+        private final String revision;
+
+        // {{{ constructor
+        public AffectedArchive(final String path, final String revision) {
+            this.path = path;
+            this.revision = revision;
+        }
+        // }}}
+
+        // {{{ getPath
+        /**
+         * {@inheritDoc}
+         */
+        public String getPath() {
+            return path;
+        }
+        // }}}
+
+        // {{{ getRevision
+        public String getRevision() {
+            return revision;
+        }
+        // }}}
+
+        // {{{ getEditType
+        /**
+         * PVCS does not tell additions from edits.
+         */
+        public EditType getEditType() {
+            return EditType.EDIT;
+        }
+        // }}}
+    }
+    
     // {{{ constructor
     /**
      * 
@@ -105,11 +357,78 @@ public class PvcsChangeLogSet extends ChangeLogSet<PvcsChangeLogSet.Entry>
     }
     // }}}
 
+    // {{{ constructor
+    /**
+     * Creates a set backed by a changelog file.
+     *
+     * @param empty true if the file has no entries
+     * @param groupWindow window for grouping records into one entry, in
+     *        milliseconds; 0 disables grouping
+     * @param authorResolver maps author ids to users; may be null
+     */
+    PvcsChangeLogSet(final AbstractBuild build,
+                     final File changelogFile,
+                     final String buildId,
+                     final String lastBuildId,
+                     final boolean empty,
+                     final long groupWindow,
+                     final PvcsAuthorResolver authorResolver)
+    {
+        this(build);
+
+        this.changelogFile = changelogFile;
+        this.buildId = buildId;
+        this.lastBuildId = lastBuildId;
+        this.empty = empty;
+        this.groupWindow = groupWindow;
+        this.authorResolver = authorResolver;
+    }
+    // }}}
+
+    // {{{ getBuildId
+    /**
+     * Returns the id of the build the changelog was written for, or null.
+     */
+    public String getBuildId() {
+        return buildId;
+    }
+    // }}}
+
+    // {{{ getLastBuildId
+    /**
+     * Returns the id of the build the changes are relative to, or null.
+     */
+    public String getLastBuildId() {
+        return lastBuildId;
+    }
+    // }}}
+
+    // {{{ resolveAuthor
+    /**
+     * Returns the user for a PVCS author id, looking each id up only once
+     * per set.
+     */
+    synchronized User resolveAuthor(final String pvcsId) {
+        if (authors.containsKey(pvcsId)) {
+            return authors.get(pvcsId);
+        }
+
+        User author = (authorResolver != null) ? authorResolver.resolve(pvcsId) : User.get(pvcsId);
+        authors.put(pvcsId, author);
+
+        return author;
+    }
+    // }}}
+
     // {{{ isEmptySet
     /**
      * 
      */
     public boolean isEmptySet() {
+        if (changelogFile != null) {
+            return empty;
+        }
+
         return entries.isEmpty();
     }
     // }}}
@@ -119,6 +438,10 @@ public class PvcsChangeLogSet extends ChangeLogSet<PvcsChangeLogSet.Entry>
      * {@inheritDoc}
      */
     public Iterator<PvcsChangeLogSet.Entry> iterator() {
+        if (changelogFile != null) {
+            return new PvcsChangeLogParser.EntryIterator(this, changelogFile, groupWindow);
+        }
+
         return entries.iterator();
     }
     // }}}
@@ -0,0 +1,175 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes <code>pcli vlog</code> records to a changelog file as they
+ * complete, so the size of a changelog is limited by the disk rather than
+ * the heap.
+ * <p>
+ * The output is a <code>changeLog</code> document as described by
+ * <code>changeset.xsd</code>.  Every entry carries all of its elements;
+ * values missing from a record are written empty, except for the check-in
+ * time, without which the record is dropped.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsChangeLogWriter implements PvcsVlogParser.Handler, Closeable
+{
+    private static final Log LOGGER = LogFactory.getLog(PvcsChangeLogWriter.class);
+
+    static final String NAMESPACE = "urn:changelog.pvcs_scm.plugins.hudson";
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private final OutputStream out;
+    private final XMLStreamWriter writer;
+
+    private int entryCount;
+
+    /** First write error; reported by {@link #close}. */
+    private XMLStreamException error;
+
+    // {{{ constructor
+    /**
+     * Writes the document header.
+     *
+     * @param out receives the document; closed by {@link #close}
+     * @param buildId id of the build the changelog belongs to
+     * @param lastBuildId id of the previous build; may be null
+     * @param lastBuildTime start of the previous build; may be null
+     */
+    PvcsChangeLogWriter(final OutputStream out,
+                        final String buildId,
+                        final String lastBuildId,
+                        final Calendar lastBuildTime)
+        throws IOException
+    {
+        this.out = out;
+
+        try {
+            writer = OUTPUT_FACTORY.createXMLStreamWriter(out, ENCODING);
+
+            writer.writeStartDocument(ENCODING, "1.0");
+            writer.writeStartElement("changeLog");
+            writer.writeDefaultNamespace(NAMESPACE);
+
+            if (buildId != null) {
+                writer.writeAttribute("buildId", buildId);
+            }
+
+            if (lastBuildId != null) {
+                writer.writeAttribute("lastBuildId", lastBuildId);
+            }
+
+            if (lastBuildTime != null) {
+                writer.writeAttribute("lastBuildTime", PvcsDateCodec.formatXsd(lastBuildTime.getTimeInMillis()));
+            }
+        } catch (XMLStreamException e) {
+            out.close();
+            throw new IOException("unable to start changelog: " + e.getMessage(), e);
+        }
+    }
+    // }}}
+
+    // {{{ getEntryCount
+    /**
+     * Returns the number of entries written so far.
+     */
+    int getEntryCount() {
+        return entryCount;
+    }
+    // }}}
+
+    // {{{ record
+    /**
+     * {@inheritDoc}
+     */
+    public void record(final String fileName,
+                       final String revision,
+                       final Date modifiedTime,
+                       final String userName,
+                       final String comment)
+    {
+        if (error != null) {
+            return;
+        }
+
+        if (modifiedTime == null) {
+            LOGGER.warn("dropping change log record without check-in time for " + fileName);
+            return;
+        }
+
+        try {
+            writer.writeStartElement("entry");
+
+            writeElement("fileName", fileName);
+            writeElement("revision", revision);
+            writeElement("modifiedTime", PvcsDateCodec.formatXsd(modifiedTime.getTime()));
+            writeElement("comment", comment);
+            writeElement("userName", userName);
+
+            writer.writeEndElement();
+
+            entryCount++;
+        } catch (XMLStreamException e) {
+            LOGGER.error("unable to write change log entry for " + fileName, e);
+            error = e;
+        }
+    }
+    // }}}
+
+    // {{{ writeElement
+    private void writeElement(final String name, final String value) throws XMLStreamException {
+        writer.writeStartElement(name);
+
+        if (value != null) {
+            writer.writeCharacters(value);
+        }
+
+        writer.writeEndElement();
+    }
+    // }}}
+
+    // {{{ close
+    /**
+     * Ends the document and closes the stream.
+     *
+     * @throws IOException if any entry could not be written
+     */
+    public void close() throws IOException {
+        try {
+            if (error == null) {
+                writer.writeEndElement();
+                writer.writeEndDocument();
+            }
+
+            writer.close();
+        } catch (XMLStreamException e) {
+            if (error == null) {
+                error = e;
+            }
+        } finally {
+            out.close();
+        }
+
+        if (error != null) {
+            throw new IOException("unable to write changelog: " + error.getMessage(), error);
+        }
+    }
+    // }}}
+}
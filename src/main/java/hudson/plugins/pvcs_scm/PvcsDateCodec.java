@@ -0,0 +1,584 @@
+package hudson.plugins.pvcs_scm;
+
+import java.text.DateFormatSymbols;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Reads and writes every timestamp format the plugin deals with:
+ * <ul>
+ * <li>check-in times in <code>pcli vlog</code> output, as either
+ *     <code>MMM dd yyyy HH:mm:ss</code> or
+ *     <code>dd MMM yyyy HH:mm:ss</code>, in the PVCS server's time zone
+ *     and locale;</li>
+ * <li>the <code>MM/dd/yyyy hh:mm:ss aa</code> window of pcli
+ *     commands;</li>
+ * <li>the <code>yyyy/MM/dd HH:mm:ss</code> times shown on change
+ *     pages;</li>
+ * <li>the <code>xsd:dateTime</code> values of changelog files.</li>
+ * </ul>
+ * A codec is immutable and may be shared by any number of threads.
+ * Parsing neither throws nor allocates calendars; a malformed timestamp is
+ * reported as {@link #NO_TIME}.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsDateCodec
+{
+    /** Result of parsing a malformed timestamp. */
+    static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final char[][] ENGLISH_MONTHS = shortMonths(Locale.ENGLISH);
+
+    /** Codec for the JVM's time zone and locale. */
+    static final PvcsDateCodec LOCAL = new PvcsDateCodec(TimeZone.getDefault(), Locale.getDefault());
+
+    private final TimeZone timeZone;
+    private final char[][] months;
+    private final String[] amPm;
+
+    // {{{ constructor
+    PvcsDateCodec(final TimeZone timeZone, final Locale locale) {
+        // TimeZone is mutable; keep a copy nobody else can reach
+        this.timeZone = (TimeZone) timeZone.clone();
+        this.months = shortMonths(locale);
+        this.amPm = new DateFormatSymbols(locale).getAmPmStrings();
+    }
+    // }}}
+
+    // {{{ forServer
+    /**
+     * Returns the codec for a PVCS server.
+     *
+     * @param timeZoneId the server's time zone; null for the JVM's
+     * @param localeName the server's locale, such as <code>de_DE</code>;
+     *        null for the JVM's
+     */
+    static PvcsDateCodec forServer(final String timeZoneId, final String localeName) {
+        TimeZone timeZone = (timeZoneId != null) ? TimeZone.getTimeZone(timeZoneId) : TimeZone.getDefault();
+
+        Locale locale = Locale.getDefault();
+        if (localeName != null) {
+            String[] parts = (localeName + "__").split("_", 3);
+            locale = new Locale(parts[0], parts[1], parts[2].replaceAll("_+$", ""));
+        }
+
+        return new PvcsDateCodec(timeZone, locale);
+    }
+    // }}}
+
+    // {{{ getTimeZone
+    TimeZone getTimeZone() {
+        return (TimeZone) timeZone.clone();
+    }
+    // }}}
+
+    // {{{ newVlogDates
+    /**
+     * Returns a parser for the check-in times of one vlog output stream.
+     */
+    VlogDates newVlogDates() {
+        return new VlogDates();
+    }
+    // }}}
+
+    // {{{ formatCommand
+    /**
+     * Formats a time for the <code>-ds</code> and <code>-de</code> options
+     * of pcli.
+     */
+    String formatCommand(final long millis) {
+        int[] f = fields(millis, timeZone);
+        int hour = f[3] % 12;
+
+        StringBuilder sb = new StringBuilder(24);
+        pad(sb, f[1], 2).append('/');
+        pad(sb, f[2], 2).append('/');
+        pad(sb, f[0], 4).append(' ');
+        pad(sb, (hour == 0) ? 12 : hour, 2).append(':');
+        pad(sb, f[4], 2).append(':');
+        pad(sb, f[5], 2).append(' ');
+
+        return sb.append(amPm[(f[3] < 12) ? 0 : 1]).toString();
+    }
+    // }}}
+
+    // {{{ formatDisplay
+    /**
+     * Formats a time as <code>yyyy/MM/dd HH:mm:ss</code>.
+     */
+    String formatDisplay(final long millis) {
+        int[] f = fields(millis, timeZone);
+
+        StringBuilder sb = new StringBuilder(19);
+        pad(sb, f[0], 4).append('/');
+        pad(sb, f[1], 2).append('/');
+        pad(sb, f[2], 2).append(' ');
+        pad(sb, f[3], 2).append(':');
+        pad(sb, f[4], 2).append(':');
+
+        return pad(sb, f[5], 2).toString();
+    }
+    // }}}
+
+    // {{{ parseDisplay
+    /**
+     * Parses a time formatted by {@link #formatDisplay}.
+     */
+    long parseDisplay(final String text) {
+        Scanner s = new Scanner(text.toCharArray(), 0, text.length());
+
+        int year = s.number(4, '/');
+        int month = s.number(2, '/');
+        int day = s.number(2, ' ');
+        int hour = s.number(2, ':');
+        int minute = s.number(2, ':');
+        int second = s.number(2, '\0');
+
+        if (s.failed) {
+            return NO_TIME;
+        }
+
+        return toMillis(year, month, day, hour, minute, second, 0, timeZone);
+    }
+    // }}}
+
+    // {{{ formatXsd
+    /**
+     * Formats a time as a UTC <code>xsd:dateTime</code>, such as
+     * <code>2008-10-16T12:44:58Z</code>.
+     */
+    static String formatXsd(final long millis) {
+        int[] f = fields(millis, UTC);
+
+        StringBuilder sb = new StringBuilder(20);
+        pad(sb, f[0], 4).append('-');
+        pad(sb, f[1], 2).append('-');
+        pad(sb, f[2], 2).append('T');
+        pad(sb, f[3], 2).append(':');
+        pad(sb, f[4], 2).append(':');
+
+        return pad(sb, f[5], 2).append('Z').toString();
+    }
+    // }}}
+
+    // {{{ parseXsd
+    /**
+     * Parses an <code>xsd:dateTime</code> with optional fractional seconds
+     * and zone.  Without a zone, the JVM's time zone is assumed, as the
+     * XML datatype classes do.
+     */
+    static long parseXsd(final String text) {
+        String trimmed = text.trim();
+        Scanner s = new Scanner(trimmed.toCharArray(), 0, trimmed.length());
+
+        int year = s.number(4, '-');
+        int month = s.number(2, '-');
+        int day = s.number(2, 'T');
+        int hour = s.number(2, ':');
+        int minute = s.number(2, ':');
+        int second = s.number(2, '\0');
+
+        int millis = 0;
+        if (s.skip('.')) {
+            int scale = 100;
+            while (s.hasDigit()) {
+                millis += s.digit() * scale;
+                scale /= 10;
+            }
+        }
+
+        if (s.failed) {
+            return NO_TIME;
+        }
+
+        if (s.atEnd()) {
+            return toMillis(year, month, day, hour, minute, second, millis, TimeZone.getDefault());
+        }
+
+        long utc = toMillis(year, month, day, hour, minute, second, millis, null);
+        if (utc == NO_TIME) {
+            return NO_TIME;
+        }
+
+        if (s.skip('Z')) {
+            return s.atEnd() ? utc : NO_TIME;
+        }
+
+        int sign = s.skip('+') ? 1 : (s.skip('-') ? -1 : 0);
+        int offsetHours = s.number(2, ':');
+        int offsetMinutes = s.number(2, '\0');
+
+        if ((sign == 0) || s.failed || ! s.atEnd()) {
+            return NO_TIME;
+        }
+
+        return utc - sign * (offsetHours * 60L + offsetMinutes) * 60000L;
+    }
+    // }}}
+
+    // {{{ toMillis
+    /**
+     * Returns the instant of a wall-clock time, or {@link #NO_TIME} if a
+     * field is out of range.
+     *
+     * @param zone the wall clock's time zone; null for UTC
+     */
+    private static long toMillis(final int year,
+                                 final int month,
+                                 final int day,
+                                 final int hour,
+                                 final int minute,
+                                 final int second,
+                                 final int millis,
+                                 final TimeZone zone)
+    {
+        if ((month < 1) || (month > 12) || (day < 1) || (day > 31)
+            || (hour < 0) || (hour > 23) || (minute < 0) || (minute > 59) || (second < 0) || (second > 59))
+        {
+            return NO_TIME;
+        }
+
+        long local = daysFromCivil(year, month, day) * MILLIS_PER_DAY
+            + ((hour * 60L + minute) * 60L + second) * 1000L + millis;
+
+        if (zone == null) {
+            return local;
+        }
+
+        // the offset at the instant itself, which may differ from the one at
+        // the same wall-clock time in UTC around a DST change
+        long guess = local - zone.getOffset(local - zone.getRawOffset());
+        return local - zone.getOffset(guess);
+    }
+    // }}}
+
+    // {{{ fields
+    /**
+     * Returns year, month, day, hour, minute and second of an instant in
+     * the time zone.
+     */
+    private static int[] fields(final long millis, final TimeZone zone) {
+        long local = millis + zone.getOffset(millis);
+
+        long days = floorDiv(local, MILLIS_PER_DAY);
+        int secondOfDay = (int) ((local - days * MILLIS_PER_DAY) / 1000L);
+
+        int[] f = civilFromDays(days);
+        return new int[] { f[0], f[1], f[2], secondOfDay / 3600, (secondOfDay / 60) % 60, secondOfDay % 60 };
+    }
+    // }}}
+
+    // {{{ daysFromCivil
+    /**
+     * Returns the number of days from 1970-01-01 to the date in the
+     * proleptic Gregorian calendar.
+     */
+    static long daysFromCivil(final int year, final int month, final int day) {
+        long y = (month <= 2) ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146097 + dayOfEra - 719468;
+    }
+    // }}}
+
+    // {{{ civilFromDays
+    /**
+     * The inverse of {@link #daysFromCivil}; returns year, month and day.
+     */
+    static int[] civilFromDays(final long days) {
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) ((mp < 10) ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + ((month <= 2) ? 1 : 0));
+
+        return new int[] { year, month, day };
+    }
+    // }}}
+
+    // {{{ floorDiv
+    private static long floorDiv(final long a, final long b) {
+        long q = a / b;
+        return ((a % b != 0) && ((a < 0) != (b < 0))) ? q - 1 : q;
+    }
+    // }}}
+
+    // {{{ pad
+    private static StringBuilder pad(final StringBuilder sb, final int value, final int width) {
+        String digits = Integer.toString(value);
+        for (int i = digits.length(); i < width; i++) {
+            sb.append('0');
+        }
+
+        return sb.append(digits);
+    }
+    // }}}
+
+    // {{{ shortMonths
+    /**
+     * Returns the lower-case abbreviated month names of the locale, without
+     * trailing periods.
+     */
+    private static char[][] shortMonths(final Locale locale) {
+        String[] names = new DateFormatSymbols(locale).getShortMonths();
+
+        char[][] months = new char[12][];
+        for (int i = 0; i < 12; i++) {
+            String name = names[i].toLowerCase(locale);
+            if (name.endsWith(".")) {
+                name = name.substring(0, name.length() - 1);
+            }
+
+            months[i] = name.toCharArray();
+        }
+
+        return months;
+    }
+    // }}}
+
+    // {{{ month
+    /**
+     * Returns the month (1-12) named in <code>buf</code>, or 0.
+     */
+    private static int month(final char[][] months, final char[] buf, final int off, final int len) {
+        for (int i = 0; i < months.length; i++) {
+            char[] name = months[i];
+            if (name.length != len) {
+                continue;
+            }
+
+            int j = 0;
+            while ((j < len) && (Character.toLowerCase(buf[off + j]) == name[j])) {
+                j++;
+            }
+
+            if (j == len) {
+                return i + 1;
+            }
+        }
+
+        return 0;
+    }
+    // }}}
+
+    /**
+     * Parses the check-in times of one vlog output stream.  The field order
+     * is detected from the first time and kept for the rest of the stream;
+     * it is only looked at again if a time doesn't fit it.  Not thread-safe.
+     */
+    final class VlogDates
+    {
+        private static final int UNKNOWN = 0;
+        private static final int MONTH_FIRST = 1;
+        private static final int DAY_FIRST = 2;
+
+        private int order = UNKNOWN;
+
+        private final Scanner scanner = new Scanner(null, 0, 0);
+
+        // {{{ parse
+        /**
+         * Parses a check-in time, such as <code>Oct 16 2008 12:44:58</code>
+         * or <code>16 Oct 2008 12:44:58</code>.
+         */
+        long parse(final char[] buf, final int off, final int len) {
+            if (order != UNKNOWN) {
+                long time = parse(buf, off, len, order);
+                if (time != NO_TIME) {
+                    return time;
+                }
+            }
+
+            int detected = detect(buf, off, len);
+            if ((detected == UNKNOWN) || (detected == order)) {
+                return NO_TIME;
+            }
+
+            order = detected;
+            return parse(buf, off, len, order);
+        }
+        // }}}
+
+        // {{{ parse
+        long parse(final String text) {
+            return parse(text.toCharArray(), 0, text.length());
+        }
+        // }}}
+
+        // {{{ detect
+        private int detect(final char[] buf, final int off, final int len) {
+            for (int i = off; i < off + len; i++) {
+                if (Character.isLetter(buf[i])) {
+                    return MONTH_FIRST;
+                } else if (Character.isDigit(buf[i])) {
+                    return DAY_FIRST;
+                }
+            }
+
+            return UNKNOWN;
+        }
+        // }}}
+
+        // {{{ parse
+        private long parse(final char[] buf, final int off, final int len, final int fieldOrder) {
+            Scanner s = scanner.reset(buf, off, len);
+
+            s.skipSpaces();
+
+            int month;
+            int day;
+            if (fieldOrder == MONTH_FIRST) {
+                month = s.monthName(months);
+                s.skipSpaces();
+                day = s.number(2, ' ');
+            } else {
+                day = s.number(2, ' ');
+                s.skipSpaces();
+                month = s.monthName(months);
+            }
+
+            s.skipSpaces();
+            int year = s.number(4, ' ');
+            s.skipSpaces();
+            int hour = s.number(2, ':');
+            int minute = s.number(2, ':');
+            int second = s.number(2, '\0');
+
+            if (s.failed) {
+                return NO_TIME;
+            }
+
+            return toMillis(year, month, day, hour, minute, second, 0, timeZone);
+        }
+        // }}}
+    }
+
+    /**
+     * Reads the fields of a timestamp; any mismatch sets {@link #failed}
+     * instead of throwing.
+     */
+    private static final class Scanner
+    {
+        private char[] buf;
+        private int end;
+        private int pos;
+
+        boolean failed;
+
+        // {{{ constructor
+        Scanner(final char[] buf, final int off, final int len) {
+            reset(buf, off, len);
+        }
+        // }}}
+
+        // {{{ reset
+        Scanner reset(final char[] buf, final int off, final int len) {
+            this.buf = buf;
+            this.pos = off;
+            this.end = off + len;
+            this.failed = false;
+
+            return this;
+        }
+        // }}}
+
+        // {{{ number
+        /**
+         * Reads one to <code>maxDigits</code> digits, then the separator
+         * unless it is <code>'\0'</code>.
+         */
+        int number(final int maxDigits, final char separator) {
+            int value = 0;
+            int digits = 0;
+
+            while ((digits < maxDigits) && hasDigit()) {
+                value = value * 10 + digit();
+                digits++;
+            }
+
+            if ((digits == 0) || ((separator != '\0') && ! skip(separator))) {
+                failed = true;
+            }
+
+            return value;
+        }
+        // }}}
+
+        // {{{ monthName
+        /**
+         * Reads a month name, in the given names or in English.
+         */
+        int monthName(final char[][] months) {
+            int start = pos;
+            while ((pos < end) && Character.isLetter(buf[pos])) {
+                pos++;
+            }
+
+            int month = month(months, buf, start, pos - start);
+            if (month == 0) {
+                month = month(ENGLISH_MONTHS, buf, start, pos - start);
+            }
+
+            // "oct." in some locales
+            skip('.');
+
+            if (month == 0) {
+                failed = true;
+            }
+
+            return month;
+        }
+        // }}}
+
+        // {{{ hasDigit
+        boolean hasDigit() {
+            return (pos < end) && (buf[pos] >= '0') && (buf[pos] <= '9');
+        }
+        // }}}
+
+        // {{{ digit
+        int digit() {
+            return buf[pos++] - '0';
+        }
+        // }}}
+
+        // {{{ skip
+        boolean skip(final char c) {
+            if ((pos < end) && (buf[pos] == c)) {
+                pos++;
+                return true;
+            }
+
+            return false;
+        }
+        // }}}
+
+        // {{{ skipSpaces
+        void skipSpaces() {
+            while ((pos < end) && (buf[pos] == ' ')) {
+                pos++;
+            }
+        }
+        // }}}
+
+        // {{{ atEnd
+        boolean atEnd() {
+            return pos == end;
+        }
+        // }}}
+    }
+}
@@ -0,0 +1,131 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The thread pool shared by all concurrent pcli work of the plugin, so that
+ * sharded vlogs and gets of many jobs never start more than a fixed number
+ * of threads between them.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsExecutors
+{
+    /** Size of the shared pool. */
+    private static final int THREADS =
+        Integer.getInteger(PvcsExecutors.class.getName() + ".threads", 16);
+
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    /** Runs the periodic checks on running pcli processes. */
+    private static final ScheduledThreadPoolExecutor SCHEDULER;
+
+    static {
+        EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS,
+                                          60L, TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue<Runnable>(),
+                                          new NamingThreadFactory(new DaemonThreadFactory(), "PVCS worker"));
+        EXECUTOR.allowCoreThreadTimeOut(true);
+
+        SCHEDULER = new ScheduledThreadPoolExecutor(1, new NamingThreadFactory(new DaemonThreadFactory(),
+                                                                               "PVCS watchdog"));
+    }
+
+    private PvcsExecutors() {
+    }
+
+    // {{{ schedule
+    /**
+     * Runs the task every <code>periodMillis</code> until it is cancelled.
+     * All such tasks share one thread.
+     */
+    static ScheduledFuture<?> schedule(final Runnable task, final long periodMillis) {
+        return SCHEDULER.scheduleWithFixedDelay(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+    // }}}
+
+    // {{{ invokeAll
+    /**
+     * Runs the tasks on the shared pool, at most <code>parallelism</code> of
+     * them at a time, and returns their results in task order.  The first
+     * failure cancels the remaining tasks and is rethrown.
+     */
+    static <T> List<T> invokeAll(final List<? extends Callable<T>> tasks, final int parallelism)
+        throws IOException, InterruptedException
+    {
+        final List<T> results = new ArrayList<T>(Collections.<T>nCopies(tasks.size(), null));
+        final AtomicInteger next = new AtomicInteger();
+
+        List<Future<Void>> workers = new ArrayList<Future<Void>>();
+        for (int w = 0; w < Math.min(parallelism, tasks.size()); w++) {
+            workers.add(EXECUTOR.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    for (int i = next.getAndIncrement(); i < tasks.size(); i = next.getAndIncrement()) {
+                        T result = tasks.get(i).call();
+
+                        synchronized (results) {
+                            results.set(i, result);
+                        }
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        boolean completed = false;
+        try {
+            for (Future<Void> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+
+                    throw new IOException("task failed: " + cause, cause);
+                }
+            }
+
+            completed = true;
+        } finally {
+            if (! completed) {
+                // don't start any more tasks, and stop the running ones
+                next.set(tasks.size());
+
+                for (Future<Void> worker : workers) {
+                    worker.cancel(true);
+                }
+            }
+        }
+
+        synchronized (results) {
+            return new ArrayList<T>(results);
+        }
+    }
+    // }}}
+}
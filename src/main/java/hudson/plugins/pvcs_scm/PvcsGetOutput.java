@@ -0,0 +1,175 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.AbortException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Copies the output of <code>pcli get</code> to the build log line by line
+ * as it arrives, counting the workfiles written and watching for error
+ * messages.  By default the first error stops the get.  The workfile names
+ * can be collected, too.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsGetOutput
+{
+    private static final Log LOGGER = LogFactory.getLog(PvcsGetOutput.class);
+
+    /** Lines of get output that report an error. */
+    private static final Pattern ERROR_LINE =
+        Pattern.compile(System.getProperty(PvcsGetOutput.class.getName() + ".errorPattern",
+                                           "(?i)^\\s*(\\S+:\\s*)?(error|fatal|cannot|can't|unable to)\\b"));
+
+    /** Let a get run to its end despite error messages. */
+    private static final boolean KEEP_GOING = Boolean.getBoolean(PvcsGetOutput.class.getName() + ".keepGoing");
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final PrintStream log;
+    private final Collection<String> workfiles;
+    private final long start = System.nanoTime();
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+
+    private int files;
+    private long bytes;
+    private int errors;
+
+    // {{{ constructor
+    PvcsGetOutput(final PrintStream log) {
+        this(log, null);
+    }
+    // }}}
+
+    // {{{ constructor
+    /**
+     * @param workfiles receives the name of each workfile written, as pcli
+     *        prints it; may be null.  Adds to it are synchronized on it
+     */
+    PvcsGetOutput(final PrintStream log, final Collection<String> workfiles) {
+        this.log = log;
+        this.workfiles = workfiles;
+    }
+    // }}}
+
+    // {{{ read
+    /**
+     * Copies the output to the log until it ends.
+     *
+     * @throws AbortException at the first error message, unless
+     *         <code>keepGoing</code> is set; the get should be stopped
+     */
+    void read(final InputStream in) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+
+        for (int len = in.read(buf); len >= 0; len = in.read(buf)) {
+            bytes += len;
+
+            int from = 0;
+            for (int i = 0; i < len; i++) {
+                if (buf[i] == '\n') {
+                    append(buf, from, i + 1 - from);
+                    from = i + 1;
+
+                    endLine();
+                }
+            }
+
+            append(buf, from, len - from);
+        }
+
+        if (lineLength > 0) {
+            endLine();
+        }
+    }
+    // }}}
+
+    // {{{ append
+    private void append(final byte[] buf, final int off, final int len) {
+        if (lineLength + len > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + len));
+        }
+
+        System.arraycopy(buf, off, line, lineLength, len);
+        lineLength += len;
+    }
+    // }}}
+
+    // {{{ endLine
+    private void endLine() throws AbortException {
+        // whole lines only, so that concurrent gets don't mix within a line
+        synchronized (log) {
+            log.write(line, 0, lineLength);
+            if (line[lineLength - 1] != '\n') {
+                log.println();
+            }
+        }
+
+        String text = new String(line, 0, lineLength);
+        lineLength = 0;
+
+        int count = PvcsScm.countWorkfiles(text);
+        if (count > 0) {
+            files += count;
+
+            if (workfiles != null) {
+                String workfile = PvcsScm.parseWorkfile(text);
+
+                synchronized (workfiles) {
+                    workfiles.add(workfile);
+                }
+            }
+        } else if (ERROR_LINE.matcher(text).find()) {
+            errors++;
+
+            LOGGER.error("pcli get reported: " + text.trim());
+
+            if (! KEEP_GOING) {
+                throw new AbortException("pcli get failed: " + text.trim());
+            }
+        }
+    }
+    // }}}
+
+    // {{{ getFiles
+    /**
+     * Returns the number of workfiles written so far.
+     */
+    int getFiles() {
+        return files;
+    }
+    // }}}
+
+    // {{{ getErrors
+    /**
+     * Returns the number of error messages seen so far.
+     */
+    int getErrors() {
+        return errors;
+    }
+    // }}}
+
+    // {{{ printSummary
+    /**
+     * Prints the number of files fetched and the throughput.
+     */
+    void printSummary() {
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+
+        log.println(String.format("fetched %d file(s), %d KB of pcli output, in %.1f s (%.0f files/s)%s",
+                                  files, bytes / 1024, seconds, files / seconds,
+                                  (errors > 0) ? "; " + errors + " error(s)" : ""));
+    }
+    // }}}
+}
@@ -0,0 +1,106 @@
+package hudson.plugins.pvcs_scm;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The pcli calls of one job: totals since startup and the most recent calls
+ * themselves.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+@ExportedBean
+public final class PvcsJobStats
+{
+    /** Number of recent calls kept per job. */
+    private static final int HISTORY_SIZE =
+        Integer.getInteger(PvcsJobStats.class.getName() + ".history", 50);
+
+    private final String jobName;
+
+    /** Newest first. */
+    private final LinkedList<PvcsCallStats> history = new LinkedList<PvcsCallStats>();
+
+    private long calls;
+    private long wallMillis;
+    private long bytes;
+    private long entries;
+    private long files;
+
+    // {{{ constructor
+    PvcsJobStats(final String jobName) {
+        this.jobName = jobName;
+    }
+    // }}}
+
+    // {{{ add
+    synchronized void add(final PvcsCallStats call) {
+        history.addFirst(call);
+        while (history.size() > HISTORY_SIZE) {
+            history.removeLast();
+        }
+
+        calls++;
+        wallMillis += Math.max(0, call.getWallMillis());
+        bytes += call.getBytes();
+        entries += call.getEntries();
+        files += call.getFiles();
+    }
+    // }}}
+
+    // {{{ getJobName
+    @Exported
+    public String getJobName() {
+        return jobName;
+    }
+    // }}}
+
+    // {{{ getCalls
+    /**
+     * Returns the most recent calls, newest first.
+     */
+    @Exported(inline = true)
+    public synchronized List<PvcsCallStats> getCalls() {
+        return new ArrayList<PvcsCallStats>(history);
+    }
+    // }}}
+
+    // {{{ getTotalCalls
+    @Exported
+    public synchronized long getTotalCalls() {
+        return calls;
+    }
+    // }}}
+
+    // {{{ getTotalWallMillis
+    @Exported
+    public synchronized long getTotalWallMillis() {
+        return wallMillis;
+    }
+    // }}}
+
+    // {{{ getTotalBytes
+    @Exported
+    public synchronized long getTotalBytes() {
+        return bytes;
+    }
+    // }}}
+
+    // {{{ getTotalEntries
+    @Exported
+    public synchronized long getTotalEntries() {
+        return entries;
+    }
+    // }}}
+
+    // {{{ getTotalFiles
+    @Exported
+    public synchronized long getTotalFiles() {
+        return files;
+    }
+    // }}}
+}
@@ -0,0 +1,224 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reduces the "Version labels:" or "Groups:" blocks of a
+ * <code>pcli vlog</code> to a short fingerprint of which revision of each
+ * archive carries one label or promotion group.  The fingerprint changes
+ * when the label or group moves to another revision, is applied to or
+ * removed from an archive, or an archive carrying it appears or goes;
+ * checking in new revisions alone leaves it alone.  Archives rejected by
+ * the path filters are left out.
+ * <p>
+ * Each archive and revision pair is hashed on its own and the hashes are
+ * summed, so the fingerprint does not depend on the order of the archives
+ * and nothing but two sums is kept while parsing.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsLabelFingerprint
+{
+    private static final Log LOGGER = LogFactory.getLog(PvcsLabelFingerprint.class);
+
+    private static final String ARCHIVE = "Archive:";
+    private static final String VERSION_LABELS = "Version labels:";
+    private static final String GROUPS = "Groups:";
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** Seed of the second hash, so the two sums are independent. */
+    private static final long SECOND_SEED = 0x9e3779b97f4a7c15L;
+
+    private enum Section
+    {
+        /** Any other part of an archive's header or revisions. */
+        OTHER,
+
+        /** Inside the "Version labels:" block. */
+        LABELS,
+
+        /** Inside the "Groups:" block. */
+        GROUPS
+    }
+
+    private final String archiveRoot;
+    private final PvcsPathFilter filter;
+    private final String name;
+    private final boolean group;
+
+    private String archive;
+    private String revision;
+    private Section section = Section.OTHER;
+
+    private int archiveCount;
+    private int count;
+    private long sum1;
+    private long sum2;
+
+    // {{{ constructor
+    /**
+     * @param filter archives to include; null for all of them
+     * @param name the version label or promotion group to follow
+     * @param group true if <code>name</code> is a promotion group
+     */
+    PvcsLabelFingerprint(final String archiveRoot,
+                         final PvcsPathFilter filter,
+                         final String name,
+                         final boolean group)
+    {
+        this.archiveRoot = archiveRoot;
+        this.filter = filter;
+        this.name = name;
+        this.group = group;
+    }
+    // }}}
+
+    // {{{ parse
+    /**
+     * Consumes the reader to its end.  The reader is not closed.
+     */
+    void parse(final Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (line.startsWith(ARCHIVE)) {
+                finishArchive();
+
+                archive = PvcsVlogParser.archiveName(line, archiveRoot);
+                section = Section.OTHER;
+                archiveCount++;
+
+                if ((filter != null) && ! filter.accepts(archive)) {
+                    LOGGER.trace("skipping filtered archive " + archive);
+
+                    // ignore everything until the next archive
+                    archive = null;
+                }
+            } else if (archive == null) {
+                continue;
+            } else if (line.startsWith(VERSION_LABELS)) {
+                section = Section.LABELS;
+            } else if (line.startsWith(GROUPS)) {
+                section = Section.GROUPS;
+
+                // a single group may follow on the same line
+                entry(line.substring(GROUPS.length()), Section.GROUPS);
+            } else if ((line.length() > 0) && Character.isWhitespace(line.charAt(0))) {
+                entry(line, section);
+            } else {
+                section = Section.OTHER;
+            }
+        }
+
+        finishArchive();
+    }
+    // }}}
+
+    // {{{ entry
+    /**
+     * Takes the revision from a <code>"NAME" = revision</code> line if it
+     * names what is followed.
+     */
+    private void entry(final String line, final Section in) {
+        if ((revision != null) || (in != (group ? Section.GROUPS : Section.LABELS))) {
+            return;
+        }
+
+        int eq = line.lastIndexOf('=');
+        if (eq == -1) {
+            return;
+        }
+
+        String entryName = line.substring(0, eq).trim();
+        if ((entryName.length() >= 2) && entryName.startsWith("\"") && entryName.endsWith("\"")) {
+            entryName = entryName.substring(1, entryName.length() - 1);
+        }
+
+        if (entryName.equalsIgnoreCase(name)) {
+            revision = line.substring(eq + 1).trim();
+        }
+    }
+    // }}}
+
+    // {{{ finishArchive
+    private void finishArchive() {
+        if ((archive != null) && (revision != null)) {
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace(name + " is on " + archive + " " + revision);
+            }
+
+            String key = archive + '\0' + revision;
+
+            sum1 += mix(hash(key, FNV_OFFSET));
+            sum2 += mix(hash(key, FNV_OFFSET ^ SECOND_SEED));
+            count++;
+        }
+
+        archive = null;
+        revision = null;
+    }
+    // }}}
+
+    // {{{ getArchiveCount
+    /**
+     * Returns the number of archives seen.
+     */
+    int getArchiveCount() {
+        return archiveCount;
+    }
+    // }}}
+
+    // {{{ getCount
+    /**
+     * Returns the number of archives carrying the label or group.
+     */
+    int getCount() {
+        return count;
+    }
+    // }}}
+
+    // {{{ toString
+    /**
+     * Returns the fingerprint: the number of archives and 128 bits of hash.
+     */
+    @Override
+    public String toString() {
+        return count + ":" + String.format("%016x%016x", sum1, sum2);
+    }
+    // }}}
+
+    // {{{ hash
+    private static long hash(final String key, final long seed) {
+        long h = seed;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= FNV_PRIME;
+        }
+
+        return h;
+    }
+    // }}}
+
+    // {{{ mix
+    /**
+     * Spreads the bits of a hash, so that sums of similar keys differ.
+     */
+    private static long mix(final long h) {
+        long x = h;
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+
+        return x;
+    }
+    // }}}
+}
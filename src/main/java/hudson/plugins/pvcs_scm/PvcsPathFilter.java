@@ -0,0 +1,136 @@
+package hudson.plugins.pvcs_scm;
+
+import java.util.regex.Pattern;
+
+/**
+ * Decides which archives of a module take part in changelogs and polling.
+ * <p>
+ * Patterns are Ant-style: <code>*</code> matches within a directory,
+ * <code>**</code> across directories, <code>?</code> a single character, and
+ * a pattern ending in a separator covers everything below that directory.
+ * They are matched case-insensitively, as PVCS does, against the archive's
+ * path relative to the archive root, with <code>/</code> as the separator.
+ * Each set of patterns is compiled into a single regular expression.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsPathFilter
+{
+    /** Included patterns; null to include everything. */
+    private final Pattern includes;
+
+    /** Excluded patterns; null to exclude nothing. */
+    private final Pattern excludes;
+
+    // {{{ constructor
+    private PvcsPathFilter(final Pattern includes, final Pattern excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+    // }}}
+
+    // {{{ compile
+    /**
+     * Returns the filter for the given patterns, separated by commas or line
+     * breaks, or null if there are none.
+     */
+    static PvcsPathFilter compile(final String includedPaths, final String excludedPaths) {
+        Pattern includes = toPattern(includedPaths);
+        Pattern excludes = toPattern(excludedPaths);
+
+        if ((includes == null) && (excludes == null)) {
+            return null;
+        }
+
+        return new PvcsPathFilter(includes, excludes);
+    }
+    // }}}
+
+    // {{{ accepts
+    /**
+     * Returns true if the archive at <code>path</code> is included and not
+     * excluded.
+     */
+    boolean accepts(final String path) {
+        String normalized = path.replace('\\', '/');
+
+        if ((includes != null) && ! includes.matcher(normalized).matches()) {
+            return false;
+        }
+
+        return (excludes == null) || ! excludes.matcher(normalized).matches();
+    }
+    // }}}
+
+    // {{{ toPattern
+    private static Pattern toPattern(final String patterns) {
+        if (patterns == null) {
+            return null;
+        }
+
+        StringBuilder regex = new StringBuilder();
+        for (String pattern : patterns.split("[,\\r\\n]+")) {
+            pattern = pattern.trim().replace('\\', '/');
+
+            if (pattern.length() == 0) {
+                continue;
+            }
+
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+
+            if (pattern.endsWith("/")) {
+                pattern += "**";
+            }
+
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+
+            regex.append("(?:").append(globToRegex(pattern)).append(')');
+        }
+
+        if (regex.length() == 0) {
+            return null;
+        }
+
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+    // }}}
+
+    // {{{ globToRegex
+    private static String globToRegex(final String glob) {
+        StringBuilder regex = new StringBuilder();
+
+        int i = 0;
+        while (i < glob.length()) {
+            char c = glob.charAt(i);
+
+            if (glob.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += 3;
+            } else if (glob.startsWith("**", i)) {
+                regex.append(".*");
+                i += 2;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+                i++;
+            } else if (c == '?') {
+                regex.append("[^/]");
+                i++;
+            } else {
+                int end = i;
+                while ((end < glob.length()) && (glob.charAt(end) != '*') && (glob.charAt(end) != '?')) {
+                    end++;
+                }
+
+                regex.append(Pattern.quote(glob.substring(i, end)));
+                i = end;
+            }
+        }
+
+        return regex.toString();
+    }
+    // }}}
+}
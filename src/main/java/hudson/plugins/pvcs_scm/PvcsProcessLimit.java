@@ -0,0 +1,151 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.Launcher;
+
+import hudson.model.TaskListener;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bounds the number of pcli processes running at once, on the whole
+ * controller and on each node.  Permits are handed out in request order,
+ * so a busy job cannot starve the others.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsProcessLimit
+{
+    private static final Log LOGGER = LogFactory.getLog(PvcsProcessLimit.class);
+
+    /** Maximum number of pcli processes of all jobs; 0 for no limit. */
+    private static final int TOTAL =
+        Integer.getInteger(PvcsProcessLimit.class.getName() + ".total", 16);
+
+    /** Maximum number of pcli processes on one node; 0 for no limit. */
+    private static final int PER_NODE =
+        Integer.getInteger(PvcsProcessLimit.class.getName() + ".perNode", 8);
+
+    private static final Semaphore TOTAL_PERMITS = (TOTAL > 0) ? new Semaphore(TOTAL, true) : null;
+
+    /** Per-node permits, by the channel of the node's launcher. */
+    private static final Map<Object, Semaphore> NODE_PERMITS = new WeakHashMap<Object, Semaphore>();
+
+    /**
+     * The permits held for one process.
+     */
+    static final class Permit
+    {
+        private final Semaphore node;
+        private boolean released;
+
+        private Permit(final Semaphore node) {
+            this.node = node;
+        }
+
+        // {{{ release
+        /**
+         * Gives the permits back; calling it again does nothing.
+         */
+        synchronized void release() {
+            if (released) {
+                return;
+            }
+
+            released = true;
+
+            if (TOTAL_PERMITS != null) {
+                TOTAL_PERMITS.release();
+            }
+
+            if (node != null) {
+                node.release();
+            }
+        }
+        // }}}
+    }
+
+    private PvcsProcessLimit() {
+    }
+
+    // {{{ acquire
+    /**
+     * Waits until the launcher's node and the controller may start another
+     * pcli process.  The time spent waiting is recorded in the call.
+     *
+     * @throws InterruptedException if the build or poll was aborted while
+     *         waiting; no permits are held then
+     */
+    static Permit acquire(final Launcher launcher, final TaskListener listener, final PvcsCallStats call)
+        throws InterruptedException
+    {
+        Semaphore node = forNode(launcher);
+
+        long start = System.nanoTime();
+
+        // always node first, so that two callers never hold one each
+        acquire(node, "node", listener);
+        try {
+            acquire(TOTAL_PERMITS, "controller", listener);
+        } catch (InterruptedException e) {
+            if (node != null) {
+                node.release();
+            }
+
+            throw e;
+        }
+
+        call.queued(System.nanoTime() - start);
+
+        return new Permit(node);
+    }
+    // }}}
+
+    // {{{ acquire
+    private static void acquire(final Semaphore permits, final String scope, final TaskListener listener)
+        throws InterruptedException
+    {
+        // the timed tryAcquire doesn't overtake callers already waiting
+        if ((permits == null) || permits.tryAcquire(0, TimeUnit.SECONDS)) {
+            return;
+        }
+
+        LOGGER.debug("waiting for a pcli slot on the " + scope);
+        listener.getLogger().println("waiting for other pcli processes on the " + scope + " to finish");
+
+        permits.acquire();
+    }
+    // }}}
+
+    // {{{ forNode
+    /**
+     * Returns the permits of the launcher's node, or null if there is no
+     * per-node limit.
+     */
+    private static Semaphore forNode(final Launcher launcher) {
+        if (PER_NODE <= 0) {
+            return null;
+        }
+
+        Object key = launcher.getChannel();
+        if (key == null) {
+            key = PvcsProcessLimit.class;
+        }
+
+        synchronized (NODE_PERMITS) {
+            Semaphore permits = NODE_PERMITS.get(key);
+            if (permits == null) {
+                permits = new Semaphore(PER_NODE, true);
+                NODE_PERMITS.put(key, permits);
+            }
+
+            return permits;
+        }
+    }
+    // }}}
+}
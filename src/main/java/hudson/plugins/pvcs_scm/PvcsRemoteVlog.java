@@ -0,0 +1,236 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.Launcher;
+
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jenkins.security.MasterToSlaveCallable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs one <code>pcli vlog</code> on another node and parses its output
+ * there, so that polling many jobs does not load the controller.  Only the
+ * parsed records travel back over the channel, not the vlog text.
+ * <p>
+ * The process limits and timeouts of {@link PvcsBatch} apply on the node
+ * that runs pcli.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsRemoteVlog extends MasterToSlaveCallable<PvcsRemoteVlog.Records, IOException>
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final Log LOGGER = LogFactory.getLog(PvcsRemoteVlog.class);
+
+    private final String executable;
+    private final List<String> args;
+    private final String archiveRoot;
+    private final String pathPrefix;
+    private final String includedPaths;
+    private final String excludedPaths;
+    private final String timeZoneId;
+    private final String localeName;
+    private final TaskListener listener;
+
+    // {{{ constructor
+    /**
+     * @param args the <code>vlog</code> command and its arguments
+     * @param includedPaths archives to report; null with
+     *        <code>excludedPaths</code> for all of them
+     * @param timeZoneId time zone of the check-in times; null for the node's
+     * @param localeName locale of the check-in times; null for the node's
+     * @param listener receives whatever pcli writes to stderr
+     */
+    PvcsRemoteVlog(final String executable,
+                   final List<String> args,
+                   final String archiveRoot,
+                   final String pathPrefix,
+                   final String includedPaths,
+                   final String excludedPaths,
+                   final String timeZoneId,
+                   final String localeName,
+                   final TaskListener listener)
+    {
+        this.executable = executable;
+        this.args = new ArrayList<String>(args);
+        this.archiveRoot = archiveRoot;
+        this.pathPrefix = pathPrefix;
+        this.includedPaths = includedPaths;
+        this.excludedPaths = excludedPaths;
+        this.timeZoneId = timeZoneId;
+        this.localeName = localeName;
+        this.listener = listener;
+    }
+    // }}}
+
+    // {{{ call
+    /**
+     * Runs the vlog on this node and returns its records.
+     */
+    public Records call() throws IOException {
+        final Records records = new Records();
+        final PvcsDateCodec codec = PvcsDateCodec.forServer(timeZoneId, localeName);
+        final PvcsPathFilter filter = PvcsPathFilter.compile(includedPaths, excludedPaths);
+
+        PvcsBatch batch = new PvcsBatch(executable);
+        batch.add(new PvcsBatch.Command("-q", args) {
+            void read(final InputStream output, final PvcsCallStats call) throws IOException {
+                PvcsVlogParser parser = new PvcsVlogParser(archiveRoot, pathPrefix, filter, codec, records);
+                long cpuStart = PvcsCallStats.currentThreadCpuTime();
+
+                parser.parse(new InputStreamReader(output));
+
+                long cpuEnd = PvcsCallStats.currentThreadCpuTime();
+                call.parsed(parser.getArchiveCount(), parser.getRecordCount(),
+                            ((cpuStart >= 0) && (cpuEnd >= 0)) ? (cpuEnd - cpuStart) : -1);
+
+                records.call = call;
+            }
+
+            void finished(final int status) {
+                records.status = status;
+            }
+        });
+
+        try {
+            batch.run(new Launcher.LocalLauncher(listener), null, listener, null);
+        } catch (InterruptedException e) {
+            LOGGER.info("remote vlog interrupted");
+            throw (IOException) new InterruptedIOException("pcli vlog was interrupted").initCause(e);
+        }
+
+        records.trim();
+
+        return records;
+    }
+    // }}}
+
+    /**
+     * The records of a vlog in a compact form: every distinct string is
+     * sent once, and each record is four string numbers and a time.  Also
+     * holds the output of sharded vlogs until it can be replayed in order.
+     */
+    static final class Records implements PvcsVlogParser.Handler, Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private static final int NONE = -1;
+
+        /** String numbers while recording; not sent. */
+        private transient Map<String, Integer> numbers = new HashMap<String, Integer>();
+
+        private final List<String> strings = new ArrayList<String>();
+
+        /** File name, revision, user and comment of each record. */
+        private int[] refs = new int[64];
+        private long[] times = new long[16];
+        private int count;
+
+        int status = -1;
+
+        /** Measurements of the pcli call; null if it never produced output. */
+        PvcsCallStats call;
+
+        // {{{ record
+        /**
+         * {@inheritDoc}
+         */
+        public void record(final String fileName,
+                           final String revision,
+                           final Date modifiedTime,
+                           final String userName,
+                           final String comment)
+        {
+            if (count == times.length) {
+                int capacity = Math.max(16, count * 2);
+                times = Arrays.copyOf(times, capacity);
+                refs = Arrays.copyOf(refs, capacity * 4);
+            }
+
+            refs[count * 4] = intern(fileName);
+            refs[count * 4 + 1] = intern(revision);
+            refs[count * 4 + 2] = intern(userName);
+            refs[count * 4 + 3] = intern(comment);
+            times[count] = (modifiedTime != null) ? modifiedTime.getTime() : PvcsDateCodec.NO_TIME;
+
+            count++;
+        }
+        // }}}
+
+        // {{{ intern
+        private int intern(final String value) {
+            if (value == null) {
+                return NONE;
+            }
+
+            Integer number = numbers.get(value);
+            if (number == null) {
+                number = strings.size();
+                numbers.put(value, number);
+                strings.add(value);
+            }
+
+            return number;
+        }
+        // }}}
+
+        // {{{ trim
+        /**
+         * Drops the unused capacity before the records are sent.
+         */
+        void trim() {
+            refs = Arrays.copyOf(refs, count * 4);
+            times = Arrays.copyOf(times, count);
+        }
+        // }}}
+
+        // {{{ size
+        int size() {
+            return count;
+        }
+        // }}}
+
+        // {{{ getStringCount
+        int getStringCount() {
+            return strings.size();
+        }
+        // }}}
+
+        // {{{ replay
+        /**
+         * Passes the records to the handler in the order they were parsed.
+         */
+        void replay(final PvcsVlogParser.Handler handler) {
+            for (int i = 0; i < count; i++) {
+                handler.record(string(refs[i * 4]),
+                               string(refs[i * 4 + 1]),
+                               (times[i] != PvcsDateCodec.NO_TIME) ? new Date(times[i]) : null,
+                               string(refs[i * 4 + 2]),
+                               string(refs[i * 4 + 3]));
+            }
+        }
+        // }}}
+
+        // {{{ string
+        private String string(final int number) {
+            return (number != NONE) ? strings.get(number) : null;
+        }
+        // }}}
+    }
+}
@@ -0,0 +1,336 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.scm.SCMRevisionState;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The newest known revision of every archive of a build, used as the
+ * polling baseline.
+ * <p>
+ * Archive paths are kept sorted and front-coded: every record only stores
+ * the part of its path that differs from the previous one, and every
+ * {@link #BLOCK_SIZE}th record stores its full path so a lookup is a binary
+ * search over block heads followed by a short scan.  All records live in a
+ * single string, which is also what gets persisted with the build.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public final class PvcsRevisionState extends SCMRevisionState
+{
+    /** Records per block; the first record of a block is not front-coded. */
+    private static final int BLOCK_SIZE = 16;
+
+    private static final char FIELD_SEP = '\t';
+    private static final char RECORD_SEP = '\n';
+
+    /**
+     * Front-coded records, each
+     * <code>prefixLength TAB suffix TAB revision NEWLINE</code>.
+     */
+    private final String entries;
+
+    /** Newest check-in time seen, or 0 if unknown. */
+    private final long newestCheckIn;
+
+    /**
+     * Fingerprint of the revisions carrying the job's label or promotion
+     * group; null if not known.
+     */
+    private final String labelFingerprint;
+
+    /** Offset of the first record of each block. */
+    private transient int[] blockOffsets;
+
+    /** Number of records. */
+    private transient int size;
+
+    // {{{ constructor
+    private PvcsRevisionState(final String entries, final long newestCheckIn, final String labelFingerprint) {
+        this.entries = entries;
+        this.newestCheckIn = newestCheckIn;
+        this.labelFingerprint = labelFingerprint;
+
+        index();
+    }
+    // }}}
+
+    // {{{ readResolve
+    private Object readResolve() {
+        index();
+        return this;
+    }
+    // }}}
+
+    // {{{ index
+    private void index() {
+        List<Integer> offsets = new ArrayList<Integer>();
+
+        size = 0;
+        for (int pos = 0; pos < entries.length(); pos = entries.indexOf(RECORD_SEP, pos) + 1) {
+            if ((size % BLOCK_SIZE) == 0) {
+                offsets.add(pos);
+            }
+
+            size++;
+        }
+
+        blockOffsets = new int[offsets.size()];
+        for (int i = 0; i < blockOffsets.length; i++) {
+            blockOffsets[i] = offsets.get(i);
+        }
+    }
+    // }}}
+
+    // {{{ size
+    /**
+     * Returns the number of archives with a known revision.
+     */
+    public int size() {
+        return size;
+    }
+    // }}}
+
+    // {{{ getNewestCheckIn
+    /**
+     * Returns the newest check-in time seen, or null if no check-in has been
+     * seen yet.
+     */
+    public Calendar getNewestCheckIn() {
+        if (newestCheckIn == 0) {
+            return null;
+        }
+
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(newestCheckIn);
+        return cal;
+    }
+    // }}}
+
+    // {{{ getLabelFingerprint
+    /**
+     * Returns the fingerprint of the revisions carrying the job's label or
+     * promotion group, or null if it is not known.
+     *
+     * @see PvcsLabelFingerprint
+     */
+    public String getLabelFingerprint() {
+        return labelFingerprint;
+    }
+    // }}}
+
+    // {{{ getRevision
+    /**
+     * Returns the newest known revision of an archive, or null.
+     *
+     * @param fileName the archive's file name as it appears in the changelog
+     */
+    public String getRevision(final String fileName) {
+        int low = 0;
+        int high = blockOffsets.length - 1;
+        int block = -1;
+
+        // last block whose head is <= fileName
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = headKey(mid).compareTo(fileName);
+
+            if (cmp == 0) {
+                return revisionAt(blockOffsets[mid]);
+            } else if (cmp < 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        if (block == -1) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder();
+        int pos = blockOffsets[block];
+        for (int i = 0; (i < BLOCK_SIZE) && (pos < entries.length()); i++) {
+            int next = decode(pos, key);
+
+            int cmp = compare(key, fileName);
+            if (cmp == 0) {
+                return revisionAt(pos);
+            } else if (cmp > 0) {
+                break;
+            }
+
+            pos = next;
+        }
+
+        return null;
+    }
+    // }}}
+
+    // {{{ toMap
+    /**
+     * Returns all records, sorted by file name.
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new TreeMap<String, String>();
+
+        StringBuilder key = new StringBuilder();
+        for (int pos = 0; pos < entries.length(); ) {
+            int next = decode(pos, key);
+            map.put(key.toString(), revisionAt(pos));
+            pos = next;
+        }
+
+        return map;
+    }
+    // }}}
+
+    // {{{ decode
+    /**
+     * Decodes the key of the record at <code>pos</code> into
+     * <code>key</code>, which must hold the previous record's key.
+     *
+     * @return offset of the next record
+     */
+    private int decode(final int pos, final StringBuilder key) {
+        int tab1 = entries.indexOf(FIELD_SEP, pos);
+        int tab2 = entries.indexOf(FIELD_SEP, tab1 + 1);
+
+        key.setLength(Integer.parseInt(entries.substring(pos, tab1)));
+        key.append(entries, tab1 + 1, tab2);
+
+        return entries.indexOf(RECORD_SEP, tab2 + 1) + 1;
+    }
+    // }}}
+
+    // {{{ headKey
+    private String headKey(final int block) {
+        int pos = blockOffsets[block];
+        int tab1 = entries.indexOf(FIELD_SEP, pos);
+        return entries.substring(tab1 + 1, entries.indexOf(FIELD_SEP, tab1 + 1));
+    }
+    // }}}
+
+    // {{{ revisionAt
+    private String revisionAt(final int pos) {
+        int tab1 = entries.indexOf(FIELD_SEP, pos);
+        int tab2 = entries.indexOf(FIELD_SEP, tab1 + 1);
+        return entries.substring(tab2 + 1, entries.indexOf(RECORD_SEP, tab2 + 1));
+    }
+    // }}}
+
+    // {{{ compare
+    private static int compare(final CharSequence a, final String b) {
+        int len = Math.min(a.length(), b.length());
+        for (int i = 0; i < len; i++) {
+            int diff = a.charAt(i) - b.charAt(i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+
+        return a.length() - b.length();
+    }
+    // }}}
+
+    // {{{ toString
+    @Override
+    public String toString() {
+        return "PvcsRevisionState[" + size + " archives, newest check-in " + new Date(newestCheckIn) + "]";
+    }
+    // }}}
+
+    /**
+     * Accumulates records for a new state, starting from an existing one.
+     */
+    public static final class Builder
+    {
+        private final Map<String, String> revisions;
+        private long newestCheckIn;
+        private String labelFingerprint;
+
+        // {{{ constructor
+        /**
+         * @param previous state to start from; may be null
+         */
+        public Builder(final PvcsRevisionState previous) {
+            if (previous != null) {
+                revisions = previous.toMap();
+                newestCheckIn = previous.newestCheckIn;
+                labelFingerprint = previous.labelFingerprint;
+            } else {
+                revisions = new TreeMap<String, String>();
+            }
+        }
+        // }}}
+
+        // {{{ put
+        /**
+         * Records a revision of an archive.
+         *
+         * @param checkIn check-in time of the revision; may be null
+         */
+        public Builder put(final String fileName,
+                           final String revision,
+                           final Calendar checkIn)
+        {
+            if ((fileName != null) && (revision != null)) {
+                revisions.put(fileName, revision);
+            }
+
+            if ((checkIn != null) && (checkIn.getTimeInMillis() > newestCheckIn)) {
+                newestCheckIn = checkIn.getTimeInMillis();
+            }
+
+            return this;
+        }
+        // }}}
+
+        // {{{ labelFingerprint
+        /**
+         * Sets the fingerprint of the revisions carrying the job's label or
+         * promotion group.
+         */
+        public Builder labelFingerprint(final String fingerprint) {
+            this.labelFingerprint = fingerprint;
+
+            return this;
+        }
+        // }}}
+
+        // {{{ build
+        public PvcsRevisionState build() {
+            StringBuilder sb = new StringBuilder();
+
+            String previous = "";
+            int count = 0;
+            for (Map.Entry<String, String> entry : revisions.entrySet()) {
+                String key = entry.getKey();
+
+                int prefix = 0;
+                if ((count % BLOCK_SIZE) != 0) {
+                    int max = Math.min(previous.length(), key.length());
+                    while ((prefix < max) && (previous.charAt(prefix) == key.charAt(prefix))) {
+                        prefix++;
+                    }
+                }
+
+                sb.append(prefix).append(FIELD_SEP)
+                  .append(key, prefix, key.length()).append(FIELD_SEP)
+                  .append(entry.getValue()).append(RECORD_SEP);
+
+                previous = key;
+                count++;
+            }
+
+            return new PvcsRevisionState(sb.toString(), newestCheckIn, labelFingerprint);
+        }
+        // }}}
+    }
+}
@@ -1,34 +1,57 @@
 package hudson.plugins.pvcs_scm;
 
+import hudson.AbortException;
 import hudson.Extension;
-import hudson.plugins.pvcs_scm.changelog.ChangeLogDocument;
 import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogSet;
 import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogEntry;
 
 import hudson.Launcher;
-import hudson.Proc;
 import hudson.Util;
 import hudson.FilePath;
 
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.model.Run;
 
+import hudson.remoting.VirtualChannel;
+
+import hudson.scm.PollingResult;
 import hudson.scm.SCM;
 import hudson.scm.SCMDescriptor;
+import hudson.scm.SCMRevisionState;
 
-import hudson.util.ArgumentListBuilder;
 import hudson.util.FormValidation;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.PipedOutputStream;
-import java.io.PipedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.TimeZone;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+
+import jenkins.model.Jenkins;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
@@ -50,14 +73,16 @@ public class PvcsScm extends SCM
     private static final Log LOGGER = LogFactory.getLog(PvcsScm.class);
 
     /**
-     * Date format required by commands passed to PVCS
+     * How far before the end of a cached vlog query the follow-up query
+     * starts, to cover differences between our clock and the PVCS server's.
      */
-    private static final String IN_DATE_FORMAT = "MM/dd/yyyy hh:mm:ss aa";
+    private static final int CACHE_OVERLAP_MINUTES = 5;
 
-    /**
-     * Date format returned in the output of PVCS commands.
-     */
-    private static final String OUT_DATE_FORMAT = "MMM dd yyyy HH:mm:ss";
+    /** Maximum number of files fetched by one incremental get. */
+    private static final int GET_BATCH_SIZE = 50;
+
+    /** Separates archive and workfile in the lines of get output. */
+    private static final String GET_ARROW = " -> ";
 
     private String projectRoot;
     private String archiveRoot;
@@ -68,12 +93,85 @@ public class PvcsScm extends SCM
      */
     private String changeLogPrefixFudge;
 
+    /**
+     * Project path of the module below the project root, such as
+     * <code>/MYORG-Java</code>; archive paths below <code>archiveRoot</code>
+     * are project paths below the same root.
+     */
     private String moduleDir;
     private String loginId;
     private String pvcsWorkspace;
     private String promotionGroup;
     private String versionLabel;
+
+    /**
+     * Poll for moves of the version label or promotion group instead of
+     * for check-ins.
+     */
+    private boolean labelPolling;
     private boolean cleanCopy;
+
+    /**
+     * For a clean copy, delete only what the last get didn't fetch or what
+     * was modified since, and fetch only what is then missing.
+     */
+    private boolean reconcileCleanCopy;
+
+    /**
+     * Fetch only the files in the changelog when the workspace manifest shows
+     * the previous build fetched the rest.
+     */
+    private boolean incrementalCheckout;
+
+    /**
+     * Skip the get when there are no changes and the workspace still holds
+     * what the last get fetched.
+     */
+    private boolean skipUnchangedCheckout;
+
+    /**
+     * Number of concurrent vlog processes; more than one shards the module
+     * by subproject.
+     */
+    private int vlogThreads;
+
+    /**
+     * Number of concurrent get processes for a full get; more than one
+     * shards the module by subproject.
+     */
+    private int getThreads;
+
+    /**
+     * Maximum spread in seconds of the check-ins shown as one changelog
+     * entry; 0 shows every archive on its own.
+     */
+    private int changeGroupWindow;
+
+    /** Also write a binary copy of the changelog, which is faster to read. */
+    private boolean binaryChangeLog;
+
+    /**
+     * Patterns of the archives that count as changes, separated by commas or
+     * line breaks; empty for all of them.
+     */
+    private String includedPaths;
+
+    /** Patterns of the archives that never count as changes. */
+    private String excludedPaths;
+
+    /**
+     * Label of the nodes that run <code>pcli vlog</code> and parse its
+     * output; null for the controller.
+     */
+    private String pollingLabel;
+
+    /** Compiled {@link #includedPaths} and {@link #excludedPaths}. */
+    private transient PvcsPathFilter pathFilter;
+    private transient boolean pathFilterCompiled;
+
+    /** Label fingerprints of checkouts, until their revision state is taken. */
+    private transient Map<AbstractBuild<?, ?>, String> checkoutFingerprints;
+
     //private int MAX;
     // {{{ constructor
     @DataBoundConstructor
@@ -86,7 +184,18 @@ public class PvcsScm extends SCM
                    final String pvcsWorkspace,
                    final String promotionGroup,
                    final String versionLabel,
-                   final boolean cleanCopy) 
+                   final boolean cleanCopy,
+                   final boolean incrementalCheckout,
+                   final int vlogThreads,
+                   final int getThreads,
+                   final int changeGroupWindow,
+                   final boolean binaryChangeLog,
+                   final String includedPaths,
+                   final String excludedPaths,
+                   final String pollingLabel,
+                   final boolean skipUnchangedCheckout,
+                   final boolean reconcileCleanCopy,
+                   final boolean labelPolling)
     {
         this.projectRoot = projectRoot;
         this.archiveRoot = archiveRoot;
@@ -97,6 +206,17 @@ public class PvcsScm extends SCM
         this.promotionGroup = promotionGroup;
         this.versionLabel = versionLabel;
         this.cleanCopy = cleanCopy;
+        this.incrementalCheckout = incrementalCheckout;
+        this.vlogThreads = vlogThreads;
+        this.getThreads = getThreads;
+        this.changeGroupWindow = changeGroupWindow;
+        this.binaryChangeLog = binaryChangeLog;
+        this.includedPaths = Util.fixEmptyAndTrim(includedPaths);
+        this.excludedPaths = Util.fixEmptyAndTrim(excludedPaths);
+        this.pollingLabel = Util.fixEmptyAndTrim(pollingLabel);
+        this.skipUnchangedCheckout = skipUnchangedCheckout;
+        this.reconcileCleanCopy = reconcileCleanCopy;
+        this.labelPolling = labelPolling;
         LOGGER.debug("created new instance");
     }
     // }}}
@@ -137,6 +257,142 @@ public class PvcsScm extends SCM
     }
     // }}}
     
+    // {{{ isReconcileCleanCopy
+    public boolean isReconcileCleanCopy() {
+        return reconcileCleanCopy;
+    }
+    // }}}
+
+    // {{{ setReconcileCleanCopy
+    public void setReconcileCleanCopy(final boolean reconcileCleanCopy) {
+        this.reconcileCleanCopy = reconcileCleanCopy;
+    }
+    // }}}
+
+    // {{{ isIncrementalCheckout
+    public boolean isIncrementalCheckout() {
+        return incrementalCheckout;
+    }
+    // }}}
+    
+    // {{{ setIncrementalCheckout
+    public void setIncrementalCheckout(final boolean incrementalCheckout) {
+        this.incrementalCheckout = incrementalCheckout;
+    }
+    // }}}
+    
+    // {{{ isSkipUnchangedCheckout
+    public boolean isSkipUnchangedCheckout() {
+        return skipUnchangedCheckout;
+    }
+    // }}}
+
+    // {{{ setSkipUnchangedCheckout
+    public void setSkipUnchangedCheckout(final boolean skipUnchangedCheckout) {
+        this.skipUnchangedCheckout = skipUnchangedCheckout;
+    }
+    // }}}
+
+    // {{{ getVlogThreads
+    public int getVlogThreads() {
+        return vlogThreads;
+    }
+    // }}}
+    
+    // {{{ setVlogThreads
+    public void setVlogThreads(final int vlogThreads) {
+        this.vlogThreads = vlogThreads;
+    }
+    // }}}
+    
+    // {{{ getGetThreads
+    public int getGetThreads() {
+        return getThreads;
+    }
+    // }}}
+    
+    // {{{ setGetThreads
+    public void setGetThreads(final int getThreads) {
+        this.getThreads = getThreads;
+    }
+    // }}}
+    
+    // {{{ getChangeGroupWindow
+    public int getChangeGroupWindow() {
+        return changeGroupWindow;
+    }
+    // }}}
+    
+    // {{{ setChangeGroupWindow
+    public void setChangeGroupWindow(final int changeGroupWindow) {
+        this.changeGroupWindow = changeGroupWindow;
+    }
+    // }}}
+    
+    // {{{ isBinaryChangeLog
+    public boolean isBinaryChangeLog() {
+        return binaryChangeLog;
+    }
+    // }}}
+    
+    // {{{ setBinaryChangeLog
+    public void setBinaryChangeLog(final boolean binaryChangeLog) {
+        this.binaryChangeLog = binaryChangeLog;
+    }
+    // }}}
+    
+    // {{{ getIncludedPaths
+    public String getIncludedPaths() {
+        return includedPaths;
+    }
+    // }}}
+    
+    // {{{ setIncludedPaths
+    public synchronized void setIncludedPaths(final String includedPaths) {
+        this.includedPaths = Util.fixEmptyAndTrim(includedPaths);
+        this.pathFilterCompiled = false;
+    }
+    // }}}
+    
+    // {{{ getExcludedPaths
+    public String getExcludedPaths() {
+        return excludedPaths;
+    }
+    // }}}
+    
+    // {{{ setExcludedPaths
+    public synchronized void setExcludedPaths(final String excludedPaths) {
+        this.excludedPaths = Util.fixEmptyAndTrim(excludedPaths);
+        this.pathFilterCompiled = false;
+    }
+    // }}}
+
+    // {{{ getPollingLabel
+    public String getPollingLabel() {
+        return pollingLabel;
+    }
+    // }}}
+
+    // {{{ setPollingLabel
+    public void setPollingLabel(final String pollingLabel) {
+        this.pollingLabel = Util.fixEmptyAndTrim(pollingLabel);
+    }
+    // }}}
+
+    // {{{ getPathFilter
+    /**
+     * Returns the compiled path patterns, or null if none are configured.
+     */
+    synchronized PvcsPathFilter getPathFilter() {
+        if (! pathFilterCompiled) {
+            pathFilter = PvcsPathFilter.compile(includedPaths, excludedPaths);
+            pathFilterCompiled = true;
+        }
+
+        return pathFilter;
+    }
+    // }}}
+    
     // {{{ getModuleDir
     public String getModuleDir() {
         return this.moduleDir;
@@ -198,6 +454,34 @@ public class PvcsScm extends SCM
     }
     // }}}
 
+    // {{{ isLabelPolling
+    public boolean isLabelPolling() {
+        return labelPolling;
+    }
+    // }}}
+
+    // {{{ setLabelPolling
+    public void setLabelPolling(final boolean labelPolling) {
+        this.labelPolling = labelPolling;
+    }
+    // }}}
+
+    // {{{ getFollowedLabel
+    /**
+     * Returns the version label, or else the promotion group, whose moves
+     * trigger builds, or null if polling is for check-ins.
+     */
+    private String getFollowedLabel() {
+        if (! labelPolling) {
+            return null;
+        }
+
+        String label = Util.fixEmptyAndTrim(versionLabel);
+
+        return (label != null) ? label : Util.fixEmptyAndTrim(promotionGroup);
+    }
+    // }}}
+
     // {{{ getChangeLogPrefixFudge
     public String getChangeLogPrefixFudge() {
         return changeLogPrefixFudge;
@@ -233,218 +517,1453 @@ public class PvcsScm extends SCM
         throws IOException, InterruptedException
     {
         LOGGER.trace("in checkout()");
+
+        PvcsJobStats jobStats = PvcsStats.INSTANCE.forJob(build.getProject().getFullName());
         
         boolean checkoutSucceeded = true;
 
-        ChangeLogDocument doc = ChangeLogDocument.Factory.newInstance();
+        Run<?, ?> previousBuild = build.getPreviousBuild();
 
-        Run previousBuild = build.getPreviousBuild();
-        if (previousBuild != null) {
-            doc.setChangeLog(getModifications(launcher,
-                                              listener,
-                                              previousBuild.getTimestamp()));
+        // changed workfile to revision, for incremental checkouts
+        final Map<String, String> changes = new LinkedHashMap<String, String>();
 
-            doc.getChangeLog().setLastBuildId(previousBuild.getId());
-            doc.getChangeLog().setLastBuildTime(previousBuild.getTimestamp());
-        } else {
-            doc.addNewChangeLog();
+        final boolean reconcile = cleanCopy && reconcileCleanCopy;
+        final boolean recordChanges = incrementalCheckout || reconcile;
+
+        /*
+         * A moved label changes what a get fetches without showing in the
+         * changelog, so where it is goes into the manifest.
+         */
+        String labelFingerprint = null;
+        if ((getFollowedLabel() != null) && (incrementalCheckout || skipUnchangedCheckout || reconcile)) {
+            labelFingerprint = getLabelFingerprint(launcher, listener, jobStats);
+
+            if (labelFingerprint != null) {
+                putCheckoutFingerprint(build, labelFingerprint);
+            }
         }
-            
-        doc.getChangeLog().setBuildId(build.getId());
-        doc.save(changelogFile);
 
-        if (cleanCopy) {
-            listener.getLogger().println("clean copy configured; deleting contents of " + workspace);
+        String config = getWorkspaceConfig(labelFingerprint);
+        PvcsWorkspaceManifest manifest = null;
+
+        if ((previousBuild != null) && (cleanCopy ? reconcile : (incrementalCheckout || skipUnchangedCheckout))) {
+            manifest = PvcsWorkspaceManifest.read(workspace);
+
+            if ((manifest == null) || ! manifest.matches(config, previousBuild.getId())) {
+                listener.getLogger().println("workspace manifest missing or out of date; doing a full get");
+                manifest = null;
+            } else if (getPathFilter() != null) {
+                // the changelog doesn't show which filtered archives changed
+                listener.getLogger().println("path filters configured; doing a full get");
+                manifest = null;
+            } else if ((getFollowedLabel() != null) && (labelFingerprint == null)) {
+                listener.getLogger().println("unable to tell whether " + getFollowedLabel() + " moved; doing a full get");
+                manifest = null;
+            }
+        }
 
-            LOGGER.info("deleting contents of workspace " + workspace);
-            
-            workspace.deleteContents();
+        // workfiles written by the gets, for the manifest
+        final Set<String> workfiles = new TreeSet<String>();
+
+        /*
+         * An unsharded full get doesn't depend on the changes, so it runs in
+         * the same pcli process as the vlog.
+         */
+        PvcsBatch batch = null;
+        GetCommand fullGet = null;
+        if ((manifest == null) && (getThreads <= 1)) {
+            batch = new PvcsBatch(getDescriptor().getExecutable());
         }
-        
-        
-        ArgumentListBuilder cmd = new ArgumentListBuilder();
-        cmd.add(getDescriptor().getExecutable());
-        cmd.add("-nb", "run", "-ns", "-y");
-        cmd.add("get");
-        cmd.add("-pr" + projectRoot);
-        if (loginId != null && !loginId.trim().equals("")) {
-            cmd.add("-id" + loginId);
+
+        // opened last, so that nothing above can leave them open
+        String lastBuildId = (previousBuild != null) ? previousBuild.getId() : null;
+
+        final PvcsChangeLogWriter writer =
+            new PvcsChangeLogWriter(new BufferedOutputStream(new FileOutputStream(changelogFile)),
+                                    build.getId(),
+                                    lastBuildId,
+                                    (previousBuild != null) ? previousBuild.getTimestamp() : null);
+
+        File sidecar = PvcsBinaryChangeLog.sidecarFor(changelogFile);
+        PvcsBinaryChangeLog.Writer sidecarWriter = null;
+        if (binaryChangeLog) {
+            try {
+                sidecarWriter = new PvcsBinaryChangeLog.Writer(sidecar, build.getId(), lastBuildId);
+            } catch (IOException e) {
+                // the XML is all that's needed
+                LOGGER.warn("unable to write binary changelog " + sidecar, e);
+                sidecar.delete();
+            }
         }
-        if (pvcsWorkspace != null && !pvcsWorkspace.trim().equals("")) {
-            cmd.add("-sp" + pvcsWorkspace);
+        final PvcsBinaryChangeLog.Writer binaryWriter = sidecarWriter;
+
+        try {
+            if (previousBuild != null) {
+                getChanges(launcher, listener, jobStats, previousBuild, findRevisionState(previousBuild),
+                           new PvcsVlogParser.Handler() {
+                               public void record(final String fileName,
+                                                  final String revision,
+                                                  final Date modifiedTime,
+                                                  final String userName,
+                                                  final String comment)
+                               {
+                                   writer.record(fileName, revision, modifiedTime, userName, comment);
+
+                                   if (binaryWriter != null) {
+                                       binaryWriter.record(fileName, revision, modifiedTime, userName, comment);
+                                   }
+
+                                   if (recordChanges) {
+                                       changes.put(fileName, revision);
+                                   }
+                               }
+                           },
+                           false,
+                           batch);
+            }
+
+            if (batch != null) {
+                prepareWorkspace(workspace, listener);
+
+                fullGet = new GetCommand(listener, Arrays.asList("-z", moduleDir), workfiles);
+                batch.add(fullGet);
+                batch.run(launcher, workspace, listener, jobStats);
+            }
+        } finally {
+            writer.close();
+
+            if (binaryWriter != null) {
+                try {
+                    binaryWriter.close();
+                } catch (IOException e) {
+                    // the XML is all that's needed
+                    LOGGER.warn("unable to write binary changelog " + sidecar, e);
+                    sidecar.delete();
+                }
+            }
         }
-        if (versionLabel != null && !versionLabel.trim().equals("")) {
-            cmd.add("-v" + versionLabel);
-        }else if (promotionGroup != null && !promotionGroup.trim().equals("")) {
-            cmd.add("-g" + promotionGroup);
+
+        LOGGER.debug("wrote " + writer.getEntryCount() + " entries to " + changelogFile);
+
+        Map<String, String> revisions = new TreeMap<String, String>();
+        Map<String, PvcsWorkspaceManifest.FileInfo> files = new TreeMap<String, PvcsWorkspaceManifest.FileInfo>();
+        int rc = 0;
+
+        boolean unchanged = (manifest != null) && skipUnchangedCheckout && (writer.getEntryCount() == 0);
+        if (unchanged) {
+            String mismatch = manifest.verify(workspace);
+
+            if (mismatch != null) {
+                listener.getLogger().println("workspace does not match its manifest (" + mismatch
+                                             + "); doing a full get");
+                manifest = null;
+                unchanged = false;
+            }
         }
 
-        cmd.add("-bp/");
-        cmd.add("-o");
-        cmd.add("-a.");
-        cmd.add("-z");
-        cmd.add(moduleDir);
+        PvcsWorkspaceManifest.Reconciliation reconciliation = null;
+        if ((manifest != null) && reconcile) {
+            // remove the manifest until the get has succeeded
+            PvcsWorkspaceManifest.delete(workspace);
+
+            try {
+                reconciliation = manifest.reconcile(workspace);
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                listener.getLogger().println("clean copy configured; deleted " + reconciliation.strays
+                                             + " stray file(s) or directories and "
+                                             + reconciliation.stale.size() + " modified or missing workfile(s)");
 
-        LOGGER.debug("launching command " + cmd.toList());
+                if (! reconciliation.stale.isEmpty()) {
+                    // workfile paths don't name their archives; the rest of the tree is clean
+                    listener.getLogger().println("modified or missing workfiles; doing a full get");
+                    manifest = null;
+                }
+            } catch (IOException e) {
+                LOGGER.warn("unable to reconcile workspace " + workspace, e);
+                listener.getLogger().println("unable to reconcile the workspace (" + e.getMessage()
+                                             + "); doing a full get");
+                manifest = null;
+            }
+        }
 
-        int rc = launcher.launch().cmds(cmd).stdout(baos).pwd(workspace).join();
+        if (fullGet != null) {
+            rc = fullGet.status;
+        } else if (unchanged && (manifest != null)) {
+            listener.getLogger().println("no changes and the workspace matches its manifest; skipping the get");
 
-        if (rc != 0) {
-            // checkoutSucceeded = false;
+            revisions.putAll(manifest.getRevisions());
+            files.putAll(manifest.getFiles());
+        } else if ((manifest != null) && (reconciliation != null)) {
+            revisions.putAll(manifest.getRevisions());
+            files.putAll(manifest.getFiles());
+
+            listener.getLogger().println("fetching " + changes.size() + " changed file(s)");
+
+            rc = fetchFiles(launcher, workspace, listener, jobStats, changes.keySet(), workfiles);
+        } else if ((manifest != null) && incrementalCheckout) {
+            prepareWorkspace(workspace, listener);
+
+            revisions.putAll(manifest.getRevisions());
+            files.putAll(manifest.getFiles());
+
+            listener.getLogger().println("fetching " + changes.size() + " changed file(s)");
+
+            rc = fetchFiles(launcher, workspace, listener, jobStats, changes.keySet(), workfiles);
+        } else {
+            if (reconciliation == null) {
+                prepareWorkspace(workspace, listener);
+            }
+
+            List<List<String>> shards = getShards(launcher, listener, jobStats);
 
-            LOGGER.error("command exited with " + rc);
-            listener.error("command exited with " + rc);
-            // listener.error(baos.toString());
-            listener.error("continuing anyway.  @todo: filter results from PVCS");
+            if (shards == null) {
+                rc = runGet(launcher, workspace, listener, jobStats, Arrays.asList("-z", moduleDir), workfiles);
+            } else {
+                int failed = runGets(launcher, workspace, listener, jobStats, shards, workfiles);
+                if (failed > 0) {
+                    listener.error(failed + " of " + shards.size() + " get shards failed");
+                    rc = 1;
+                }
+            }
+        }
 
-        } /* else */ {
-            if (LOGGER.isTraceEnabled()) {
-                LOGGER.trace("pcli output:\n" + new String(baos.toByteArray()));
+        if (rc != 0) {
+            // the workspace is incomplete
+            listener.error("pcli get failed");
+            checkoutSucceeded = false;
+        }
+
+        if ((incrementalCheckout || skipUnchangedCheckout || reconcile) && (rc == 0)) {
+            if (incrementalCheckout) {
+                for (Map.Entry<String, String> change : changes.entrySet()) {
+                    if (change.getValue() != null) {
+                        revisions.put(change.getKey(), change.getValue());
+                    }
+                }
             }
 
-            listener.getLogger().println("pcli output:");
-            listener.getLogger().write(baos.toByteArray(), 0, baos.size());
+            files.putAll(PvcsWorkspaceManifest.index(workspace, workfiles));
 
+            new PvcsWorkspaceManifest(config, build.getId(), revisions, files).write(workspace);
         }
-       
     
          return checkoutSucceeded;
     }
     // }}}
 
-    // {{{ pollChanges
+    // {{{ prepareWorkspace
     /**
-     * {@inheritDoc}
+     * Clears the workspace for a clean copy and removes the manifest until
+     * the get has succeeded.
      */
-    @Override
-    public boolean pollChanges(final AbstractProject project,
-                               final Launcher launcher,
-                               final FilePath workspace,
-                               final TaskListener listener)
+    private void prepareWorkspace(final FilePath workspace, final BuildListener listener)
         throws IOException, InterruptedException
     {
-        LOGGER.debug("polling for changes in " + workspace);
-        
-        // default to change being detected
-        boolean changeDetected = true;
-        
-        if (project.getLastBuild() == null) {
-            LOGGER.info("no existing build; starting a new one");
-            listener.getLogger().println("no existing build; starting a new one");
-        } else {
-            PvcsChangeLogSet changeSet =
-                getModifications(launcher,
-                                 listener,
-                                 project.getLastBuild().getTimestamp());
-
-
-            changeDetected = (changeSet.sizeOfEntryArray() > 0);
+        if (cleanCopy) {
+            listener.getLogger().println("clean copy configured; deleting contents of " + workspace);
 
-            if (! changeDetected) {
-                listener.getLogger().println("no changes detected");
-            } else {
-                for (PvcsChangeLogEntry entry : changeSet.getEntryArray()) {
-                    listener.getLogger().print("==> " + entry.getFileName() + " ");
-                    listener.getLogger().print(entry.getRevision() + " ");
-                    listener.getLogger().print(entry.getModifiedTime().getTime() + " ");
-                    listener.getLogger().println(entry.getModifiedTime().getTime());
-                    listener.getLogger().println(entry.getComment());
-                }
-            }
+            LOGGER.info("deleting contents of workspace " + workspace);
+            
+            workspace.deleteContents();
         }
         
-        return changeDetected;
+        if (incrementalCheckout || skipUnchangedCheckout || reconcileCleanCopy) {
+            // remove the manifest until the get has succeeded
+            PvcsWorkspaceManifest.delete(workspace);
+        }
     }
-     // }}}
+    // }}}
 
-    // {{{ getModifications
+    // {{{ runGet
     /**
-     * Returns a PvcsChangeLogSet containing all change entries since
-     * lastBuild.
+     * Runs <code>pcli get</code> for the given entities and copies its output
+     * to the build log.
      *
-     * @param launcher the launcher to use to invoke the PVCS client.
-     * @param listener task listener for outputting status
-     * @param lastBuild the last time the job was built.
+     * @param workfiles receives the workfiles written
+     * @return the exit code
      */
-    public PvcsChangeLogSet getModifications(final Launcher launcher,
-                                             final TaskListener listener,
-                                             final Calendar lastBuild)
+    private int runGet(final Launcher launcher,
+                       final FilePath workspace,
+                       final BuildListener listener,
+                       final PvcsJobStats jobStats,
+                       final List<String> entities,
+                       final Set<String> workfiles)
         throws IOException, InterruptedException
     {
-        Calendar now = Calendar.getInstance();
-
-        LOGGER.info("looking for changes between " + lastBuild.getTime() + " and " + now.getTime());
-        listener.getLogger().println("looking for changes between " + lastBuild.getTime() + " and " + now.getTime());
-
-        SimpleDateFormat df = new SimpleDateFormat(IN_DATE_FORMAT);
-        
-        PipedOutputStream os = new PipedOutputStream();
-
-        PvcsLogReader logReader =
-            new PvcsLogReader(new PipedInputStream(os),
-                              archiveRoot,
-                              changeLogPrefixFudge,
-                              lastBuild.getTime());
-        
-        
-        ArgumentListBuilder cmd = new ArgumentListBuilder();
-        cmd.add(getDescriptor().getExecutable());
-        cmd.add("-nb", "run", "-ns", "-q");
-        cmd.add("vlog");
-        cmd.add("-pr" + projectRoot);
-        if (loginId != null && !loginId.trim().equals("")) {
-            cmd.add("-id" + loginId);
-        }
-        if (pvcsWorkspace != null && !pvcsWorkspace.trim().equals("")) {
-            cmd.add("-sp" + pvcsWorkspace);
-        }
-        if (versionLabel != null && !versionLabel.trim().equals("")) {
-            cmd.add("-v" + versionLabel);
-        }
-        if (promotionGroup != null && !promotionGroup.trim().equals("")) {
-            cmd.add("-g" + promotionGroup);
-        }
-        cmd.add("-i");
-        cmd.add("-ds" + df.format(lastBuild.getTime()));
-        cmd.add("-de" + df.format(now.getTime()));
-        cmd.add("-z");
-        cmd.add(moduleDir);
+        GetCommand get = new GetCommand(listener, entities, workfiles);
 
+        PvcsBatch batch = new PvcsBatch(getDescriptor().getExecutable());
+        batch.add(get);
+        batch.run(launcher, workspace, listener, jobStats);
 
+        return get.status;
+    }
+    // }}}
 
-        LOGGER.debug("launching command " + cmd.toList());
+    // {{{ fetchFiles
+    /**
+     * Runs <code>pcli get</code> for the given files, named as in the
+     * changelog, in batches within one pcli process.
+     *
+     * @param workfiles receives the workfiles written
+     * @return the exit code of the first batch that failed, or 0
+     */
+    private int fetchFiles(final Launcher launcher,
+                           final FilePath workspace,
+                           final BuildListener listener,
+                           final PvcsJobStats jobStats,
+                           final Collection<String> fileNames,
+                           final Set<String> workfiles)
+        throws IOException, InterruptedException
+    {
+        PvcsBatch batch = new PvcsBatch(getDescriptor().getExecutable());
+        List<GetCommand> gets = new ArrayList<GetCommand>();
 
-        Proc proc = launcher.launch().cmds(cmd).stdout(os).start();
+        List<String> entities = new ArrayList<String>();
+        int remaining = fileNames.size();
+        for (String fileName : fileNames) {
+            entities.add(getEntity(fileName, changeLogPrefixFudge));
+            remaining--;
 
-        Thread t = new Thread(logReader);
-        t.start();
+            if ((entities.size() == GET_BATCH_SIZE) || (remaining == 0)) {
+                GetCommand get = new GetCommand(listener, new ArrayList<String>(entities), workfiles);
+                gets.add(get);
+                batch.add(get);
 
-        int rc = proc.join();
-        os.close();
+                entities.clear();
+            }
+        }
 
-        t.join();
+        batch.run(launcher, workspace, listener, jobStats);
 
-        if (rc != 0) {
-            LOGGER.error("command failed, returned " + rc);
-            listener.error("command failed, returned " + rc);
+        for (GetCommand get : gets) {
+            if (get.status != 0) {
+                return get.status;
+            }
         }
-        
 
-
-        return logReader.getChangeLogSet();
+        return 0;
     }
     // }}}
 
-    // {{{ createChangeLogParser
     /**
-     * {@inheritDoc}
+     * <code>pcli get</code> of some entities into the workspace; its output
+     * goes to the build log as it arrives.
      */
-    @Override
-    public PvcsChangeLogParser createChangeLogParser() {
-        return new PvcsChangeLogParser();
-    }
+    private final class GetCommand extends PvcsBatch.Command
+    {
+        private final BuildListener listener;
+        private final Set<String> workfiles;
+        private int errors;
+
+        int status = -1;
+
+        // {{{ constructor
+        /**
+         * @param workfiles receives the workfiles written
+         */
+        GetCommand(final BuildListener listener, final List<String> entities, final Set<String> workfiles) {
+            super("-y", getGetArgs(entities));
+
+            this.listener = listener;
+            this.workfiles = workfiles;
+        }
+        // }}}
+
+        // {{{ read
+        void read(final InputStream output, final PvcsCallStats call) throws IOException {
+            PvcsGetOutput get = new PvcsGetOutput(listener.getLogger(), workfiles);
+            try {
+                get.read(output);
+            } finally {
+                call.addFiles(get.getFiles());
+                errors = get.getErrors();
+
+                get.printSummary();
+            }
+        }
+        // }}}
+
+        // {{{ finished
+        void finished(final int rc) {
+            status = ((rc == 0) && (errors > 0)) ? 1 : rc;
+
+            if (rc != 0) {
+                LOGGER.error("command exited with " + rc);
+                listener.error("command exited with " + rc);
+            } else if (errors > 0) {
+                listener.error("pcli reported " + errors + " error(s)");
+            }
+        }
+        // }}}
+    }
+
+    // {{{ getGetArgs
+    /**
+     * Returns the <code>get</code> command for the entities.
+     */
+    private List<String> getGetArgs(final List<String> entities) {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add("get");
+        cmd.add("-pr" + projectRoot);
+        if (loginId != null && !loginId.trim().equals("")) {
+            cmd.add("-id" + loginId);
+        }
+        if (pvcsWorkspace != null && !pvcsWorkspace.trim().equals("")) {
+            cmd.add("-sp" + pvcsWorkspace);
+        }
+        if (versionLabel != null && !versionLabel.trim().equals("")) {
+            cmd.add("-v" + versionLabel);
+        }else if (promotionGroup != null && !promotionGroup.trim().equals("")) {
+            cmd.add("-g" + promotionGroup);
+        }
+
+        cmd.add("-bp/");
+        cmd.add("-o");
+        cmd.add("-a.");
+        cmd.addAll(entities);
+
+        return cmd;
+    }
+    // }}}
+
+    // {{{ countWorkfiles
+    /**
+     * Returns the number of workfiles in the output of <code>pcli get</code>,
+     * which prints one <code>archive -&gt; workfile</code> line per file.
+     */
+    static int countWorkfiles(final String output) {
+        int count = 0;
+        for (int i = output.indexOf(GET_ARROW); i >= 0; i = output.indexOf(GET_ARROW, i + 1)) {
+            count++;
+        }
+
+        return count;
+    }
+    // }}}
+
+    // {{{ parseWorkfile
+    /**
+     * Returns the workfile of a line of <code>pcli get</code> output that
+     * names one, as pcli prints it.
+     */
+    static String parseWorkfile(final String line) {
+        return line.substring(line.lastIndexOf(GET_ARROW) + GET_ARROW.length()).trim();
+    }
+    // }}}
+
+    // {{{ runGets
+    /**
+     * Runs one <code>pcli get</code> per shard, at most
+     * <code>getThreads</code> at a time.  An error message from pcli stops
+     * all of them.
+     *
+     * @param workfiles receives the workfiles written
+     * @return the number of shards that failed
+     */
+    private int runGets(final Launcher launcher,
+                        final FilePath workspace,
+                        final BuildListener listener,
+                        final PvcsJobStats jobStats,
+                        final List<List<String>> shards,
+                        final Set<String> workfiles)
+        throws IOException, InterruptedException
+    {
+        listener.getLogger().println("fetching " + shards.size() + " shards with " + getThreads + " threads");
+
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (final List<String> shard : shards) {
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() throws IOException, InterruptedException {
+                    try {
+                        return runGet(launcher, workspace, listener, jobStats, shard, workfiles) == 0;
+                    } catch (AbortException e) {
+                        // stops the other shards, too
+                        throw e;
+                    } catch (IOException e) {
+                        LOGGER.error("get of " + shard + " failed", e);
+                        listener.error("get of " + shard + " failed: " + e);
+                        return false;
+                    }
+                }
+            });
+        }
+
+        int failed = 0;
+        for (Boolean succeeded : PvcsExecutors.invokeAll(tasks, getThreads)) {
+            if (! succeeded) {
+                failed++;
+            }
+        }
+
+        return failed;
+    }
+    // }}}
+
+    // {{{ getWorkspaceConfig
+    /**
+     * Returns a fingerprint of the settings that determine what a get puts
+     * into the workspace.
+     *
+     * @param labelFingerprint where the followed label or promotion group
+     *        is; null if none is followed or it is unknown
+     */
+    private String getWorkspaceConfig(final String labelFingerprint) {
+        return getWorkspaceConfig(projectRoot, archiveRoot, changeLogPrefixFudge, moduleDir,
+                                  pvcsWorkspace, versionLabel, promotionGroup, labelFingerprint);
+    }
+    // }}}
+
+    // {{{ getWorkspaceConfig
+    static String getWorkspaceConfig(final String... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            sb.append(Util.fixNull(part).trim()).append('|');
+        }
+
+        return sb.toString();
+    }
+    // }}}
+
+    // {{{ putCheckoutFingerprint
+    /**
+     * Remembers the label fingerprint a build's checkout was done at, for
+     * its revision state.
+     */
+    private synchronized void putCheckoutFingerprint(final AbstractBuild<?, ?> build, final String fingerprint) {
+        if (checkoutFingerprints == null) {
+            checkoutFingerprints = new WeakHashMap<AbstractBuild<?, ?>, String>();
+        }
+
+        checkoutFingerprints.put(build, fingerprint);
+    }
+    // }}}
+
+    // {{{ takeCheckoutFingerprint
+    /**
+     * Returns and forgets the label fingerprint of a build's checkout, or
+     * null if none was taken.
+     */
+    private synchronized String takeCheckoutFingerprint(final AbstractBuild<?, ?> build) {
+        return (checkoutFingerprints != null) ? checkoutFingerprints.remove(build) : null;
+    }
+    // }}}
+
+    // {{{ calcRevisionsFromBuild
+    /**
+     * Returns the previous build's revision state updated with the entries
+     * of this build's changelog.
+     */
+    @Override
+    public SCMRevisionState calcRevisionsFromBuild(final AbstractBuild<?, ?> build,
+                                                   final Launcher launcher,
+                                                   final TaskListener listener)
+        throws IOException, InterruptedException
+    {
+        PvcsRevisionState.Builder builder =
+            new PvcsRevisionState.Builder(findRevisionState(build.getPreviousBuild()));
+
+        File changelogFile = new File(build.getRootDir(), "changelog.xml");
+        if (changelogFile.exists()) {
+            PvcsChangeLogParser.RecordReader records = PvcsChangeLogParser.openRecords(changelogFile);
+            try {
+                for (PvcsChangeLogParser.Record record = records.read(); record != null; record = records.read()) {
+                    Calendar modifiedTime = null;
+                    if (record.modifiedTime != null) {
+                        modifiedTime = Calendar.getInstance();
+                        modifiedTime.setTime(record.modifiedTime);
+                    }
+
+                    builder.put(record.fileName, record.revision, modifiedTime);
+                }
+            } catch (IOException e) {
+                LOGGER.error(String.format("Unable to parse %s: %s", changelogFile, e.getMessage()), e);
+            } finally {
+                records.close();
+            }
+        }
+
+        if (getFollowedLabel() != null) {
+            String fingerprint = takeCheckoutFingerprint(build);
+            if (fingerprint == null) {
+                PvcsJobStats jobStats = PvcsStats.INSTANCE.forJob(build.getProject().getFullName());
+                fingerprint = getLabelFingerprint(launcher, listener, jobStats);
+            }
+
+            // keep the previous one if pcli failed, so a move isn't missed
+            if (fingerprint != null) {
+                builder.labelFingerprint(fingerprint);
+            }
+        }
+
+        PvcsRevisionState state = builder.build();
+        LOGGER.debug("calculated " + state + " for " + build);
+
+        return state;
+    }
+    // }}}
+
+    // {{{ compareRemoteRevisionWith
+    /**
+     * Looks for check-ins since the newest one recorded in the baseline and
+     * reports a change only for archives whose revision actually moved.
+     */
+    @Override
+    protected PollingResult compareRemoteRevisionWith(final AbstractProject<?, ?> project,
+                                                      final Launcher launcher,
+                                                      final FilePath workspace,
+                                                      final TaskListener listener,
+                                                      final SCMRevisionState baseline)
+        throws IOException, InterruptedException
+    {
+        LOGGER.debug("polling for changes in " + workspace);
+
+        PvcsJobStats jobStats = PvcsStats.INSTANCE.forJob(project.getFullName());
+        
+        if (project.getLastBuild() == null) {
+            LOGGER.info("no existing build; starting a new one");
+            listener.getLogger().println("no existing build; starting a new one");
+
+            return PollingResult.BUILD_NOW;
+        }
+
+        PvcsRevisionState state = null;
+        if (baseline instanceof PvcsRevisionState) {
+            state = (PvcsRevisionState) baseline;
+        }
+
+        if (getFollowedLabel() != null) {
+            return compareLabelFingerprint(launcher, listener, jobStats, baseline, state);
+        }
+
+        PvcsChangeLogSet changeSet = getChanges(launcher, listener, jobStats, project.getLastBuild(), state);
+
+        PvcsRevisionState.Builder remote = new PvcsRevisionState.Builder(state);
+        boolean changeDetected = (changeSet.sizeOfEntryArray() > 0);
+
+        for (PvcsChangeLogEntry entry : changeSet.getEntryArray()) {
+            remote.put(entry.getFileName(), entry.getRevision(), entry.getModifiedTime());
+
+            listener.getLogger().print("==> " + entry.getFileName() + " ");
+            listener.getLogger().print(entry.getRevision() + " ");
+            listener.getLogger().println(entry.getModifiedTime().getTime());
+            listener.getLogger().println(entry.getComment());
+        }
+
+        if (! changeDetected) {
+            listener.getLogger().println("no changes detected");
+
+            return PollingResult.NO_CHANGES;
+        }
+        
+        return new PollingResult(baseline, remote.build(), PollingResult.Change.SIGNIFICANT);
+    }
+     // }}}
+
+    // {{{ compareLabelFingerprint
+    /**
+     * Reports a change only if the followed label or promotion group has
+     * moved since the baseline was taken.  The first poll without a known
+     * fingerprint only records it.
+     */
+    private PollingResult compareLabelFingerprint(final Launcher launcher,
+                                                  final TaskListener listener,
+                                                  final PvcsJobStats jobStats,
+                                                  final SCMRevisionState baseline,
+                                                  final PvcsRevisionState state)
+        throws IOException, InterruptedException
+    {
+        String label = getFollowedLabel();
+        String fingerprint = getLabelFingerprint(launcher, listener, jobStats);
+
+        if (fingerprint == null) {
+            return PollingResult.NO_CHANGES;
+        }
+
+        PvcsRevisionState remote = new PvcsRevisionState.Builder(state).labelFingerprint(fingerprint).build();
+        String known = (state != null) ? state.getLabelFingerprint() : null;
+
+        if (known == null) {
+            listener.getLogger().println("no fingerprint of " + label + " recorded yet; recording " + fingerprint);
+
+            return new PollingResult(baseline, remote, PollingResult.Change.NONE);
+        }
+
+        if (known.equals(fingerprint)) {
+            listener.getLogger().println(label + " has not moved");
+
+            return new PollingResult(baseline, remote, PollingResult.Change.NONE);
+        }
+
+        listener.getLogger().println(label + " has moved; fingerprint was " + known + ", is " + fingerprint);
+
+        return new PollingResult(baseline, remote, PollingResult.Change.SIGNIFICANT);
+    }
+    // }}}
+
+    // {{{ getLabelFingerprint
+    /**
+     * Runs <code>pcli vlog</code> over the whole module, without a time
+     * window, and returns the fingerprint of the revisions carrying the
+     * followed label or promotion group, or null if pcli failed.
+     */
+    private String getLabelFingerprint(final Launcher launcher,
+                                       final TaskListener listener,
+                                       final PvcsJobStats jobStats)
+        throws IOException, InterruptedException
+    {
+        String label = getFollowedLabel();
+        boolean group = (Util.fixEmptyAndTrim(versionLabel) == null);
+
+        final PvcsLabelFingerprint fingerprint = new PvcsLabelFingerprint(archiveRoot, getPathFilter(), label, group);
+        final int[] status = { -1 };
+
+        listener.getLogger().println("looking for the revisions of " + (group ? "promotion group " : "label ")
+                                     + label);
+
+        PvcsBatch batch = new PvcsBatch(getDescriptor().getExecutable());
+        batch.add(new PvcsBatch.Command("-q", getVlogArgs(null, null, Arrays.asList("-z", moduleDir))) {
+            void read(final InputStream output, final PvcsCallStats call) throws IOException {
+                fingerprint.parse(new InputStreamReader(output));
+                call.parsed(fingerprint.getArchiveCount(), 0, -1);
+            }
+
+            void finished(final int rc) {
+                status[0] = rc;
+            }
+        });
+        batch.run(launcher, null, listener, jobStats);
+
+        if (status[0] != 0) {
+            LOGGER.error("command failed, returned " + status[0]);
+            listener.error("command failed, returned " + status[0]);
+            return null;
+        }
+
+        listener.getLogger().println(label + " is on " + fingerprint.getCount() + " archive(s)");
+
+        return fingerprint.toString();
+    }
+    // }}}
+
+    // {{{ findRevisionState
+    /**
+     * Returns the revision state of the given build or the nearest earlier
+     * one that has it, or null.
+     */
+    private static PvcsRevisionState findRevisionState(final Run<?, ?> build) {
+        for (Run<?, ?> r = build; r != null; r = r.getPreviousBuild()) {
+            PvcsRevisionState state = r.getAction(PvcsRevisionState.class);
+            if (state != null) {
+                return state;
+            }
+        }
+
+        return null;
+    }
+    // }}}
+
+    // {{{ getChanges
+    /**
+     * Returns the entries checked in since the newest check-in recorded in
+     * <code>state</code> (or since <code>lastBuild</code> started, if none is
+     * known) whose revision differs from the one in <code>state</code>.
+     *
+     * @param state the baseline; may be null
+     */
+    private PvcsChangeLogSet getChanges(final Launcher launcher,
+                                        final TaskListener listener,
+                                        final PvcsJobStats jobStats,
+                                        final Run<?, ?> lastBuild,
+                                        final PvcsRevisionState state)
+        throws IOException, InterruptedException
+    {
+        PvcsChangeLogCollector collector = new PvcsChangeLogCollector();
+        getChanges(launcher, listener, jobStats, lastBuild, state, collector, true, null);
+
+        return collector.getChangeLogSet();
+    }
+    // }}}
+
+    // {{{ getChanges
+    /**
+     * Passes the entries checked in since the newest check-in recorded in
+     * <code>state</code> (or since <code>lastBuild</code> started, if none is
+     * known) whose revision differs from the one in <code>state</code> to
+     * the handler.
+     * <p>
+     * The vlog result is cached briefly, before the path filters are
+     * applied, and shared with every job making the same query; if a result
+     * for the same start time is cached, only the check-ins since that query
+     * are fetched.  Without a cached or running query and with <code>cacheResult</code> false, the
+     * vlog output is streamed to the handler without being kept; given a
+     * batch, an unsharded vlog is only added to it, and the handler sees the
+     * records when the batch is run.
+     *
+     * @param state the baseline; may be null
+     * @param batch where to queue the vlog; may be null to run it right away
+     */
+    private void getChanges(final Launcher launcher,
+                            final TaskListener listener,
+                            final PvcsJobStats jobStats,
+                            final Run<?, ?> lastBuild,
+                            final PvcsRevisionState state,
+                            final PvcsVlogParser.Handler handler,
+                            final boolean cacheResult,
+                            final PvcsBatch batch)
+        throws IOException, InterruptedException
+    {
+        Calendar since = null;
+        if (state != null) {
+            since = state.getNewestCheckIn();
+        }
+
+        if (since == null) {
+            since = lastBuild.getTimestamp();
+        }
+
+        String cacheKey = getCacheKey(since);
+        Calendar now = Calendar.getInstance();
+
+        PvcsVlogParser.Handler filter = handler;
+        if (state != null) {
+            filter = new PvcsVlogParser.Handler() {
+                public void record(final String fileName,
+                                   final String revision,
+                                   final Date modifiedTime,
+                                   final String userName,
+                                   final String comment)
+                {
+                    if ((revision != null) && revision.equals(state.getRevision(fileName))) {
+                        // already built
+                        return;
+                    }
+
+                    handler.record(fileName, revision, modifiedTime, userName, comment);
+                }
+            };
+        }
+
+        if (cacheResult || PvcsChangeLogCache.INSTANCE.isKnown(cacheKey)) {
+            replay(getCachedChanges(launcher, listener, jobStats, since, cacheKey), filter);
+        } else if ((batch != null) && (vlogThreads <= 1) && (pollingLabel == null)) {
+            listener.getLogger().println("looking for changes between " + since.getTime() + " and " + now.getTime());
+            batch.add(new VlogCommand(listener, since, now, Arrays.asList("-z", moduleDir), getPathFilter(), filter));
+        } else {
+            runVlog(launcher, listener, jobStats, since, now, getPathFilter(), filter);
+        }
+    }
+    // }}}
+
+    // {{{ replay
+    /**
+     * Passes the entries of a cached set that pass the path filters to the
+     * handler.
+     */
+    private void replay(final PvcsChangeLogSet changeSet, final PvcsVlogParser.Handler handler) {
+        PvcsPathFilter pathFilter = getPathFilter();
+
+        for (PvcsChangeLogEntry entry : changeSet.getEntryArray()) {
+            if ((pathFilter != null) && ! pathFilter.accepts(stripPrefixFudge(entry.getFileName()))) {
+                continue;
+            }
+
+            Calendar modifiedTime = entry.getModifiedTime();
+
+            handler.record(entry.getFileName(),
+                           entry.getRevision(),
+                           (modifiedTime != null) ? modifiedTime.getTime() : null,
+                           entry.getUserName(),
+                           entry.getComment());
+        }
+    }
+    // }}}
+
+    // {{{ getCachedChanges
+    /**
+     * Returns the unfiltered check-ins since <code>since</code>, from the
+     * cache when possible.  If another job is running the same query, waits
+     * for its result instead of starting pcli.
+     */
+    private PvcsChangeLogSet getCachedChanges(final Launcher launcher,
+                                              final TaskListener listener,
+                                              final PvcsJobStats jobStats,
+                                              final Calendar since,
+                                              final String cacheKey)
+        throws IOException, InterruptedException
+    {
+        PvcsChangeLogCache.Loader loader = new PvcsChangeLogCache.Loader() {
+            public PvcsChangeLogCache.Result load(final PvcsChangeLogCache.Result cached)
+                throws IOException, InterruptedException
+            {
+                Calendar now = Calendar.getInstance();
+
+                if (cached == null) {
+                    VlogResult result = runVlog(launcher, listener, jobStats, since, now, null);
+
+                    return new PvcsChangeLogCache.Result(result.changeLogSet, now, now.getTimeInMillis(),
+                                                         result.succeeded);
+                }
+
+                Calendar deltaStart = (Calendar) cached.end.clone();
+                deltaStart.add(Calendar.MINUTE, -CACHE_OVERLAP_MINUTES);
+
+                listener.getLogger().println("reusing changes found up to " + cached.end.getTime());
+
+                VlogResult delta = runVlog(launcher, listener, jobStats, deltaStart, now, null);
+
+                return new PvcsChangeLogCache.Result(PvcsChangeLogCache.merge(cached.changeLogSet,
+                                                                              delta.changeLogSet),
+                                                     now, cached.created, delta.succeeded);
+            }
+
+            public void joined() {
+                listener.getLogger().println("waiting for the same PVCS query started by another build");
+            }
+        };
+
+        return PvcsChangeLogCache.INSTANCE.load(cacheKey, loader).changeLogSet;
+    }
+    // }}}
+
+    // {{{ stripPrefixFudge
+    /**
+     * Returns a changelog file name as the path filters see it.
+     */
+    private String stripPrefixFudge(final String fileName) {
+        return stripPrefixFudge(fileName, changeLogPrefixFudge);
+    }
+    // }}}
+
+    // {{{ stripPrefixFudge
+    /**
+     * Returns a changelog file name without the prefix fudge: the archive's
+     * path below the archive root.
+     */
+    static String stripPrefixFudge(final String fileName, final String prefixFudge) {
+        if ((prefixFudge != null) && fileName.startsWith(prefixFudge)) {
+            return fileName.substring(prefixFudge.length());
+        }
+
+        return fileName;
+    }
+    // }}}
+
+    // {{{ getEntity
+    /**
+     * Returns the PVCS entity of a changelog file name, for
+     * <code>pcli get</code>.
+     * <p>
+     * A changelog file name is the prefix fudge followed by the archive's
+     * path below <code>archiveRoot</code>.  The archive root holds the
+     * archives of the project database's root project and the archive tree
+     * mirrors the project tree, so that path with a leading slash is the
+     * file's project path, the same form as <code>moduleDir</code>.
+     */
+    static String getEntity(final String fileName, final String prefixFudge) {
+        return "/" + stripPrefixFudge(fileName, prefixFudge);
+    }
+    // }}}
+
+    // {{{ getCacheKey
+    /**
+     * Returns the key of a vlog query starting at <code>since</code>; it
+     * covers everything that affects the query or how its output is parsed,
+     * but not the path filters, so jobs that differ only in those share the
+     * result.
+     */
+    private String getCacheKey(final Calendar since) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : new String[] { getDescriptor().getExecutable(), projectRoot, archiveRoot,
+                                          changeLogPrefixFudge, moduleDir, loginId, pvcsWorkspace,
+                                          versionLabel, promotionGroup })
+        {
+            sb.append(part).append('\0');
+        }
+
+        return sb.append(since.getTimeInMillis()).toString();
+    }
+    // }}}
+
+    // {{{ getModifications
+    /**
+     * Returns a PvcsChangeLogSet containing all change entries since
+     * lastBuild.  The query goes through the controller-wide vlog cache.
+     *
+     * @param launcher the launcher to use to invoke the PVCS client.
+     * @param listener task listener for outputting status
+     * @param lastBuild the last time the job was built.
+     */
+    public PvcsChangeLogSet getModifications(final Launcher launcher,
+                                             final TaskListener listener,
+                                             final Calendar lastBuild)
+        throws IOException, InterruptedException
+    {
+        PvcsChangeLogCollector collector = new PvcsChangeLogCollector();
+        // not on behalf of a job, so the calls are only counted globally
+        replay(getCachedChanges(launcher, listener, null, lastBuild, getCacheKey(lastBuild)), collector);
+
+        return collector.getChangeLogSet();
+    }
+    // }}}
+
+    // {{{ getModifications
+    /**
+     * Returns a PvcsChangeLogSet containing all change entries between
+     * lastBuild and now.
+     *
+     * @param launcher the launcher to use to invoke the PVCS client.
+     * @param listener task listener for outputting status
+     * @param lastBuild start of the window
+     * @param now end of the window
+     */
+    public PvcsChangeLogSet getModifications(final Launcher launcher,
+                                             final TaskListener listener,
+                                             final Calendar lastBuild,
+                                             final Calendar now)
+        throws IOException, InterruptedException
+    {
+        return runVlog(launcher, listener, null, lastBuild, now, getPathFilter()).changeLogSet;
+    }
+    // }}}
+
+    /**
+     * The outcome of a single <code>pcli vlog</code> invocation.
+     */
+    private static final class VlogResult
+    {
+        final PvcsChangeLogSet changeLogSet;
+        final boolean succeeded;
+
+        VlogResult(final PvcsChangeLogSet changeLogSet, final boolean succeeded) {
+            this.changeLogSet = changeLogSet;
+            this.succeeded = succeeded;
+        }
+    }
+
+    // {{{ runVlog
+    /**
+     * Runs <code>pcli vlog</code> over the window and collects its output.
+     *
+     * @param pathFilter archives to report; null for all of them
+     */
+    private VlogResult runVlog(final Launcher launcher,
+                               final TaskListener listener,
+                               final PvcsJobStats jobStats,
+                               final Calendar lastBuild,
+                               final Calendar now,
+                               final PvcsPathFilter pathFilter)
+        throws IOException, InterruptedException
+    {
+        PvcsChangeLogCollector collector = new PvcsChangeLogCollector();
+        boolean succeeded = runVlog(launcher, listener, jobStats, lastBuild, now, pathFilter, collector);
+
+        return new VlogResult(collector.getChangeLogSet(), succeeded);
+    }
+    // }}}
+
+    // {{{ runVlog
+    /**
+     * Runs <code>pcli vlog</code> over the window and passes each record to
+     * the handler as soon as it is parsed.  With more than one vlog thread
+     * configured, the module is split into its top-level files and one
+     * shard per subproject, which are queried concurrently.  Records still
+     * arrive in shard order: the first shard streams to the handler while
+     * the others are kept in compact form and replayed once all are done.
+     *
+     * @param pathFilter archives to report; null for all of them
+     * @return true if every pcli invocation succeeded
+     */
+    private boolean runVlog(final Launcher launcher,
+                            final TaskListener listener,
+                            final PvcsJobStats jobStats,
+                            final Calendar lastBuild,
+                            final Calendar now,
+                            final PvcsPathFilter pathFilter,
+                            final PvcsVlogParser.Handler handler)
+        throws IOException, InterruptedException
+    {
+        LOGGER.info("looking for changes between " + lastBuild.getTime() + " and " + now.getTime());
+        listener.getLogger().println("looking for changes between " + lastBuild.getTime() + " and " + now.getTime());
+
+        List<List<String>> shards = null;
+        if (vlogThreads > 1) {
+            shards = getShards(launcher, listener, jobStats);
+        }
+
+        if (shards == null) {
+            return runVlog(launcher, listener, jobStats, lastBuild, now, Arrays.asList("-z", moduleDir), pathFilter, handler);
+        }
+
+        listener.getLogger().println("querying " + shards.size() + " shards with " + vlogThreads + " threads");
+
+        // records of the shards after the first, until it has finished
+        List<PvcsRemoteVlog.Records> buffers = new ArrayList<PvcsRemoteVlog.Records>();
+
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (final List<String> shard : shards) {
+            final PvcsVlogParser.Handler target;
+            if (tasks.isEmpty()) {
+                target = handler;
+            } else {
+                PvcsRemoteVlog.Records buffer = new PvcsRemoteVlog.Records();
+                buffers.add(buffer);
+                target = buffer;
+            }
+
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() throws IOException, InterruptedException {
+                    return runVlog(launcher, listener, jobStats, lastBuild, now, shard, pathFilter, target);
+                }
+            });
+        }
+
+        boolean succeeded = true;
+        for (Boolean result : PvcsExecutors.invokeAll(tasks, vlogThreads)) {
+            succeeded &= result;
+        }
+
+        for (PvcsRemoteVlog.Records buffer : buffers) {
+            buffer.replay(handler);
+        }
+
+        return succeeded;
+    }
+    // }}}
+
+    // {{{ runVlog
+    /**
+     * Runs a single <code>pcli vlog</code> for the given entities.  The
+     * process' output is parsed as it is read, on the calling thread, or
+     * on a node with the polling label if one is configured and online;
+     * anything pcli writes to stderr goes to the listener.
+     *
+     * @return true if pcli succeeded
+     */
+    private boolean runVlog(final Launcher launcher,
+                            final TaskListener listener,
+                            final PvcsJobStats jobStats,
+                            final Calendar lastBuild,
+                            final Calendar now,
+                            final List<String> entities,
+                            final PvcsPathFilter pathFilter,
+                            final PvcsVlogParser.Handler handler)
+        throws IOException, InterruptedException
+    {
+        VirtualChannel channel = getPollingChannel(listener);
+        if (channel != null) {
+            return runRemoteVlog(channel, listener, jobStats, lastBuild, now, entities, pathFilter, handler);
+        }
+
+        VlogCommand vlog = new VlogCommand(listener, lastBuild, now, entities, pathFilter, handler);
+
+        PvcsBatch batch = new PvcsBatch(getDescriptor().getExecutable());
+        batch.add(vlog);
+        batch.run(launcher, null, listener, jobStats);
+
+        return vlog.status == 0;
+    }
+    // }}}
+
+    // {{{ runRemoteVlog
+    /**
+     * Runs a single <code>pcli vlog</code> for the given entities on the
+     * other end of the channel and passes the records it sends back to the
+     * handler.  Check-in times are read in the server's time zone and
+     * locale, or the controller's if none are configured, so that they
+     * agree with the window given to pcli.
+     *
+     * @return true if pcli succeeded
+     */
+    private boolean runRemoteVlog(final VirtualChannel channel,
+                                  final TaskListener listener,
+                                  final PvcsJobStats jobStats,
+                                  final Calendar lastBuild,
+                                  final Calendar now,
+                                  final List<String> entities,
+                                  final PvcsPathFilter pathFilter,
+                                  final PvcsVlogParser.Handler handler)
+        throws IOException, InterruptedException
+    {
+        DescriptorImpl descriptor = getDescriptor();
+
+        String timeZoneId = descriptor.getServerTimeZone();
+        if (timeZoneId == null) {
+            timeZoneId = TimeZone.getDefault().getID();
+        }
+
+        String localeName = descriptor.getServerLocale();
+        if (localeName == null) {
+            localeName = Locale.getDefault().toString();
+        }
+
+        PvcsRemoteVlog vlog = new PvcsRemoteVlog(descriptor.getExecutable(),
+                                                 getVlogArgs(lastBuild, now, entities),
+                                                 archiveRoot, changeLogPrefixFudge,
+                                                 (pathFilter != null) ? includedPaths : null,
+                                                 (pathFilter != null) ? excludedPaths : null,
+                                                 timeZoneId, localeName, listener);
+
+        PvcsRemoteVlog.Records records = channel.call(vlog);
+
+        LOGGER.debug("received " + records.size() + " vlog records with "
+                     + records.getStringCount() + " distinct strings");
+
+        records.replay(handler);
+
+        if (records.call != null) {
+            PvcsStats.INSTANCE.record(jobStats, records.call);
+        }
+
+        if (records.status != 0) {
+            LOGGER.error("command failed, returned " + records.status);
+            listener.error("command failed, returned " + records.status);
+        }
+
+        return records.status == 0;
+    }
+    // }}}
+
+    // {{{ getPollingChannel
+    /**
+     * Returns the channel of an online node with the polling label, picked
+     * at random to spread the load, or null to run pcli on the controller.
+     */
+    private VirtualChannel getPollingChannel(final TaskListener listener) {
+        if (pollingLabel == null) {
+            return null;
+        }
+
+        Jenkins jenkins = Jenkins.getInstance();
+        Label label = (jenkins != null) ? jenkins.getLabel(pollingLabel) : null;
+
+        if (label != null) {
+            List<Node> nodes = new ArrayList<Node>(label.getNodes());
+            Collections.shuffle(nodes);
+
+            for (Node node : nodes) {
+                Computer computer = node.toComputer();
+                VirtualChannel channel = node.getChannel();
+
+                if ((computer != null) && computer.isOnline() && (channel != null)) {
+                    listener.getLogger().println("running vlog on " + node.getNodeName());
+
+                    return channel;
+                }
+            }
+        }
+
+        LOGGER.warn("no online node with label " + pollingLabel + "; running vlog on the controller");
+        listener.getLogger().println("no online node with label " + pollingLabel
+                                     + "; running vlog on the controller");
+
+        return null;
+    }
+    // }}}
+
+    /**
+     * <code>pcli vlog</code> of some entities, parsed into a handler.
+     */
+    private final class VlogCommand extends PvcsBatch.Command
+    {
+        private final TaskListener listener;
+        private final PvcsPathFilter pathFilter;
+        private final PvcsVlogParser.Handler handler;
+
+        int status = -1;
+
+        // {{{ constructor
+        /**
+         * @param pathFilter archives to report; null for all of them
+         */
+        VlogCommand(final TaskListener listener,
+                    final Calendar lastBuild,
+                    final Calendar now,
+                    final List<String> entities,
+                    final PvcsPathFilter pathFilter,
+                    final PvcsVlogParser.Handler handler)
+        {
+            super("-q", getVlogArgs(lastBuild, now, entities));
+
+            this.listener = listener;
+            this.pathFilter = pathFilter;
+            this.handler = handler;
+        }
+        // }}}
+
+        // {{{ read
+        void read(final InputStream output, final PvcsCallStats call) throws IOException {
+            PvcsVlogParser parser = new PvcsVlogParser(archiveRoot, changeLogPrefixFudge, pathFilter,
+                                                       getDescriptor().getDateCodec(), handler);
+            long cpuStart = PvcsCallStats.currentThreadCpuTime();
+
+            parser.parse(new InputStreamReader(output));
+
+            long cpuEnd = PvcsCallStats.currentThreadCpuTime();
+            call.parsed(parser.getArchiveCount(), parser.getRecordCount(),
+                        ((cpuStart >= 0) && (cpuEnd >= 0)) ? (cpuEnd - cpuStart) : -1);
+        }
+        // }}}
+
+        // {{{ finished
+        void finished(final int rc) {
+            status = rc;
+
+            if (rc != 0) {
+                LOGGER.error("command failed, returned " + rc);
+                listener.error("command failed, returned " + rc);
+            }
+        }
+        // }}}
+    }
+
+    // {{{ getVlogArgs
+    /**
+     * Returns the <code>vlog</code> command for check-ins to the entities
+     * within the window.
+     *
+     * @param lastBuild start of the window; null with <code>now</code> for
+     *        all revisions
+     */
+    private List<String> getVlogArgs(final Calendar lastBuild, final Calendar now, final List<String> entities) {
+        PvcsDateCodec codec = getDescriptor().getDateCodec();
+
+        List<String> cmd = new ArrayList<String>();
+        cmd.add("vlog");
+        cmd.add("-pr" + projectRoot);
+        if (loginId != null && !loginId.trim().equals("")) {
+            cmd.add("-id" + loginId);
+        }
+        if (pvcsWorkspace != null && !pvcsWorkspace.trim().equals("")) {
+            cmd.add("-sp" + pvcsWorkspace);
+        }
+        if (versionLabel != null && !versionLabel.trim().equals("")) {
+            cmd.add("-v" + versionLabel);
+        }
+        if (promotionGroup != null && !promotionGroup.trim().equals("")) {
+            cmd.add("-g" + promotionGroup);
+        }
+        cmd.add("-i");
+        if (lastBuild != null) {
+            cmd.add("-ds" + codec.formatCommand(lastBuild.getTimeInMillis()));
+            cmd.add("-de" + codec.formatCommand(now.getTimeInMillis()));
+        }
+        cmd.addAll(entities);
+
+        return cmd;
+    }
+    // }}}
+
+    // {{{ getShards
+    /**
+     * Splits the module into the entity arguments of its top-level files
+     * and one recursive shard per subproject, or returns null if it has no
+     * subprojects or they could not be listed.
+     */
+    private List<List<String>> getShards(final Launcher launcher,
+                                         final TaskListener listener,
+                                         final PvcsJobStats jobStats)
+        throws IOException, InterruptedException
+    {
+        List<String> subprojects = listSubprojects(launcher, listener, jobStats);
+        if ((subprojects == null) || subprojects.isEmpty()) {
+            return null;
+        }
+
+        List<List<String>> shards = new ArrayList<List<String>>();
+        shards.add(Arrays.asList(moduleDir));
+        for (String subproject : subprojects) {
+            shards.add(Arrays.asList("-z", subproject));
+        }
+
+        return shards;
+    }
+    // }}}
+
+    // {{{ listSubprojects
+    /**
+     * Returns the sorted direct subprojects of the module, or null if they
+     * could not be listed.
+     */
+    private List<String> listSubprojects(final Launcher launcher,
+                                         final TaskListener listener,
+                                         final PvcsJobStats jobStats)
+        throws IOException, InterruptedException
+    {
+        List<String> args = new ArrayList<String>();
+        args.add("list");
+        args.add("-pr" + projectRoot);
+        if (loginId != null && !loginId.trim().equals("")) {
+            args.add("-id" + loginId);
+        }
+        args.add("-tProject");
+        args.add(moduleDir);
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final int[] status = { -1 };
+
+        PvcsBatch batch = new PvcsBatch(getDescriptor().getExecutable());
+        batch.add(new PvcsBatch.Command("-q", args) {
+            void read(final InputStream output, final PvcsCallStats call) throws IOException {
+                byte[] buf = new byte[8192];
+                for (int len = output.read(buf); len >= 0; len = output.read(buf)) {
+                    baos.write(buf, 0, len);
+                }
+            }
+
+            void finished(final int rc) {
+                status[0] = rc;
+            }
+        });
+        batch.run(launcher, null, listener, jobStats);
+
+        if (status[0] != 0) {
+            LOGGER.warn("unable to list subprojects, command returned " + status[0]);
+            listener.getLogger().println("unable to list subprojects of " + moduleDir + "; not sharding");
+            return null;
+        }
+
+        return parseSubprojects(baos.toString(), moduleDir);
+    }
+    // }}}
+
+    // {{{ parseSubprojects
+    /**
+     * Extracts the direct subprojects of <code>module</code> from the output
+     * of <code>pcli list</code>; one project path per line, optionally
+     * followed by its type in brackets.
+     */
+    static List<String> parseSubprojects(final String output, final String module) {
+        String parent = module.endsWith("/") ? module : module + "/";
+
+        Set<String> subprojects = new TreeSet<String>();
+        for (String line : output.split("[\r\n]+")) {
+            String path = line.trim();
+
+            int bracket = path.lastIndexOf(" [");
+            if ((bracket != -1) && path.endsWith("]")) {
+                path = path.substring(0, bracket).trim();
+            }
+
+            if (path.startsWith(parent) && (path.length() > parent.length())
+                && (path.indexOf('/', parent.length()) == -1))
+            {
+                subprojects.add(path);
+            }
+        }
+
+        return new ArrayList<String>(subprojects);
+    }
+    // }}}
+
+    // {{{ createChangeLogParser
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PvcsChangeLogParser createChangeLogParser() {
+        return new PvcsChangeLogParser(changeGroupWindow, getDescriptor().getAuthorResolver());
+    }
     // }}}
 
     // {{{ getDescriptor
@@ -466,6 +1985,18 @@ public class PvcsScm extends SCM
 
         private String executable = "pcli";
 
+        /** Lines of <code>pvcsId=jenkinsId</code>. */
+        private String authorMapping;
+
+        /** Time zone of the PVCS server; null for Jenkins' own. */
+        private String serverTimeZone;
+
+        /** Locale of the PVCS server's dates; null for Jenkins' own. */
+        private String serverLocale;
+
+        private transient PvcsAuthorResolver authorResolver;
+        private transient PvcsDateCodec dateCodec;
+
         // {{{ constructor
         private DescriptorImpl() {
             super(PvcsScm.class, null);
@@ -492,6 +2023,9 @@ public class PvcsScm extends SCM
             LOGGER.debug("configuring from " + req);
 
             executable = Util.fixEmpty(req.getParameter("pvcs.executable").trim());
+            setAuthorMapping(Util.fixEmptyAndTrim(req.getParameter("pvcs.authorMapping")));
+            setServerTimeZone(req.getParameter("pvcs.serverTimeZone"));
+            setServerLocale(req.getParameter("pvcs.serverLocale"));
             save();
             return true;
         }
@@ -503,6 +2037,87 @@ public class PvcsScm extends SCM
         }
         // }}}
 
+        // {{{ getAuthorMapping
+        public String getAuthorMapping() {
+            return authorMapping;
+        }
+        // }}}
+
+        // {{{ setAuthorMapping
+        public synchronized void setAuthorMapping(final String authorMapping) {
+            this.authorMapping = authorMapping;
+            this.authorResolver = null;
+        }
+        // }}}
+
+        // {{{ getAuthorResolver
+        /**
+         * Returns the resolver for the configured author mapping.  It is
+         * shared by all change sets until the mapping changes.
+         */
+        synchronized PvcsAuthorResolver getAuthorResolver() {
+            if (authorResolver == null) {
+                authorResolver = PvcsAuthorResolver.parse(authorMapping);
+            }
+
+            return authorResolver;
+        }
+        // }}}
+
+        // {{{ getServerTimeZone
+        public String getServerTimeZone() {
+            return serverTimeZone;
+        }
+        // }}}
+
+        // {{{ setServerTimeZone
+        public synchronized void setServerTimeZone(final String serverTimeZone) {
+            this.serverTimeZone = Util.fixEmptyAndTrim(serverTimeZone);
+            this.dateCodec = null;
+        }
+        // }}}
+
+        // {{{ getServerLocale
+        public String getServerLocale() {
+            return serverLocale;
+        }
+        // }}}
+
+        // {{{ setServerLocale
+        public synchronized void setServerLocale(final String serverLocale) {
+            this.serverLocale = Util.fixEmptyAndTrim(serverLocale);
+            this.dateCodec = null;
+        }
+        // }}}
+
+        // {{{ getDateCodec
+        /**
+         * Returns the codec for the PVCS server's dates.  It is shared by
+         * all jobs until the settings change.
+         */
+        synchronized PvcsDateCodec getDateCodec() {
+            if (dateCodec == null) {
+                dateCodec = PvcsDateCodec.forServer(serverTimeZone, serverLocale);
+            }
+
+            return dateCodec;
+        }
+        // }}}
+
+        // {{{ doServerTimeZoneCheck
+        /**
+         *
+         */
+        public FormValidation doServerTimeZoneCheck(@QueryParameter String value) {
+            value = Util.fixEmptyAndTrim(value);
+            if ((value == null) || Arrays.asList(TimeZone.getAvailableIDs()).contains(value)) {
+                return FormValidation.ok();
+            }
+
+            return FormValidation.error("Unknown time zone " + value);
+        }
+        // }}}
+
         // {{{ doExecutableCheck
         /**
          *
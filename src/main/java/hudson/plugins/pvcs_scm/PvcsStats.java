@@ -0,0 +1,380 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Collects the measurements of every pcli call, per job and for the whole
+ * controller.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsStats implements PvcsStatsMBean
+{
+    private static final Log LOGGER = LogFactory.getLog(PvcsStats.class);
+
+    static final String OBJECT_NAME = "hudson.plugins.pvcs_scm:type=PvcsStats";
+
+    /** Number of recent calls the percentiles are taken over. */
+    private static final int SAMPLES = 1024;
+
+    /** Number of jobs listed by {@link #getBusiestJobs}. */
+    private static final int BUSIEST_JOBS = 10;
+
+    static final PvcsStats INSTANCE = new PvcsStats();
+
+    private final ConcurrentMap<String, PvcsJobStats> jobs = new ConcurrentHashMap<String, PvcsJobStats>();
+
+    private final AtomicLong vlogCalls = new AtomicLong();
+    private final AtomicLong getCalls = new AtomicLong();
+    private final AtomicLong failedCalls = new AtomicLong();
+    private final AtomicLong timedOutCalls = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong archives = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong parseCpuMillis = new AtomicLong();
+    private final AtomicLong vlogCacheHits = new AtomicLong();
+    private final AtomicLong coalescedVlogs = new AtomicLong();
+
+    private final Samples vlogWallMillis = new Samples();
+    private final Samples getWallMillis = new Samples();
+    private final Samples queueWaitMillis = new Samples();
+    private final Samples startupMillis = new Samples();
+    private final Samples firstByteMillis = new Samples();
+
+    // {{{ constructor
+    private PvcsStats() {
+    }
+    // }}}
+
+    // {{{ register
+    /**
+     * Publishes the statistics over JMX.
+     */
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+
+            if (! server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("unable to register " + OBJECT_NAME, e);
+        }
+    }
+    // }}}
+
+    // {{{ forJob
+    /**
+     * Returns the statistics of the named job, creating them if needed.
+     */
+    PvcsJobStats forJob(final String jobName) {
+        PvcsJobStats stats = jobs.get(jobName);
+        if (stats == null) {
+            jobs.putIfAbsent(jobName, new PvcsJobStats(jobName));
+            stats = jobs.get(jobName);
+        }
+
+        return stats;
+    }
+    // }}}
+
+    // {{{ getJob
+    /**
+     * Returns the statistics of the named job, or null if it made no calls
+     * since startup.
+     */
+    PvcsJobStats getJob(final String jobName) {
+        return jobs.get(jobName);
+    }
+    // }}}
+
+    // {{{ record
+    /**
+     * Adds a finished call to the totals and to the job's history.
+     *
+     * @param job the job that made the call; may be null
+     */
+    void record(final PvcsJobStats job, final PvcsCallStats call) {
+        if (job != null) {
+            job.add(call);
+        }
+
+        if ("get".equals(call.getCommand())) {
+            getCalls.incrementAndGet();
+            getWallMillis.add(call.getWallMillis());
+        } else {
+            vlogCalls.incrementAndGet();
+            vlogWallMillis.add(call.getWallMillis());
+        }
+
+        if (call.getExitCode() != 0) {
+            failedCalls.incrementAndGet();
+        }
+
+        bytes.addAndGet(call.getBytes());
+        lines.addAndGet(call.getLines());
+        archives.addAndGet(call.getArchives());
+        entries.addAndGet(call.getEntries());
+        files.addAndGet(call.getFiles());
+        parseCpuMillis.addAndGet(Math.max(0, call.getParseCpuMillis()));
+
+        queueWaitMillis.add(call.getQueueWaitMillis());
+        startupMillis.add(call.getStartupMillis());
+        firstByteMillis.add(call.getFirstByteMillis());
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("pcli %s: queued for %d ms, started in %d ms, first byte after %d ms, "
+                                       + "%d bytes, %d lines, %d entries, %d files in %d ms",
+                                       call.getCommand(), call.getQueueWaitMillis(), call.getStartupMillis(),
+                                       call.getFirstByteMillis(), call.getBytes(), call.getLines(),
+                                       call.getEntries(), call.getFiles(), call.getWallMillis()));
+        }
+    }
+    // }}}
+
+    // {{{ recordTimeout
+    void recordTimeout() {
+        timedOutCalls.incrementAndGet();
+    }
+    // }}}
+
+    // {{{ recordCacheHit
+    void recordCacheHit() {
+        vlogCacheHits.incrementAndGet();
+    }
+    // }}}
+
+    // {{{ recordCoalescedVlog
+    void recordCoalescedVlog() {
+        coalescedVlogs.incrementAndGet();
+    }
+    // }}}
+
+    // {{{ getVlogCalls
+    public long getVlogCalls() {
+        return vlogCalls.get();
+    }
+    // }}}
+
+    // {{{ getGetCalls
+    public long getGetCalls() {
+        return getCalls.get();
+    }
+    // }}}
+
+    // {{{ getFailedCalls
+    public long getFailedCalls() {
+        return failedCalls.get();
+    }
+    // }}}
+
+    // {{{ getTimedOutCalls
+    public long getTimedOutCalls() {
+        return timedOutCalls.get();
+    }
+    // }}}
+
+    // {{{ getBytes
+    public long getBytes() {
+        return bytes.get();
+    }
+    // }}}
+
+    // {{{ getLines
+    public long getLines() {
+        return lines.get();
+    }
+    // }}}
+
+    // {{{ getArchives
+    public long getArchives() {
+        return archives.get();
+    }
+    // }}}
+
+    // {{{ getEntries
+    public long getEntries() {
+        return entries.get();
+    }
+    // }}}
+
+    // {{{ getFiles
+    public long getFiles() {
+        return files.get();
+    }
+    // }}}
+
+    // {{{ getParseCpuMillis
+    public long getParseCpuMillis() {
+        return parseCpuMillis.get();
+    }
+    // }}}
+
+    // {{{ getVlogCacheHits
+    public long getVlogCacheHits() {
+        return vlogCacheHits.get();
+    }
+    // }}}
+
+    // {{{ getCoalescedVlogs
+    public long getCoalescedVlogs() {
+        return coalescedVlogs.get();
+    }
+    // }}}
+
+    // {{{ getVlogWallMillisMedian
+    public long getVlogWallMillisMedian() {
+        return vlogWallMillis.percentile(50);
+    }
+    // }}}
+
+    // {{{ getVlogWallMillis95thPercentile
+    public long getVlogWallMillis95thPercentile() {
+        return vlogWallMillis.percentile(95);
+    }
+    // }}}
+
+    // {{{ getVlogWallMillisMax
+    public long getVlogWallMillisMax() {
+        return vlogWallMillis.percentile(100);
+    }
+    // }}}
+
+    // {{{ getGetWallMillisMedian
+    public long getGetWallMillisMedian() {
+        return getWallMillis.percentile(50);
+    }
+    // }}}
+
+    // {{{ getGetWallMillis95thPercentile
+    public long getGetWallMillis95thPercentile() {
+        return getWallMillis.percentile(95);
+    }
+    // }}}
+
+    // {{{ getGetWallMillisMax
+    public long getGetWallMillisMax() {
+        return getWallMillis.percentile(100);
+    }
+    // }}}
+
+    // {{{ getQueueWaitMillis95thPercentile
+    public long getQueueWaitMillis95thPercentile() {
+        return queueWaitMillis.percentile(95);
+    }
+    // }}}
+
+    // {{{ getQueueWaitMillisMax
+    public long getQueueWaitMillisMax() {
+        return queueWaitMillis.percentile(100);
+    }
+    // }}}
+
+    // {{{ getStartupMillis95thPercentile
+    public long getStartupMillis95thPercentile() {
+        return startupMillis.percentile(95);
+    }
+    // }}}
+
+    // {{{ getFirstByteMillis95thPercentile
+    public long getFirstByteMillis95thPercentile() {
+        return firstByteMillis.percentile(95);
+    }
+    // }}}
+
+    // {{{ getBusiestJobs
+    public String[] getBusiestJobs() {
+        List<PvcsJobStats> busiest = new ArrayList<PvcsJobStats>(jobs.values());
+
+        // snapshot, since the totals keep moving
+        final Map<PvcsJobStats, Long> wall = new HashMap<PvcsJobStats, Long>();
+        for (PvcsJobStats job : busiest) {
+            wall.put(job, job.getTotalWallMillis());
+        }
+
+        Collections.sort(busiest, new Comparator<PvcsJobStats>() {
+            public int compare(final PvcsJobStats a, final PvcsJobStats b) {
+                return wall.get(b).compareTo(wall.get(a));
+            }
+        });
+
+        List<String> result = new ArrayList<String>();
+        for (PvcsJobStats job : busiest.subList(0, Math.min(BUSIEST_JOBS, busiest.size()))) {
+            result.add(job.getJobName() + ": " + wall.get(job) + " ms in " + job.getTotalCalls() + " calls");
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+    // }}}
+
+    /**
+     * The most recent values of a measurement.
+     */
+    private static final class Samples
+    {
+        private final long[] values = new long[SAMPLES];
+        private int count;
+        private int next;
+
+        // {{{ add
+        /**
+         * Adds a value; negative values mean "not measured" and are ignored.
+         */
+        synchronized void add(final long value) {
+            if (value < 0) {
+                return;
+            }
+
+            values[next] = value;
+            next = (next + 1) % values.length;
+            count = Math.min(count + 1, values.length);
+        }
+        // }}}
+
+        // {{{ percentile
+        /**
+         * Returns the given percentile of the recent values, or -1 if there
+         * are none.
+         */
+        long percentile(final int percent) {
+            long[] sorted;
+            synchronized (this) {
+                sorted = Arrays.copyOf(values, count);
+            }
+
+            if (sorted.length == 0) {
+                return -1;
+            }
+
+            Arrays.sort(sorted);
+
+            int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+        // }}}
+    }
+}
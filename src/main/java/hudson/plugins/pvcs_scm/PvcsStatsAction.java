@@ -0,0 +1,103 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.Extension;
+
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.TransientProjectActionFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Shows the recent pcli calls of a job.  The same data is available as
+ * <code>pvcs-stats/api/json</code>.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+@ExportedBean
+public class PvcsStatsAction implements Action
+{
+    private final AbstractProject<?, ?> project;
+
+    // {{{ constructor
+    public PvcsStatsAction(final AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+    // }}}
+
+    // {{{ getProject
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+    // }}}
+
+    // {{{ getIconFileName
+    /**
+     * {@inheritDoc}
+     */
+    public String getIconFileName() {
+        return "graph.png";
+    }
+    // }}}
+
+    // {{{ getDisplayName
+    /**
+     * {@inheritDoc}
+     */
+    public String getDisplayName() {
+        return "PVCS Statistics";
+    }
+    // }}}
+
+    // {{{ getUrlName
+    /**
+     * {@inheritDoc}
+     */
+    public String getUrlName() {
+        return "pvcs-stats";
+    }
+    // }}}
+
+    // {{{ getStats
+    /**
+     * Returns the job's statistics, or null if it made no pcli calls since
+     * startup.
+     */
+    @Exported(inline = true)
+    public PvcsJobStats getStats() {
+        return PvcsStats.INSTANCE.getJob(project.getFullName());
+    }
+    // }}}
+
+    // {{{ getApi
+    public Api getApi() {
+        return new Api(this);
+    }
+    // }}}
+
+    /**
+     * Adds the action to every job using PVCS.
+     */
+    @Extension
+    public static class Factory extends TransientProjectActionFactory
+    {
+        // {{{ createFor
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Collection<? extends Action> createFor(final AbstractProject target) {
+            if (target.getScm() instanceof PvcsScm) {
+                return Collections.singleton(new PvcsStatsAction(target));
+            }
+
+            return Collections.emptyList();
+        }
+        // }}}
+    }
+}
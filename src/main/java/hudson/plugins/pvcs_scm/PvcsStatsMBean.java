@@ -0,0 +1,64 @@
+package hudson.plugins.pvcs_scm;
+
+/**
+ * Controller-wide pcli statistics, published over JMX as
+ * <code>hudson.plugins.pvcs_scm:type=PvcsStats</code>.  Counters run since
+ * startup; the percentiles cover the most recent calls.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public interface PvcsStatsMBean
+{
+    long getVlogCalls();
+
+    long getGetCalls();
+
+    long getFailedCalls();
+
+    long getBytes();
+
+    long getLines();
+
+    long getArchives();
+
+    long getEntries();
+
+    long getFiles();
+
+    long getParseCpuMillis();
+
+    /** Number of vlog queries answered from the cache plus a shorter query. */
+    long getVlogCacheHits();
+
+    /** Number of vlog queries that waited for an identical running one. */
+    long getCoalescedVlogs();
+
+    long getVlogWallMillisMedian();
+
+    long getVlogWallMillis95thPercentile();
+
+    long getVlogWallMillisMax();
+
+    long getGetWallMillisMedian();
+
+    long getGetWallMillis95thPercentile();
+
+    long getGetWallMillisMax();
+
+    /** Number of calls killed because they ran too long. */
+    long getTimedOutCalls();
+
+    long getQueueWaitMillis95thPercentile();
+
+    long getQueueWaitMillisMax();
+
+    long getStartupMillis95thPercentile();
+
+    long getFirstByteMillis95thPercentile();
+
+    /**
+     * Returns the jobs with the most pcli time, busiest first, as
+     * <code>name: millis ms in calls calls</code>.
+     */
+    String[] getBusiestJobs();
+}
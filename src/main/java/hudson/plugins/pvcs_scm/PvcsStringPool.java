@@ -0,0 +1,44 @@
+package hudson.plugins.pvcs_scm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out one shared instance for each distinct string, so that the
+ * directories, users and comments repeated across a changelog are held only
+ * once.  Not thread-safe.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsStringPool
+{
+    private final Map<String, String> strings = new HashMap<String, String>();
+
+    // {{{ intern
+    /**
+     * Returns the pooled instance equal to <code>value</code>; null for null.
+     */
+    String intern(final String value) {
+        if (value == null) {
+            return null;
+        }
+
+        String pooled = strings.get(value);
+        if (pooled == null) {
+            pooled = value;
+            strings.put(pooled, pooled);
+        }
+
+        return pooled;
+    }
+    // }}}
+
+    // {{{ size
+    /**
+     * Returns the number of distinct strings in the pool.
+     */
+    int size() {
+        return strings.size();
+    }
+    // }}}
+}
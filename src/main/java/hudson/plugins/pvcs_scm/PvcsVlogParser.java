@@ -0,0 +1,434 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import java.util.Date;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Record state machine over the output of <code>pcli vlog</code>.
+ * <p>
+ * Input is scanned line by line in place in a reusable character buffer.
+ * Only the lines that carry data for the newest revision of an archive are
+ * ever turned into strings; the "Attributes:" and "Version labels:" blocks,
+ * older revisions and anything following the end of the newest revision's
+ * comment are skipped by looking at their first character only.  A record
+ * is handed to the {@link Handler} once it is complete, so discarded
+ * records never cost more than their file name.  Archives rejected by the
+ * {@link PvcsPathFilter} are skipped the same way, right at their
+ * "Archive:" line.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+class PvcsVlogParser
+{
+    private static final Log LOGGER = LogFactory.getLog(PvcsVlogParser.class);
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final char[] ARCHIVE = "Archive:".toCharArray();
+    private static final char[] AUTHOR_ID = "Author id:".toCharArray();
+    private static final char[] CHECKED_IN = "Checked in:".toCharArray();
+    private static final char[] REV = "Rev".toCharArray();
+    private static final char[] REV_COUNT = "Rev count".toCharArray();
+    private static final char[] DASHES = "-----------------------------------".toCharArray();
+    private static final char[] EQUALS = "===================================".toCharArray();
+
+    /** Offset of the revision number in a "Rev" line. */
+    private static final int REV_OFFSET = 4;
+
+    /** Offset of the timestamp in a "Checked in:" line. */
+    private static final int CHECKED_IN_OFFSET = 16;
+
+    /** Offset of the user name in an "Author id:" line. */
+    private static final int AUTHOR_ID_OFFSET = 11;
+
+    /** Archive file suffix. */
+    private static final String ARCHIVE_FILE_SUFFIX = "_v";
+
+    /**
+     * Receives each complete record.
+     */
+    interface Handler
+    {
+        /**
+         * Called once per archive record, in the order the archives appear.
+         * Any value but the file name may be null if the record did not
+         * contain it.
+         */
+        void record(String fileName,
+                    String revision,
+                    Date modifiedTime,
+                    String userName,
+                    String comment);
+    }
+
+    private enum State
+    {
+        /** No archive seen yet. */
+        IDLE,
+
+        /** Inside an archive record, before the newest revision's author. */
+        HEADER,
+
+        /** Collecting the newest revision's comment. */
+        COMMENT,
+
+        /** Record is complete; waiting for the next archive. */
+        DONE
+    }
+
+    private final String lineSep = System.getProperty("line.separator");
+
+    private final PvcsDateCodec.VlogDates dates;
+
+    private final String archiveRoot;
+    private final String pathPrefix;
+    private final PvcsPathFilter filter;
+    private final Handler handler;
+
+    private State state = State.IDLE;
+
+    private String fileName;
+    private String revision;
+    private long checkedIn;
+    private boolean hasCheckedIn;
+    private String userName;
+    private final StringBuilder comment = new StringBuilder();
+    private boolean hasComment;
+
+    private int archiveCount;
+    private int recordCount;
+
+    // {{{ constructor
+    PvcsVlogParser(final String archiveRoot,
+                   final String pathPrefix,
+                   final Handler handler)
+    {
+        this(archiveRoot, pathPrefix, null, handler);
+    }
+    // }}}
+
+    // {{{ constructor
+    /**
+     * Reads check-in times in the JVM's time zone and locale.
+     *
+     * @param filter archives to report; null for all of them
+     */
+    PvcsVlogParser(final String archiveRoot,
+                   final String pathPrefix,
+                   final PvcsPathFilter filter,
+                   final Handler handler)
+    {
+        this(archiveRoot, pathPrefix, filter, PvcsDateCodec.LOCAL, handler);
+    }
+    // }}}
+
+    // {{{ constructor
+    /**
+     * @param filter archives to report; null for all of them
+     * @param codec reads the check-in times
+     */
+    PvcsVlogParser(final String archiveRoot,
+                   final String pathPrefix,
+                   final PvcsPathFilter filter,
+                   final PvcsDateCodec codec,
+                   final Handler handler)
+    {
+        this.archiveRoot = archiveRoot;
+        this.pathPrefix = pathPrefix;
+        this.filter = filter;
+        this.dates = codec.newVlogDates();
+        this.handler = handler;
+    }
+    // }}}
+
+    // {{{ getArchiveCount
+    /**
+     * Returns the number of archives seen so far, filtered or not.
+     */
+    int getArchiveCount() {
+        return archiveCount;
+    }
+    // }}}
+
+    // {{{ getRecordCount
+    /**
+     * Returns the number of records handed to the handler so far.
+     */
+    int getRecordCount() {
+        return recordCount;
+    }
+    // }}}
+
+    // {{{ parse
+    /**
+     * Consumes the reader to its end.  The reader is not closed.
+     */
+    void parse(final Reader reader) throws IOException {
+        char[] buf = new char[BUFFER_SIZE];
+        int start = 0;
+        int pos = 0;
+        int end = 0;
+        boolean skipLf = false;
+
+        while (true) {
+            while (pos < end) {
+                char c = buf[pos];
+
+                if (skipLf) {
+                    skipLf = false;
+
+                    if (c == '\n') {
+                        start = ++pos;
+                        continue;
+                    }
+                }
+
+                if ((c == '\n') || (c == '\r')) {
+                    consumeLine(buf, start, pos - start);
+
+                    skipLf = (c == '\r');
+                    start = ++pos;
+                } else {
+                    pos++;
+                }
+            }
+
+            if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                pos -= start;
+                start = 0;
+            } else if (end == buf.length) {
+                // a single line longer than the buffer
+                char[] bigger = new char[buf.length * 2];
+                System.arraycopy(buf, 0, bigger, 0, end);
+                buf = bigger;
+            }
+
+            int read = reader.read(buf, end, buf.length - end);
+            if (read < 0) {
+                break;
+            }
+
+            end += read;
+        }
+
+        if (end > start) {
+            consumeLine(buf, start, end - start);
+        }
+
+        finish();
+    }
+    // }}}
+
+    // {{{ consumeLine
+    private void consumeLine(final char[] buf, final int off, final int len) {
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("line: " + new String(buf, off, len));
+        }
+
+        if ((state == State.IDLE) || (state == State.DONE)) {
+            if (startsWith(buf, off, len, ARCHIVE)) {
+                startArchive(new String(buf, off, len));
+            }
+
+            return;
+        }
+
+        char first = (len > 0) ? buf[off] : ' ';
+
+        if ((state == State.HEADER) && (first != 'A') && (first != 'R') && (first != 'C')) {
+            // label, attribute and description lines; nothing to see here
+            return;
+        }
+
+        if (startsWith(buf, off, len, ARCHIVE)) {
+            startArchive(new String(buf, off, len));
+        }
+        else if (startsWith(buf, off, len, REV) && ! startsWith(buf, off, len, REV_COUNT)) {
+            if (revision == null) {
+                revision = substring(buf, off, len, REV_OFFSET);
+            }
+        }
+        else if (startsWith(buf, off, len, CHECKED_IN)) {
+            /*
+             * PVCS reports both "Checked in" and "Last modified"; I'm not
+             * sure when "last modified" is updated, but I think "checked in"
+             * is the best one to use for our purposes here.
+             */
+            if (! hasCheckedIn) {
+                hasCheckedIn = true;
+                checkedIn = (len > CHECKED_IN_OFFSET)
+                    ? dates.parse(buf, off + CHECKED_IN_OFFSET, len - CHECKED_IN_OFFSET)
+                    : PvcsDateCodec.NO_TIME;
+
+                if (checkedIn == PvcsDateCodec.NO_TIME) {
+                    LOGGER.error("Error parsing modification time " + substring(buf, off, len, CHECKED_IN_OFFSET));
+                }
+            }
+        }
+        else if (state == State.COMMENT) {
+            boolean isEndOfCommentsLine = equals(buf, off, len, DASHES) || equals(buf, off, len, EQUALS);
+
+            if (comment.length() == 0) {
+                comment.append(buf, off, len);
+                hasComment = true;
+            } else if (! isEndOfCommentsLine) {
+                comment.append(lineSep).append(buf, off, len);
+            } else {
+                // ignore everything else until the next archive
+                state = State.DONE;
+                emit();
+            }
+        }
+        else if (startsWith(buf, off, len, AUTHOR_ID)) {
+            userName = firstToken(buf, off, len, AUTHOR_ID_OFFSET);
+            state = State.COMMENT;
+        }
+    }
+    // }}}
+
+    // {{{ startArchive
+    private void startArchive(final String line) {
+        if ((state == State.HEADER) || (state == State.COMMENT)) {
+            // didn't find a valid entry before; drop it
+            LOGGER.warn("discarding incomplete change log record for " + fileName);
+        }
+
+        state = State.HEADER;
+        archiveCount++;
+
+        revision = null;
+        hasCheckedIn = false;
+        userName = null;
+        comment.setLength(0);
+        hasComment = false;
+
+        String name = archiveName(line, archiveRoot);
+
+        if ((filter != null) && ! filter.accepts(name)) {
+            LOGGER.trace("skipping filtered archive " + name);
+
+            // ignore everything until the next archive
+            state = State.DONE;
+            fileName = null;
+            return;
+        }
+
+        if (pathPrefix != null) {
+            name = pathPrefix + name;
+        }
+
+        fileName = name;
+    }
+    // }}}
+
+    // {{{ archiveName
+    /**
+     * Returns the name of the archive of an "Archive:" line, relative to
+     * the archive root and without the archive suffix.
+     */
+    static String archiveName(final String line, final String archiveRoot) {
+        int startIndex = (archiveRoot != null) ? line.indexOf(archiveRoot) : -1;
+        if (startIndex != -1) {
+            // found the branch in the archive path
+            startIndex += archiveRoot.length();
+        } else {
+            startIndex = 0;
+        }
+
+        int endIndex = line.indexOf(ARCHIVE_FILE_SUFFIX);
+        if (endIndex == -1) {
+            endIndex = line.length();
+        }
+
+        String name = line.substring(startIndex, endIndex);
+
+        if (name.startsWith("/") || name.startsWith("\\")) {
+            name = name.substring(1);
+        }
+
+        return name;
+    }
+    // }}}
+
+    // {{{ finish
+    /**
+     * A record still open at the end of the stream is kept, even if it is
+     * incomplete.
+     */
+    private void finish() {
+        if ((state == State.HEADER) || (state == State.COMMENT)) {
+            emit();
+        }
+
+        state = State.IDLE;
+    }
+    // }}}
+
+    // {{{ emit
+    private void emit() {
+        recordCount++;
+
+        handler.record(fileName,
+                       revision,
+                       (hasCheckedIn && (checkedIn != PvcsDateCodec.NO_TIME)) ? new Date(checkedIn) : null,
+                       userName,
+                       hasComment ? comment.toString() : null);
+    }
+    // }}}
+
+    // {{{ startsWith
+    private static boolean startsWith(final char[] buf, final int off, final int len, final char[] prefix) {
+        if (len < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[off + i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+    // }}}
+
+    // {{{ equals
+    private static boolean equals(final char[] buf, final int off, final int len, final char[] other) {
+        return (len == other.length) && startsWith(buf, off, len, other);
+    }
+    // }}}
+
+    // {{{ substring
+    private static String substring(final char[] buf, final int off, final int len, final int from) {
+        return (len > from) ? new String(buf, off + from, len - from) : "";
+    }
+    // }}}
+
+    // {{{ firstToken
+    /**
+     * Returns the first space-delimited token at or after <code>from</code>.
+     */
+    private static String firstToken(final char[] buf, final int off, final int len, final int from) {
+        int i = off + Math.min(from, len);
+        int end = off + len;
+
+        while ((i < end) && (buf[i] == ' ')) {
+            i++;
+        }
+
+        int tokenStart = i;
+        while ((i < end) && (buf[i] != ' ')) {
+            i++;
+        }
+
+        return new String(buf, tokenStart, i - tokenStart).trim();
+    }
+    // }}}
+}
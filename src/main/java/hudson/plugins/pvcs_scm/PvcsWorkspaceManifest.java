@@ -0,0 +1,576 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.FilePath;
+import hudson.Util;
+
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.StringReader;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import jenkins.MasterToSlaveFileCallable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Records what the last checkout put into a workspace: the configuration
+ * it was fetched with, the build that fetched it, the revision of each
+ * workfile fetched individually since the last full get, and the size and
+ * modification time of every workfile fetched, so that the workspace can be
+ * checked without asking PVCS.
+ * <p>
+ * The manifest is a text file in the root of the workspace, so deleting
+ * the workspace contents also invalidates it.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+final class PvcsWorkspaceManifest
+{
+    private static final Log LOGGER = LogFactory.getLog(PvcsWorkspaceManifest.class);
+
+    static final String FILE_NAME = ".pvcs_manifest";
+
+    private static final String CONFIG_PREFIX = "#config ";
+    private static final String BUILD_PREFIX = "#build ";
+    private static final String FILE_PREFIX = "#file ";
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Number of threads hashing workfile contents; 0 checks only sizes and
+     * modification times.
+     */
+    private static final int HASH_THREADS =
+        Integer.getInteger(PvcsWorkspaceManifest.class.getName() + ".hashThreads", 0);
+
+    /** Number of threads deleting files when reconciling a workspace. */
+    private static final int DELETE_THREADS =
+        Integer.getInteger(PvcsWorkspaceManifest.class.getName() + ".deleteThreads", 4);
+
+    private static final String HASH_ALGORITHM = "MD5";
+    private static final String NO_HASH = "-";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * What is known about a workfile right after it was fetched.
+     */
+    static final class FileInfo implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        final long size;
+        final long modified;
+
+        /** Hex digest of the contents, or null if not hashed. */
+        final String hash;
+
+        FileInfo(final long size, final long modified, final String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * What {@link #reconcile} did to a workspace.
+     */
+    static final class Reconciliation implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** Recorded workfiles that were missing or modified, and are gone now. */
+        final List<String> stale = new ArrayList<String>();
+
+        /** Number of files and directories deleted that were never fetched. */
+        int strays;
+    }
+
+    private final String config;
+    private final String buildId;
+    private final Map<String, String> revisions;
+    private final Map<String, FileInfo> files;
+
+    // {{{ constructor
+    /**
+     * @param config fingerprint of the configuration used to fetch
+     * @param buildId id of the build that fetched
+     * @param revisions workfile path to revision
+     */
+    PvcsWorkspaceManifest(final String config,
+                          final String buildId,
+                          final Map<String, String> revisions)
+    {
+        this(config, buildId, revisions, Collections.<String, FileInfo>emptyMap());
+    }
+    // }}}
+
+    // {{{ constructor
+    /**
+     * @param config fingerprint of the configuration used to fetch
+     * @param buildId id of the build that fetched
+     * @param revisions workfile path to revision
+     * @param files workspace-relative workfile path to what was fetched
+     */
+    PvcsWorkspaceManifest(final String config,
+                          final String buildId,
+                          final Map<String, String> revisions,
+                          final Map<String, FileInfo> files)
+    {
+        this.config = config;
+        this.buildId = buildId;
+        this.revisions = new TreeMap<String, String>(revisions);
+        this.files = new TreeMap<String, FileInfo>(files);
+    }
+    // }}}
+
+    // {{{ getConfig
+    String getConfig() {
+        return config;
+    }
+    // }}}
+
+    // {{{ getBuildId
+    String getBuildId() {
+        return buildId;
+    }
+    // }}}
+
+    // {{{ getRevisions
+    Map<String, String> getRevisions() {
+        return Collections.unmodifiableMap(revisions);
+    }
+    // }}}
+
+    // {{{ getFiles
+    Map<String, FileInfo> getFiles() {
+        return Collections.unmodifiableMap(files);
+    }
+    // }}}
+
+    // {{{ matches
+    /**
+     * Returns true if the workspace was last fetched with the given
+     * configuration by the given build.
+     */
+    boolean matches(final String expectedConfig, final String expectedBuildId) {
+        return config.equals(expectedConfig) && buildId.equals(expectedBuildId);
+    }
+    // }}}
+
+    // {{{ read
+    /**
+     * Returns the workspace's manifest, or null if it has none or it cannot
+     * be read.
+     */
+    static PvcsWorkspaceManifest read(final FilePath workspace)
+        throws IOException, InterruptedException
+    {
+        FilePath file = workspace.child(FILE_NAME);
+        if (! file.exists()) {
+            return null;
+        }
+
+        return parse(file.readToString());
+    }
+    // }}}
+
+    // {{{ parse
+    static PvcsWorkspaceManifest parse(final String text) throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader(text));
+
+        String config = null;
+        String buildId = null;
+        Map<String, String> revisions = new TreeMap<String, String>();
+        Map<String, FileInfo> files = new TreeMap<String, FileInfo>();
+
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if (line.startsWith(CONFIG_PREFIX)) {
+                config = line.substring(CONFIG_PREFIX.length());
+            } else if (line.startsWith(BUILD_PREFIX)) {
+                buildId = line.substring(BUILD_PREFIX.length());
+            } else if (line.startsWith(FILE_PREFIX)) {
+                String[] fields = line.substring(FILE_PREFIX.length()).split("\t", 4);
+
+                try {
+                    files.put(fields[3], new FileInfo(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                                                      NO_HASH.equals(fields[2]) ? null : fields[2]));
+                } catch (RuntimeException e) {
+                    LOGGER.warn("ignoring malformed manifest line " + line);
+                    return null;
+                }
+            } else if (line.length() > 0) {
+                int tab = line.indexOf('\t');
+                if (tab == -1) {
+                    LOGGER.warn("ignoring malformed manifest line " + line);
+                    return null;
+                }
+
+                revisions.put(line.substring(tab + 1), line.substring(0, tab));
+            }
+        }
+
+        if ((config == null) || (buildId == null)) {
+            return null;
+        }
+
+        return new PvcsWorkspaceManifest(config, buildId, revisions, files);
+    }
+    // }}}
+
+    // {{{ write
+    void write(final FilePath workspace) throws IOException, InterruptedException {
+        workspace.child(FILE_NAME).write(toString(), ENCODING);
+    }
+    // }}}
+
+    // {{{ delete
+    static void delete(final FilePath workspace) throws IOException, InterruptedException {
+        FilePath file = workspace.child(FILE_NAME);
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+    // }}}
+
+    // {{{ toString
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append(CONFIG_PREFIX).append(config).append('\n');
+        sb.append(BUILD_PREFIX).append(buildId).append('\n');
+
+        for (Map.Entry<String, String> entry : revisions.entrySet()) {
+            sb.append(entry.getValue()).append('\t').append(entry.getKey()).append('\n');
+        }
+
+        for (Map.Entry<String, FileInfo> entry : files.entrySet()) {
+            FileInfo info = entry.getValue();
+
+            sb.append(FILE_PREFIX).append(info.size).append('\t').append(info.modified).append('\t')
+                .append((info.hash != null) ? info.hash : NO_HASH).append('\t').append(entry.getKey()).append('\n');
+        }
+
+        return sb.toString();
+    }
+    // }}}
+
+    // {{{ index
+    /**
+     * Records the size, modification time and, if hashing is enabled, the
+     * digest of the given workfiles, on the workspace's node.
+     *
+     * @param workfiles workfile paths as printed by <code>pcli get</code>,
+     *        relative to the workspace or absolute; files outside the
+     *        workspace are left out
+     * @return workspace-relative path to what is on disk now
+     */
+    static Map<String, FileInfo> index(final FilePath workspace, final Collection<String> workfiles)
+        throws IOException, InterruptedException
+    {
+        final List<String> paths = new ArrayList<String>(workfiles);
+
+        return workspace.act(new MasterToSlaveFileCallable<Map<String, FileInfo>>() {
+            private static final long serialVersionUID = 1L;
+
+            public Map<String, FileInfo> invoke(final File root, final VirtualChannel channel)
+                throws IOException, InterruptedException
+            {
+                String prefix = root.getAbsolutePath() + File.separator;
+
+                final Map<String, File> found = new TreeMap<String, File>();
+                for (String path : paths) {
+                    File file = new File(path);
+                    if (! file.isAbsolute()) {
+                        file = new File(root, path);
+                    }
+
+                    String absolute = file.getAbsolutePath();
+                    if (! absolute.startsWith(prefix)) {
+                        LOGGER.debug("not indexing " + path + "; outside of the workspace");
+                        continue;
+                    }
+
+                    if (file.isFile()) {
+                        found.put(absolute.substring(prefix.length()).replace(File.separatorChar, '/'), file);
+                    }
+                }
+
+                List<Callable<FileInfo>> tasks = new ArrayList<Callable<FileInfo>>();
+                for (final File file : found.values()) {
+                    tasks.add(new Callable<FileInfo>() {
+                        public FileInfo call() throws IOException {
+                            return new FileInfo(file.length(), file.lastModified(),
+                                                (HASH_THREADS > 0) ? hash(file) : null);
+                        }
+                    });
+                }
+
+                List<FileInfo> infos = PvcsExecutors.invokeAll(tasks, Math.max(1, HASH_THREADS));
+
+                Map<String, FileInfo> index = new TreeMap<String, FileInfo>();
+                int i = 0;
+                for (String path : found.keySet()) {
+                    index.put(path, infos.get(i++));
+                }
+
+                return index;
+            }
+        });
+    }
+    // }}}
+
+    // {{{ verify
+    /**
+     * Checks on the workspace's node that every workfile recorded is still
+     * there, unchanged in size and modification time and, if hashing is
+     * enabled and the manifest has digests, in contents.
+     *
+     * @return null if the workspace matches, else what doesn't
+     */
+    String verify(final FilePath workspace) throws IOException, InterruptedException {
+        if (files.isEmpty()) {
+            return "no workfiles recorded";
+        }
+
+        return verify(workspace, files);
+    }
+    // }}}
+
+    // {{{ verify
+    private static String verify(final FilePath workspace, final Map<String, FileInfo> expected)
+        throws IOException, InterruptedException
+    {
+        return workspace.act(new MasterToSlaveFileCallable<String>() {
+            private static final long serialVersionUID = 1L;
+
+            public String invoke(final File root, final VirtualChannel channel)
+                throws IOException, InterruptedException
+            {
+                int missing = 0;
+                int changed = 0;
+
+                List<Callable<Boolean>> hashChecks = new ArrayList<Callable<Boolean>>();
+
+                for (Map.Entry<String, FileInfo> entry : expected.entrySet()) {
+                    final File file = new File(root, entry.getKey());
+                    final FileInfo info = entry.getValue();
+
+                    if (! file.isFile()) {
+                        missing++;
+                    } else if (isTouched(file, info)) {
+                        changed++;
+                    } else if ((HASH_THREADS > 0) && (info.hash != null)) {
+                        hashChecks.add(new Callable<Boolean>() {
+                            public Boolean call() throws IOException {
+                                return info.hash.equals(hash(file));
+                            }
+                        });
+                    }
+                }
+
+                if (missing + changed == 0) {
+                    for (Boolean same : PvcsExecutors.invokeAll(hashChecks, HASH_THREADS)) {
+                        if (! same) {
+                            changed++;
+                        }
+                    }
+                }
+
+                if (missing + changed == 0) {
+                    return null;
+                }
+
+                return missing + " missing and " + changed + " changed of " + expected.size() + " workfiles";
+            }
+        });
+    }
+    // }}}
+
+    // {{{ reconcile
+    /**
+     * Brings the workspace back to what was fetched, on its node: deletes
+     * every file and directory that holds no recorded workfile, and every
+     * recorded workfile that was modified.  The manifest file itself is
+     * kept.
+     *
+     * @return the workfiles to fetch again, and how many strays went
+     * @throws IOException if anything could not be deleted
+     */
+    Reconciliation reconcile(final FilePath workspace) throws IOException, InterruptedException {
+        return reconcile(workspace, files);
+    }
+    // }}}
+
+    // {{{ reconcile
+    private static Reconciliation reconcile(final FilePath workspace, final Map<String, FileInfo> expected)
+        throws IOException, InterruptedException
+    {
+        return workspace.act(new MasterToSlaveFileCallable<Reconciliation>() {
+            private static final long serialVersionUID = 1L;
+
+            public Reconciliation invoke(final File root, final VirtualChannel channel)
+                throws IOException, InterruptedException
+            {
+                return reconcileDirectory(root, expected);
+            }
+        });
+    }
+    // }}}
+
+    // {{{ reconcileDirectory
+    /**
+     * Does the work of {@link #reconcile} on a local directory.
+     */
+    static Reconciliation reconcileDirectory(final File root, final Map<String, FileInfo> expected)
+        throws IOException, InterruptedException
+    {
+        Set<String> directories = new HashSet<String>();
+        for (String path : expected.keySet()) {
+            for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+                directories.add(path.substring(0, slash));
+            }
+        }
+
+        List<File> doomed = new ArrayList<File>();
+        findStrays(root, "", expected.keySet(), directories, doomed);
+
+        final Reconciliation result = new Reconciliation();
+        result.strays = doomed.size();
+
+        // check the recorded workfiles
+        final List<String> paths = new ArrayList<String>(expected.keySet());
+        List<Callable<Boolean>> checks = new ArrayList<Callable<Boolean>>();
+        for (final String path : paths) {
+            checks.add(new Callable<Boolean>() {
+                public Boolean call() throws IOException {
+                    File file = new File(root, path);
+                    FileInfo info = expected.get(path);
+
+                    return file.isFile() && ! isTouched(file, info)
+                        && ((HASH_THREADS <= 0) || (info.hash == null) || info.hash.equals(hash(file)));
+                }
+            });
+        }
+
+        List<Boolean> intact = PvcsExecutors.invokeAll(checks, Math.max(1, HASH_THREADS));
+        for (int i = 0; i < paths.size(); i++) {
+            if (! intact.get(i)) {
+                result.stale.add(paths.get(i));
+
+                File file = new File(root, paths.get(i));
+                if (file.exists()) {
+                    doomed.add(file);
+                }
+            }
+        }
+
+        List<Callable<Void>> deletions = new ArrayList<Callable<Void>>();
+        for (final File file : doomed) {
+            deletions.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    Util.deleteRecursive(file);
+                    return null;
+                }
+            });
+        }
+
+        PvcsExecutors.invokeAll(deletions, Math.max(1, DELETE_THREADS));
+
+        return result;
+    }
+    // }}}
+
+    // {{{ findStrays
+    /**
+     * Adds the children of <code>dir</code> that are neither recorded
+     * workfiles nor directories holding some to <code>strays</code>.
+     *
+     * @param prefix path of <code>dir</code> relative to the workspace, with
+     *        a trailing slash unless it is the workspace
+     */
+    private static void findStrays(final File dir,
+                                   final String prefix,
+                                   final Set<String> workfiles,
+                                   final Set<String> directories,
+                                   final List<File> strays)
+    {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            String path = prefix + child.getName();
+
+            if (path.equals(FILE_NAME) || workfiles.contains(path)) {
+                continue;
+            }
+
+            if (directories.contains(path) && child.isDirectory()) {
+                findStrays(child, path + "/", workfiles, directories, strays);
+            } else {
+                strays.add(child);
+            }
+        }
+    }
+    // }}}
+
+    // {{{ isTouched
+    /**
+     * Returns true if an existing workfile differs in size or modification
+     * time from what was fetched.
+     */
+    private static boolean isTouched(final File file, final FileInfo info) {
+        return (file.length() != info.size) || (file.lastModified() != info.modified);
+    }
+    // }}}
+
+    // {{{ hash
+    private static String hash(final File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(HASH_ALGORITHM + " not available", e);
+        }
+
+        byte[] buf = new byte[BUFFER_SIZE];
+
+        InputStream in = new FileInputStream(file);
+        try {
+            for (int len = in.read(buf); len >= 0; len = in.read(buf)) {
+                digest.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return sb.toString();
+    }
+    // }}}
+}
@@ -0,0 +1,31 @@
+package hudson.plugins.pvcs_scm;
+
+/**
+ * Test cases for PvcsAuthorResolver.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsAuthorResolver extends BaseTest
+{
+    // {{{ testMapping
+    public void testMapping() {
+        PvcsAuthorResolver resolver =
+            PvcsAuthorResolver.parse("# PVCS id = Jenkins id\n" +
+                                     "a430016 = jdoe\n" +
+                                     "\n" +
+                                     "malformed\n" +
+                                     "a273094=asmith\n");
+
+        assertEquals("jdoe", resolver.map("a430016"));
+        assertEquals("asmith", resolver.map("a273094"));
+        assertEquals("someoneelse", resolver.map("someoneelse"));
+        assertEquals("malformed", resolver.map("malformed"));
+    }
+    // }}}
+
+    // {{{ testEmpty
+    public void testEmpty() {
+        assertEquals("a430016", PvcsAuthorResolver.parse(null).map("a430016"));
+    }
+    // }}}
+}
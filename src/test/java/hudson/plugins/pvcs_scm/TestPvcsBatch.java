@@ -0,0 +1,85 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * Test cases for PvcsBatch.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsBatch extends BaseTest
+{
+    private static final String TAG = "PVCS-BATCH-1234";
+
+    // {{{ testDemultiplex
+    public void testDemultiplex() throws Exception {
+        String output =
+            "Serena PVCS Version Manager (PCLI) banner\r\n" +
+            TAG + " begin 0\r\n" +
+            "Archive:          //repo/a.java_v\r\n" +
+            "Rev count:        2\r\n" +
+            TAG + " end 0 0\r\n" +
+            TAG + " begin 1\n" +
+            "//repo/a.java_v -> a.java\n" +
+            "//repo/b.java_v -> b.java";
+
+        PvcsBatch.Demultiplexer demux =
+            new PvcsBatch.Demultiplexer(new ByteArrayInputStream(output.getBytes("US-ASCII")), TAG);
+
+        String[] marker = demux.nextMarker();
+        assertEquals("begin", marker[0]);
+        assertEquals("0", marker[1]);
+        assertEquals("Archive:          //repo/a.java_v\r\nRev count:        2\r\n", read(demux.segment()));
+
+        marker = demux.nextMarker();
+        assertEquals("end", marker[0]);
+        assertEquals("0", marker[2]);
+
+        marker = demux.nextMarker();
+        assertEquals("begin", marker[0]);
+        assertEquals("1", marker[1]);
+        assertEquals("//repo/a.java_v -> a.java\n//repo/b.java_v -> b.java", read(demux.segment()));
+
+        assertNull(demux.nextMarker());
+    }
+    // }}}
+
+    // {{{ testUnreadRemainder
+    /**
+     * A consumer that stops early doesn't see the next command's output.
+     */
+    public void testUnreadRemainder() throws Exception {
+        String output =
+            TAG + " begin 0\n" +
+            "first\n" +
+            "unread\n" +
+            TAG + " begin 1\n" +
+            "second\n";
+
+        PvcsBatch.Demultiplexer demux =
+            new PvcsBatch.Demultiplexer(new ByteArrayInputStream(output.getBytes("US-ASCII")), TAG);
+
+        demux.nextMarker();
+        InputStream segment = demux.segment();
+        assertEquals('f', segment.read());
+        read(segment);
+
+        assertEquals("1", demux.nextMarker()[1]);
+        assertEquals("second\n", read(demux.segment()));
+    }
+    // }}}
+
+    // {{{ read
+    private static String read(final InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[7];
+        for (int len = in.read(buf); len >= 0; len = in.read(buf)) {
+            out.write(buf, 0, len);
+        }
+
+        return out.toString("US-ASCII");
+    }
+    // }}}
+}
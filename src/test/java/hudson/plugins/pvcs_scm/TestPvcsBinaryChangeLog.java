@@ -0,0 +1,167 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+
+import java.util.Date;
+import java.util.Iterator;
+
+/**
+ * Test cases for PvcsBinaryChangeLog.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsBinaryChangeLog extends BaseTest
+{
+    private File dir;
+    private File changelogFile;
+
+    // {{{ setUp
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("build", "");
+        dir.delete();
+        dir.mkdirs();
+
+        changelogFile = new File(dir, "changelog.xml");
+
+        final PvcsChangeLogWriter xml = new PvcsChangeLogWriter(new FileOutputStream(changelogFile), "2", "1", null);
+        final PvcsBinaryChangeLog.Writer binary =
+            new PvcsBinaryChangeLog.Writer(PvcsBinaryChangeLog.sidecarFor(changelogFile), "2", "1");
+
+        new PvcsVlogParser("//repository/pvcs/repository/MYORG_MAINT", "2008_10/", new PvcsVlogParser.Handler() {
+            public void record(final String fileName,
+                               final String revision,
+                               final Date modifiedTime,
+                               final String userName,
+                               final String comment)
+            {
+                xml.record(fileName, revision, modifiedTime, userName, comment);
+                binary.record(fileName, revision, modifiedTime, userName, comment);
+            }
+        }).parse(new InputStreamReader(getClass().getResourceAsStream("testPvcsLog.log")));
+
+        xml.close();
+        binary.close();
+    }
+    // }}}
+
+    // {{{ tearDown
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+
+        dir.delete();
+    }
+    // }}}
+
+    // {{{ testSameRecords
+    /**
+     * The sidecar holds the same records as the XML, and is smaller.
+     */
+    public void testSameRecords() throws Exception {
+        File sidecar = PvcsBinaryChangeLog.sidecarFor(changelogFile);
+        assertTrue(PvcsBinaryChangeLog.isUsable(changelogFile));
+        assertTrue(sidecar.length() < changelogFile.length());
+
+        PvcsBinaryChangeLog.Header header = PvcsBinaryChangeLog.readHeader(sidecar);
+        assertEquals(972, header.entryCount);
+        assertEquals("2", header.buildId);
+        assertEquals("1", header.lastBuildId);
+
+        PvcsChangeLogParser.RecordReader fromXml = new PvcsChangeLogParser.XmlRecordReader(changelogFile);
+        PvcsChangeLogParser.RecordReader fromBinary = new PvcsBinaryChangeLog.Reader(sidecar);
+
+        int count = 0;
+        for (PvcsChangeLogParser.Record x = fromXml.read(); x != null; x = fromXml.read()) {
+            PvcsChangeLogParser.Record b = fromBinary.read();
+
+            assertEquals(x.fileName, b.fileName);
+            assertEquals(x.revision, b.revision);
+            assertEquals(x.modifiedTime, b.modifiedTime);
+            assertEquals(x.comment, b.comment);
+            assertEquals(x.userName, b.userName);
+
+            count++;
+        }
+
+        assertNull(fromBinary.read());
+        assertEquals(972, count);
+
+        fromXml.close();
+        fromBinary.close();
+    }
+    // }}}
+
+    // {{{ testSkip
+    /**
+     * Skipping records lands both readers on the same record.
+     */
+    public void testSkip() throws Exception {
+        PvcsChangeLogParser.RecordReader fromXml = new PvcsChangeLogParser.XmlRecordReader(changelogFile);
+        PvcsChangeLogParser.RecordReader fromBinary =
+            new PvcsBinaryChangeLog.Reader(PvcsBinaryChangeLog.sidecarFor(changelogFile));
+
+        fromXml.skip(500);
+        fromBinary.skip(500);
+
+        PvcsChangeLogParser.Record x = fromXml.read();
+        PvcsChangeLogParser.Record b = fromBinary.read();
+        assertEquals(x.fileName, b.fileName);
+        assertEquals(x.revision, b.revision);
+
+        fromXml.skip(1000);
+        fromBinary.skip(1000);
+        assertNull(fromXml.read());
+        assertNull(fromBinary.read());
+
+        fromXml.close();
+        fromBinary.close();
+    }
+    // }}}
+
+    // {{{ testChunks
+    /**
+     * Entries read from the sidecar in small chunks are those of the XML.
+     */
+    public void testChunks() throws Exception {
+        Iterator<PvcsChangeLogSet.Entry> chunked = new PvcsChangeLogParser.EntryIterator(null, changelogFile, 0, 7);
+        PvcsChangeLogParser.RecordReader fromXml = new PvcsChangeLogParser.XmlRecordReader(changelogFile);
+
+        int count = 0;
+        for (PvcsChangeLogParser.Record x = fromXml.read(); x != null; x = fromXml.read()) {
+            PvcsChangeLogSet.Entry entry = chunked.next();
+
+            assertEquals(x.fileName, entry.getAffectedPaths().iterator().next());
+            assertEquals(x.revision, entry.getRevision());
+
+            count++;
+        }
+
+        assertFalse(chunked.hasNext());
+        assertEquals(972, count);
+
+        fromXml.close();
+    }
+    // }}}
+
+    // {{{ testTruncatedFallsBack
+    /**
+     * A damaged sidecar is ignored in favour of the XML.
+     */
+    public void testTruncatedFallsBack() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(PvcsBinaryChangeLog.sidecarFor(changelogFile), "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+
+        PvcsChangeLogParser.RecordReader records = PvcsChangeLogParser.openRecords(changelogFile);
+        assertTrue(records instanceof PvcsChangeLogParser.XmlRecordReader);
+        assertNotNull(records.read());
+        records.close();
+    }
+    // }}}
+}
@@ -0,0 +1,124 @@
+package hudson.plugins.pvcs_scm;
+
+import java.util.Calendar;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogSet;
+import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogEntry;
+
+/**
+ * Test cases for PvcsChangeLogCache.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsChangeLogCache extends BaseTest
+{
+    // {{{ tearDown
+    @Override
+    protected void tearDown() throws Exception {
+        PvcsChangeLogCache.INSTANCE.clear();
+    }
+    // }}}
+
+    // {{{ testMerge
+    /**
+     * Tests that a later query replaces entries for the same archive.
+     */
+    public void testMerge() {
+        PvcsChangeLogSet cached = PvcsChangeLogSet.Factory.newInstance();
+        addEntry(cached, "2008_10/MYORG-Java/pom.xml", "1.0");
+        addEntry(cached, "2008_10/MYORG-Java/aps/.project", "1.2");
+
+        PvcsChangeLogSet delta = PvcsChangeLogSet.Factory.newInstance();
+        addEntry(delta, "2008_10/MYORG-Java/pom.xml", "1.1");
+        addEntry(delta, "2008_10/MYORG-Java/aps/.classpath", "1.5");
+
+        PvcsChangeLogSet merged = PvcsChangeLogCache.merge(cached, delta);
+
+        assertEquals(3, merged.sizeOfEntryArray());
+        assertEquals("2008_10/MYORG-Java/pom.xml", merged.getEntryArray(0).getFileName());
+        assertEquals("1.1", merged.getEntryArray(0).getRevision());
+        assertEquals("2008_10/MYORG-Java/aps/.project", merged.getEntryArray(1).getFileName());
+        assertEquals("2008_10/MYORG-Java/aps/.classpath", merged.getEntryArray(2).getFileName());
+    }
+    // }}}
+
+    // {{{ testExpiry
+    /**
+     * Tests that results older than the TTL are not returned.
+     */
+    public void testExpiry() {
+        PvcsChangeLogSet set = PvcsChangeLogSet.Factory.newInstance();
+        Calendar now = Calendar.getInstance();
+
+        PvcsChangeLogCache.INSTANCE.put("fresh", set, now, now.getTimeInMillis());
+        PvcsChangeLogCache.INSTANCE.put("stale", set, now, 0L);
+
+        assertNotNull(PvcsChangeLogCache.INSTANCE.get("fresh"));
+        assertNull(PvcsChangeLogCache.INSTANCE.get("stale"));
+        assertNull(PvcsChangeLogCache.INSTANCE.get("missing"));
+    }
+    // }}}
+
+    // {{{ testCoalesce
+    /**
+     * Tests that a request for a key being loaded waits for that load
+     * instead of running its own, and that an incomplete result is not
+     * cached.
+     */
+    public void testCoalesce() throws Exception {
+        final CountDownLatch joined = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final PvcsChangeLogSet set = PvcsChangeLogSet.Factory.newInstance();
+
+        final PvcsChangeLogCache.Loader loader = new PvcsChangeLogCache.Loader() {
+            public PvcsChangeLogCache.Result load(final PvcsChangeLogCache.Result cached)
+                throws InterruptedException
+            {
+                loads.incrementAndGet();
+                joined.await();
+
+                Calendar now = Calendar.getInstance();
+                return new PvcsChangeLogCache.Result(set, now, now.getTimeInMillis(), false);
+            }
+
+            public void joined() {
+                joined.countDown();
+            }
+        };
+
+        final PvcsChangeLogCache.Result[] first = new PvcsChangeLogCache.Result[1];
+        Thread owner = new Thread() {
+            public void run() {
+                try {
+                    first[0] = PvcsChangeLogCache.INSTANCE.load("key", loader);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        owner.start();
+
+        while (! PvcsChangeLogCache.INSTANCE.isKnown("key")) {
+            Thread.sleep(1);
+        }
+
+        PvcsChangeLogCache.Result second = PvcsChangeLogCache.INSTANCE.load("key", loader);
+        owner.join();
+
+        assertEquals(1, loads.get());
+        assertSame(first[0], second);
+        assertSame(set, second.changeLogSet);
+        assertFalse(PvcsChangeLogCache.INSTANCE.isKnown("key"));
+    }
+    // }}}
+
+    // {{{ addEntry
+    private static void addEntry(final PvcsChangeLogSet set, final String fileName, final String revision) {
+        PvcsChangeLogEntry entry = set.addNewEntry();
+        entry.setFileName(fileName);
+        entry.setRevision(revision);
+    }
+    // }}}
+}
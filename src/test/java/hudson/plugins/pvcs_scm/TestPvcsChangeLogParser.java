@@ -3,6 +3,11 @@ package hudson.plugins.pvcs_scm;
 import org.easymock.classextension.EasyMock;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
 
 import hudson.model.AbstractBuild;
 
@@ -13,6 +18,51 @@ import hudson.model.AbstractBuild;
  */
 public class TestPvcsChangeLogParser extends BaseTest
 {
+    /** Check-in time of the records the tests write. */
+    private long start;
+
+    /** Changelog written by {@link #newWriter}; deleted after each test. */
+    private File written;
+
+    // {{{ setUp
+    @Override
+    protected void setUp() throws Exception {
+        start = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").parse("2008/10/16 09:15:00").getTime();
+    }
+    // }}}
+
+    // {{{ tearDown
+    @Override
+    protected void tearDown() {
+        if (written != null) {
+            written.delete();
+        }
+    }
+    // }}}
+
+    // {{{ newWriter
+    /**
+     * Returns a writer to a new changelog, {@link #written}.
+     */
+    private PvcsChangeLogWriter newWriter() throws IOException {
+        written = File.createTempFile("changelog", ".xml");
+
+        return new PvcsChangeLogWriter(new FileOutputStream(written), "2", "1", null);
+    }
+    // }}}
+
+    // {{{ writeBulk
+    /**
+     * Writes <code>count</code> records one second apart with the same
+     * author and comment.
+     */
+    private void writeBulk(final PvcsChangeLogWriter writer, final int count) {
+        for (int i = 0; i < count; i++) {
+            writer.record("bulk/file" + i + ".txt", "1." + i, new Date(start + i * 1000L), "someone", "bulk");
+        }
+    }
+    // }}}
+
     // {{{ testSuccessfulParse
     /**
      * Tests successful parsing of an XML file.
@@ -45,5 +95,197 @@ public class TestPvcsChangeLogParser extends BaseTest
         */
     }
     // }}}
+
+    // {{{ testEntryIterator
+    /**
+     * Reads the entries of the fixture lazily.
+     */
+    public void testEntryIterator() {
+        File changelogFile =
+            new File(getClass().getResource("changelog.xml").getPath());
+
+        Iterator<PvcsChangeLogSet.Entry> it = new PvcsChangeLogParser.EntryIterator(null, changelogFile, 0);
+
+        assertTrue(it.hasNext());
+
+        PvcsChangeLogSet.Entry entry = it.next();
+        assertEquals("MYORG-Java/pom.xml", entry.getAffectedPaths().iterator().next());
+        assertEquals("1.0", entry.getRevision());
+        assertEquals("2008/09/01 16:34:52", entry.getModifiedTime());
+        assertEquals("test comment", entry.getMsg());
+
+        assertFalse(it.hasNext());
+    }
+    // }}}
+
+    // {{{ testWriterRoundTrip
+    /**
+     * Reads back what PvcsChangeLogWriter writes.
+     */
+    public void testWriterRoundTrip() throws Exception {
+        PvcsChangeLogWriter writer = newWriter();
+        for (int i = 0; i < 1000; i++) {
+            writer.record("dir/file" + i + ".txt", "1." + i, new Date(start), "someone", "comment " + i);
+        }
+        writer.close();
+
+        Iterator<PvcsChangeLogSet.Entry> it = new PvcsChangeLogParser.EntryIterator(null, written, 0);
+
+        int count = 0;
+        while (it.hasNext()) {
+            PvcsChangeLogSet.Entry entry = it.next();
+
+            assertEquals("dir/file" + count + ".txt", entry.getAffectedPaths().iterator().next());
+            assertEquals("1." + count, entry.getRevision());
+            assertEquals("2008/10/16 09:15:00", entry.getModifiedTime());
+            assertEquals("comment " + count, entry.getMsg());
+
+            count++;
+        }
+
+        assertEquals(1000, count);
+    }
+    // }}}
+
+    // {{{ testGrouping
+    /**
+     * Consecutive check-ins with the same author and comment within the
+     * window become one entry.
+     */
+    public void testGrouping() throws Exception {
+        PvcsChangeLogWriter writer = newWriter();
+        writeBulk(writer, 100);
+        writer.record("other.txt", "1.1", new Date(start), "someoneelse", "bulk");
+        writer.record("late.txt", "1.1", new Date(start + 3600000L), "someoneelse", "bulk");
+        writer.close();
+
+        Iterator<PvcsChangeLogSet.Entry> it = new PvcsChangeLogParser.EntryIterator(null, written, 300000L);
+
+        PvcsChangeLogSet.Entry bulk = it.next();
+        assertEquals(100, bulk.getAffectedPaths().size());
+        assertEquals("2008/10/16 09:16:39", bulk.getModifiedTime());
+
+        PvcsChangeLogSet.AffectedArchive last = null;
+        for (PvcsChangeLogSet.AffectedArchive archive : bulk.getAffectedFiles()) {
+            last = archive;
+        }
+        assertEquals("bulk/file99.txt", last.getPath());
+        assertEquals("1.99", last.getRevision());
+
+        assertEquals("other.txt", it.next().getAffectedPaths().iterator().next());
+        assertEquals("late.txt", it.next().getAffectedPaths().iterator().next());
+        assertFalse(it.hasNext());
+    }
+    // }}}
+
+    // {{{ testChunks
+    /**
+     * Reading in small chunks, reopening the file for each, gives the same
+     * entries, including groups that span chunks.
+     */
+    public void testChunks() throws Exception {
+        PvcsChangeLogWriter writer = newWriter();
+        writeBulk(writer, 20);
+        writer.record("other.txt", "1.1", new Date(start), "someoneelse", "bulk");
+        writer.close();
+
+        Iterator<PvcsChangeLogSet.Entry> it =
+            new PvcsChangeLogParser.EntryIterator(null, written, 300000L, 3);
+
+        PvcsChangeLogSet.Entry bulk = it.next();
+        assertEquals(20, bulk.getAffectedPaths().size());
+        assertEquals("2008/10/16 09:15:19", bulk.getModifiedTime());
+        assertEquals("other.txt", it.next().getAffectedPaths().iterator().next());
+        assertFalse(it.hasNext());
+
+        it = new PvcsChangeLogParser.EntryIterator(null, written, 0, 3);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("bulk/file" + i + ".txt", it.next().getAffectedPaths().iterator().next());
+        }
+        assertEquals("other.txt", it.next().getAffectedPaths().iterator().next());
+        assertFalse(it.hasNext());
+    }
+    // }}}
+
+    // {{{ testLargeFile
+    /**
+     * A large changelog read in small chunks, each resuming at the byte
+     * offset where the previous one ended, gives every entry in order,
+     * also with multi-byte characters and markup-like text.
+     */
+    public void testLargeFile() throws Exception {
+        PvcsChangeLogWriter writer = newWriter();
+        for (int i = 0; i < 20000; i++) {
+            writer.record("dir/file" + i + ".txt", "1." + i, new Date(start), "someone",
+                          "\u00c4nderung <entry> " + i);
+        }
+        writer.close();
+
+        Iterator<PvcsChangeLogSet.Entry> it = new PvcsChangeLogParser.EntryIterator(null, written, 0, 7);
+
+        int count = 0;
+        while (it.hasNext()) {
+            PvcsChangeLogSet.Entry entry = it.next();
+
+            assertEquals("dir/file" + count + ".txt", entry.getAffectedPaths().iterator().next());
+            assertEquals("\u00c4nderung <entry> " + count, entry.getMsg());
+
+            count++;
+        }
+
+        assertEquals(20000, count);
+    }
+    // }}}
+
+    // {{{ testFindEntry
+    /**
+     * Entry elements are found by their bytes, counting from any of them.
+     */
+    public void testFindEntry() throws Exception {
+        PvcsChangeLogWriter writer = newWriter();
+        writeBulk(writer, 5);
+        writer.close();
+
+        long first = PvcsChangeLogParser.XmlRecordReader.findEntry(written, 0, 0);
+        long third = PvcsChangeLogParser.XmlRecordReader.findEntry(written, 0, 2);
+
+        assertTrue(first > 0);
+        assertEquals(third, PvcsChangeLogParser.XmlRecordReader.findEntry(written, first, 2));
+        assertEquals(-1, PvcsChangeLogParser.XmlRecordReader.findEntry(written, third, 3));
+
+        PvcsChangeLogParser.RecordReader records = new PvcsChangeLogParser.XmlRecordReader(written, first, third);
+        assertEquals("bulk/file2.txt", records.read().fileName);
+        assertEquals("bulk/file3.txt", records.read().fileName);
+        assertEquals("bulk/file4.txt", records.read().fileName);
+        assertNull(records.read());
+        records.close();
+    }
+    // }}}
+
+    // {{{ testCompactEntry
+    /**
+     * Entries read in one pass share their directories, users and comments,
+     * and keep the check-in time unformatted.
+     */
+    public void testCompactEntry() throws Exception {
+        PvcsChangeLogWriter writer = newWriter();
+        writer.record("MYORG-Java/aps/a.txt", "1.1", new Date(start), "someone", "fix");
+        writer.record("MYORG-Java/aps/b.txt", "1.2", new Date(start), "someone", "fix");
+        writer.close();
+
+        Iterator<PvcsChangeLogSet.Entry> it = new PvcsChangeLogParser.EntryIterator(null, written, 0);
+
+        PvcsChangeLogSet.Entry first = it.next();
+        PvcsChangeLogSet.Entry second = it.next();
+
+        assertEquals("MYORG-Java/aps/b.txt", second.getAffectedPaths().iterator().next());
+        assertSame(first.getMsg(), second.getMsg());
+        assertEquals(start, second.getTimestamp());
+        assertEquals("2008/10/16 09:15:00", second.getModifiedTime());
+
+        second.setModifiedTime("2008/10/17 10:00:00");
+        assertEquals("2008/10/17 10:00:00", second.getModifiedTime());
+    }
+    // }}}
     
 }
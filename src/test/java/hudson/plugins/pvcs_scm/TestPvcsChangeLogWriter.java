@@ -0,0 +1,99 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.Calendar;
+import java.util.Date;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.SchemaFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Test cases for PvcsChangeLogWriter.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsChangeLogWriter extends BaseTest
+{
+    private static final String ARCHIVE_ROOT = "//repository/pvcs/repository/MYORG_MAINT";
+    private static final String PATH_PREFIX = "2008_10/";
+
+    // {{{ testFixture
+    /**
+     * Streams the large fixture into a changelog, which must be valid and
+     * hold the same entries the in-memory reader produces.
+     */
+    public void testFixture() throws Exception {
+        Calendar lastBuildTime = Calendar.getInstance();
+        lastBuildTime.setTimeInMillis(1222300000000L);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PvcsChangeLogWriter writer = new PvcsChangeLogWriter(baos, "2008-10-17_10-00-00", "2008-10-16_10-00-00", lastBuildTime);
+
+        new PvcsVlogParser(ARCHIVE_ROOT, PATH_PREFIX, writer)
+            .parse(new InputStreamReader(getClass().getResourceAsStream("testPvcsLog.log")));
+        writer.close();
+
+        assertEquals(972, writer.getEntryCount());
+
+        SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI)
+            .newSchema(new File("src/main/xsd/changeset.xsd"))
+            .newValidator()
+            .validate(new StreamSource(new ByteArrayInputStream(baos.toByteArray())));
+
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(baos.toByteArray()));
+
+        Element changeLog = doc.getDocumentElement();
+        assertEquals(PvcsChangeLogWriter.NAMESPACE, changeLog.getNamespaceURI());
+        assertEquals("2008-10-17_10-00-00", changeLog.getAttribute("buildId"));
+        assertEquals("2008-10-16_10-00-00", changeLog.getAttribute("lastBuildId"));
+
+        NodeList entries = changeLog.getElementsByTagNameNS(PvcsChangeLogWriter.NAMESPACE, "entry");
+        assertEquals(972, entries.getLength());
+
+        Element first = (Element) entries.item(0);
+        assertEquals("2008_10/MYORG-Java/aps/.classpath", text(first, "fileName"));
+        assertEquals("1.5.6.0.1.0", text(first, "revision"));
+        assertEquals("a273094", text(first, "userName"));
+    }
+    // }}}
+
+    // {{{ testIncompleteRecord
+    /**
+     * Missing values are written empty; a record without a check-in time
+     * is dropped.
+     */
+    public void testIncompleteRecord() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PvcsChangeLogWriter writer = new PvcsChangeLogWriter(baos, "1", null, null);
+
+        writer.record("a.txt", null, new Date(0), null, "x < y & z");
+        writer.record("b.txt", "1.1", null, "someone", "no date");
+        writer.close();
+
+        assertEquals(1, writer.getEntryCount());
+
+        String xml = baos.toString("UTF-8");
+        assertTrue(xml, xml.contains("<revision></revision>"));
+        assertTrue(xml, xml.contains("<modifiedTime>1970-01-01T00:00:00Z</modifiedTime>"));
+        assertTrue(xml, xml.contains("x &lt; y &amp; z"));
+        assertFalse(xml, xml.contains("b.txt"));
+    }
+    // }}}
+
+    // {{{ text
+    private static String text(final Element parent, final String name) {
+        return parent.getElementsByTagNameNS(PvcsChangeLogWriter.NAMESPACE, name).item(0).getTextContent();
+    }
+    // }}}
+}
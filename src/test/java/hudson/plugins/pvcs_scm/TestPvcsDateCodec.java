@@ -0,0 +1,125 @@
+package hudson.plugins.pvcs_scm;
+
+import java.text.SimpleDateFormat;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Test cases for PvcsDateCodec.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsDateCodec extends BaseTest
+{
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+    // {{{ testVlogDates
+    /**
+     * Tests both vlog date layouts against SimpleDateFormat, including a
+     * stream that switches layout.
+     */
+    public void testVlogDates() throws Exception {
+        PvcsDateCodec codec = new PvcsDateCodec(NEW_YORK, Locale.ENGLISH);
+
+        SimpleDateFormat monthFirst = new SimpleDateFormat("MMM dd yyyy HH:mm:ss", Locale.ENGLISH);
+        monthFirst.setTimeZone(NEW_YORK);
+        SimpleDateFormat dayFirst = new SimpleDateFormat("dd MMM yyyy HH:mm:ss", Locale.ENGLISH);
+        dayFirst.setTimeZone(NEW_YORK);
+
+        PvcsDateCodec.VlogDates dates = codec.newVlogDates();
+
+        assertEquals(dayFirst.parse("16 Oct 2008 12:44:58").getTime(), dates.parse("16 Oct 2008 12:44:58"));
+        assertEquals(dayFirst.parse("12 Jan 2005 15:46:00").getTime(), dates.parse("12 Jan 2005 15:46:00"));
+        assertEquals(monthFirst.parse("Mar 09 2008 01:30:00").getTime(), dates.parse("Mar 09 2008 01:30:00"));
+        assertEquals(monthFirst.parse("Nov 2 2008 23:59:59").getTime(), dates.parse("  nov  2 2008 23:59:59"));
+
+        assertEquals(PvcsDateCodec.NO_TIME, dates.parse("Foo 16 2008 12:44:58"));
+        assertEquals(PvcsDateCodec.NO_TIME, dates.parse("16 Oct 2008 25:44:58"));
+        assertEquals(PvcsDateCodec.NO_TIME, dates.parse(""));
+    }
+    // }}}
+
+    // {{{ testLocale
+    /**
+     * Tests that month names of the server's locale and English ones are
+     * both understood.
+     */
+    public void testLocale() throws Exception {
+        PvcsDateCodec codec = PvcsDateCodec.forServer("UTC", "de_DE");
+
+        SimpleDateFormat german = new SimpleDateFormat("dd MMM yyyy HH:mm:ss", Locale.GERMANY);
+        german.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String text = german.format(german.parse("16 Okt 2008 12:44:58"));
+
+        PvcsDateCodec.VlogDates dates = codec.newVlogDates();
+        assertEquals(german.parse(text).getTime(), dates.parse(text));
+        assertEquals(german.parse(text).getTime(), dates.parse("16 Oct 2008 12:44:58"));
+    }
+    // }}}
+
+    // {{{ testCommand
+    /**
+     * Tests the pcli window format against SimpleDateFormat, around a DST
+     * change.
+     */
+    public void testCommand() throws Exception {
+        PvcsDateCodec codec = new PvcsDateCodec(NEW_YORK, Locale.US);
+
+        SimpleDateFormat df = new SimpleDateFormat("MM/dd/yyyy hh:mm:ss aa", Locale.US);
+        df.setTimeZone(NEW_YORK);
+
+        long start = df.parse("03/08/2009 00:00:00 AM").getTime();
+        for (long t = start; t < start + 26 * 3600000L; t += 1234567L) {
+            assertEquals(df.format(t), codec.formatCommand(t));
+        }
+    }
+    // }}}
+
+    // {{{ testDisplay
+    public void testDisplay() throws Exception {
+        PvcsDateCodec codec = new PvcsDateCodec(NEW_YORK, Locale.US);
+
+        SimpleDateFormat df = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        df.setTimeZone(NEW_YORK);
+
+        long time = df.parse("2008/10/16 12:44:58").getTime();
+        assertEquals("2008/10/16 12:44:58", codec.formatDisplay(time));
+        assertEquals(time, codec.parseDisplay("2008/10/16 12:44:58"));
+        assertEquals(PvcsDateCodec.NO_TIME, codec.parseDisplay("16.10.2008"));
+    }
+    // }}}
+
+    // {{{ testXsd
+    public void testXsd() throws Exception {
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        long time = df.parse("2008-10-16T16:44:58Z").getTime();
+
+        assertEquals("2008-10-16T16:44:58Z", PvcsDateCodec.formatXsd(time));
+        assertEquals(time, PvcsDateCodec.parseXsd("2008-10-16T16:44:58Z"));
+        assertEquals(time, PvcsDateCodec.parseXsd(" 2008-10-16T12:44:58-04:00 "));
+        assertEquals(time + 250, PvcsDateCodec.parseXsd("2008-10-16T16:44:58.25Z"));
+        assertEquals(PvcsDateCodec.NO_TIME, PvcsDateCodec.parseXsd("2008-10-16 16:44:58"));
+        assertEquals(PvcsDateCodec.NO_TIME, PvcsDateCodec.parseXsd("2008-10-16T16:44:58Zulu"));
+
+        assertEquals("1969-12-31T23:59:59Z", PvcsDateCodec.formatXsd(-1000));
+    }
+    // }}}
+
+    // {{{ testCivil
+    /**
+     * Tests the day number conversions over several centuries.
+     */
+    public void testCivil() {
+        for (long day = -200000; day < 200000; day += 7) {
+            int[] ymd = PvcsDateCodec.civilFromDays(day);
+            assertEquals(day, PvcsDateCodec.daysFromCivil(ymd[0], ymd[1], ymd[2]));
+        }
+
+        assertEquals(0, PvcsDateCodec.daysFromCivil(1970, 1, 1));
+        assertEquals(11017, PvcsDateCodec.daysFromCivil(2000, 3, 1));
+    }
+    // }}}
+}
@@ -0,0 +1,82 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.AbortException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for PvcsGetOutput.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsGetOutput extends BaseTest
+{
+    // {{{ testCopy
+    /**
+     * Tests that the output reaches the log unchanged, even when it arrives
+     * in small pieces, and that workfiles are counted and collected.
+     */
+    public void testCopy() throws Exception {
+        String output = "//archive/a.java_v -> a.java\n"
+            + "//archive/b.java_v -> b.java\n"
+            + "Getting revision 1.2\n"
+            + "//archive/c.java_v -> c.java";
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        List<String> workfiles = new ArrayList<String>();
+        PvcsGetOutput get = new PvcsGetOutput(new PrintStream(log, true), workfiles);
+        get.read(trickle(output));
+
+        assertEquals(3, get.getFiles());
+        assertEquals(0, get.getErrors());
+        assertEquals(Arrays.asList("a.java", "b.java", "c.java"), workfiles);
+        assertEquals(output + System.getProperty("line.separator"), log.toString());
+    }
+    // }}}
+
+    // {{{ testError
+    /**
+     * Tests that an error message stops the get after it is logged.
+     */
+    public void testError() throws Exception {
+        String output = "//archive/a.java_v -> a.java\n"
+            + "Error: unable to open archive //archive/b.java_v\n"
+            + "//archive/c.java_v -> c.java\n";
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PvcsGetOutput get = new PvcsGetOutput(new PrintStream(log, true));
+
+        try {
+            get.read(new ByteArrayInputStream(output.getBytes("US-ASCII")));
+            fail("error not detected");
+        } catch (AbortException e) {
+            assertTrue(e.getMessage().contains("unable to open archive"));
+        }
+
+        assertEquals(1, get.getFiles());
+        assertEquals(1, get.getErrors());
+        assertTrue(log.toString().endsWith("b.java_v\n"));
+    }
+    // }}}
+
+    // {{{ trickle
+    /**
+     * Returns a stream that hands out at most three bytes per read.
+     */
+    private static InputStream trickle(final String text) throws Exception {
+        return new ByteArrayInputStream(text.getBytes("US-ASCII")) {
+            @Override
+            public synchronized int read(final byte[] buf, final int off, final int len) {
+                return super.read(buf, off, Math.min(len, 3));
+            }
+        };
+    }
+    // }}}
+}
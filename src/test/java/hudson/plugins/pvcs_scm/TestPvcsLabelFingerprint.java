@@ -0,0 +1,138 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+
+/**
+ * Test cases for PvcsLabelFingerprint.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsLabelFingerprint extends BaseTest
+{
+    private static final String ARCHIVE_ROOT = "//repository/pvcs/repository/MYORG_MAINT";
+
+    // {{{ testLabel
+    /**
+     * The fingerprint follows where the label is, not what was checked in.
+     */
+    public void testLabel() throws IOException {
+        String log = readLog();
+
+        PvcsLabelFingerprint base = fingerprint(log, "REL10_CHANGES", false);
+        assertEquals(45, base.getArchiveCount());
+        assertTrue(base.getCount() > 0);
+
+        assertEquals(base.toString(), fingerprint(log, "rel10_changes", false).toString());
+
+        // new revisions without a label move
+        String checkedIn = log.replace("Rev count:        13", "Rev count:        14");
+        assertEquals(base.toString(), fingerprint(checkedIn, "REL10_CHANGES", false).toString());
+
+        // the label moves on one archive
+        int at = log.indexOf("\"REL10_CHANGES\" = 1.0");
+        String moved = log.substring(0, at) + "\"REL10_CHANGES\" = 1.1" + log.substring(at + 21);
+        assertFalse(base.toString().equals(fingerprint(moved, "REL10_CHANGES", false).toString()));
+
+        assertEquals(0, fingerprint(log, "NO_SUCH_LABEL", false).getCount());
+    }
+    // }}}
+
+    // {{{ testOrder
+    /**
+     * The order of the archives does not matter.
+     */
+    public void testOrder() throws IOException {
+        String log = readLog();
+        int second = log.indexOf("Archive:", 1);
+        String swapped = log.substring(second) + log.substring(0, second);
+
+        assertEquals(fingerprint(log, "REL10_CHANGES", false).toString(),
+                     fingerprint(swapped, "REL10_CHANGES", false).toString());
+    }
+    // }}}
+
+    // {{{ testGroup
+    /**
+     * Promotion groups are read from the "Groups:" block, which may start on
+     * its own line.
+     */
+    public void testGroup() throws IOException {
+        String one =
+            "Archive:          " + ARCHIVE_ROOT + "/a.java_v\n"
+            + "Groups:           \"QA\" = 1.3\n"
+            + "Rev count:        4\n"
+            + "Archive:          " + ARCHIVE_ROOT + "/b.java_v\n"
+            + "Groups:\n"
+            + "   \"DEV\" = 1.9\n"
+            + "   \"QA\" = 1.7\n"
+            + "Rev count:        9\n"
+            + "Version labels:\n"
+            + "   \"QA\" = 1.1\n";
+
+        PvcsLabelFingerprint group = fingerprint(one, "QA", true);
+        assertEquals(2, group.getCount());
+
+        assertEquals(1, fingerprint(one, "QA", false).getCount());
+        assertFalse(group.toString().equals(fingerprint(one.replace("1.7", "1.8"), "QA", true).toString()));
+    }
+    // }}}
+
+    // {{{ testFilter
+    /**
+     * Moves on archives rejected by the path filters don't count.
+     */
+    public void testFilter() throws IOException {
+        String log = readLog();
+        int at = log.indexOf("\"REL10_CHANGES\" = 1.0");
+        String moved = log.substring(0, at) + "\"REL10_CHANGES\" = 1.1" + log.substring(at + 21);
+
+        PvcsPathFilter filter = PvcsPathFilter.compile(null, "**/AddBankRequest.java");
+
+        PvcsLabelFingerprint base = fingerprint(log, filter, "REL10_CHANGES", false);
+        assertEquals(fingerprint(log, "REL10_CHANGES", false).getCount() - 1, base.getCount());
+        assertEquals(base.toString(), fingerprint(moved, filter, "REL10_CHANGES", false).toString());
+    }
+    // }}}
+
+    // {{{ fingerprint
+    private static PvcsLabelFingerprint fingerprint(final String log, final String name, final boolean group)
+        throws IOException
+    {
+        return fingerprint(log, null, name, group);
+    }
+    // }}}
+
+    // {{{ fingerprint
+    private static PvcsLabelFingerprint fingerprint(final String log,
+                                                    final PvcsPathFilter filter,
+                                                    final String name,
+                                                    final boolean group)
+        throws IOException
+    {
+        PvcsLabelFingerprint fingerprint = new PvcsLabelFingerprint(ARCHIVE_ROOT, filter, name, group);
+        fingerprint.parse(new StringReader(log));
+
+        return fingerprint;
+    }
+    // }}}
+
+    // {{{ readLog
+    private String readLog() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("testPvcsLog3.log")));
+        StringBuilder log = new StringBuilder();
+
+        try {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                log.append(line).append('\n');
+            }
+        } finally {
+            in.close();
+        }
+
+        return log.toString();
+    }
+    // }}}
+}
@@ -1,7 +1,11 @@
 package hudson.plugins.pvcs_scm;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Calendar;
 import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogSet;
+import hudson.plugins.pvcs_scm.changelog.PvcsChangeLogEntry;
 
 /**
  * Test cases for PvcsLogReader.
@@ -73,5 +77,105 @@ public class TestPvcsLogReader extends BaseTest
         assertEquals("2008_10/MYORG-Java/aps/src/main/java/com/abc/myorg/aps/bizobject/AddBankRequest.java", changeSet.getEntryArray(0).getFileName());
     }
     // }}}
+
+    // {{{ testEntryContents
+    /**
+     * Tests that only the newest revision of each archive is reported.
+     */
+    public void testEntryContents() {
+        Calendar lastBuildCal = Calendar.getInstance();
+        lastBuildCal.set(2008, Calendar.SEPTEMBER, 1);
+        
+        PvcsLogReader reader = new PvcsLogReader(getClass().getResourceAsStream("testPvcsLog.log"),
+                                                 "//repository/pvcs/repository/MYORG_MAINT",
+                                                 "2008_10/",
+                                                 lastBuildCal.getTime());
+        
+        reader.run();
+
+        PvcsChangeLogSet changeSet = reader.getChangeLogSet();
+        assertEquals(972, changeSet.sizeOfEntryArray());
+
+        PvcsChangeLogEntry entry = changeSet.getEntryArray(0);
+        assertEquals("2008_10/MYORG-Java/aps/.classpath", entry.getFileName());
+        assertEquals("1.5.6.0.1.0", entry.getRevision());
+        assertEquals("a273094", entry.getUserName());
+        assertEquals("BRANCHED FOR 2008_10 from BASELINE_082708_2008_10", entry.getComment());
+
+        Calendar modified = entry.getModifiedTime();
+        assertEquals(2008, modified.get(Calendar.YEAR));
+        assertEquals(Calendar.SEPTEMBER, modified.get(Calendar.MONTH));
+        assertEquals(24, modified.get(Calendar.DAY_OF_MONTH));
+        assertEquals(13, modified.get(Calendar.HOUR_OF_DAY));
+    }
+    // }}}
+
+    // {{{ testMultiLineComment
+    /**
+     * Tests CRLF line endings, the "MMM dd yyyy" date format and comments
+     * spanning several lines.
+     */
+    public void testMultiLineComment() {
+        String lineSep = System.getProperty("line.separator");
+        String log =
+            "Archive:          //repository/pvcs/repository/MYORG_MAINT/MYORG-Java/pom.xml_v\r\n" +
+            "Workfile:         pom.xml\r\n" +
+            "Version labels:\r\n" +
+            "   \"Rev 2\" = 1.1\r\n" +
+            "-----------------------------------\r\n" +
+            "Rev 1.1\r\n" +
+            "Checked in:     Oct 16 2008 09:15:00\r\n" +
+            "Last modified:  Oct 16 2008 09:14:00\r\n" +
+            "Author id: a430016     lines deleted/added/moved: 1/2/0\r\n" +
+            "first line\r\n" +
+            "   second line\r\n" +
+            "-----------------------------------\r\n" +
+            "Rev 1.0\r\n" +
+            "Checked in:     Oct 01 2008 09:15:00\r\n" +
+            "Author id: someoneelse     lines deleted/added/moved: 0/0/0\r\n" +
+            "Initial revision.\r\n" +
+            "===================================\r\n";
+
+        PvcsLogReader reader = new PvcsLogReader(new ByteArrayInputStream(log.getBytes()),
+                                                 "//repository/pvcs/repository/MYORG_MAINT",
+                                                 "2008_10/",
+                                                 null);
+
+        reader.run();
+
+        PvcsChangeLogSet changeSet = reader.getChangeLogSet();
+        assertEquals(1, changeSet.sizeOfEntryArray());
+
+        PvcsChangeLogEntry entry = changeSet.getEntryArray(0);
+        assertEquals("2008_10/MYORG-Java/pom.xml", entry.getFileName());
+        assertEquals("1.1", entry.getRevision());
+        assertEquals("a430016", entry.getUserName());
+        assertEquals("first line" + lineSep + "   second line", entry.getComment());
+        assertEquals(16, entry.getModifiedTime().get(Calendar.DAY_OF_MONTH));
+    }
+    // }}}
+
+    // {{{ testReadError
+    public void testReadError() {
+        InputStream failing = new InputStream() {
+            public int read() throws IOException {
+                throw new IOException("pipe broken");
+            }
+        };
+
+        PvcsLogReader reader = new PvcsLogReader(failing, null, null, null);
+
+        try {
+            reader.parse();
+            fail("read error was swallowed");
+        } catch (IOException e) {
+            assertEquals("pipe broken", e.getMessage());
+        }
+
+        reader = new PvcsLogReader(failing, null, null, null);
+        reader.run();
+        assertNotNull(reader.getError());
+    }
+    // }}}
     
 }
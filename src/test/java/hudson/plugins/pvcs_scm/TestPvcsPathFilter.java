@@ -0,0 +1,66 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Test cases for PvcsPathFilter.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsPathFilter extends BaseTest
+{
+    // {{{ testPatterns
+    public void testPatterns() {
+        PvcsPathFilter filter = PvcsPathFilter.compile("MYORG-Java/**",
+                                                       "**/*.txt,\nMYORG-Java/docs/\nMYORG-Java/?.xml");
+
+        assertTrue(filter.accepts("MYORG-Java/pom.xml"));
+        assertTrue(filter.accepts("MYORG-Java\\aps\\.classpath"));
+        assertTrue(filter.accepts("myorg-java/aps/src/Main.java"));
+        assertFalse(filter.accepts("Other/pom.xml"));
+        assertFalse(filter.accepts("MYORG-Java/aps/readme.txt"));
+        assertFalse(filter.accepts("MYORG-Java/docs/guide/index.html"));
+        assertFalse(filter.accepts("MYORG-Java/a.xml"));
+    }
+    // }}}
+
+    // {{{ testEmpty
+    public void testEmpty() {
+        assertNull(PvcsPathFilter.compile(null, " ,\n"));
+    }
+    // }}}
+
+    // {{{ testVlog
+    /**
+     * Excluded archives never reach the handler.
+     */
+    public void testVlog() throws Exception {
+        final List<String> fileNames = new ArrayList<String>();
+
+        PvcsVlogParser parser =
+            new PvcsVlogParser("//repository/pvcs/repository/MYORG_MAINT",
+                               "2008_10/",
+                               PvcsPathFilter.compile(null, "MYORG-Java/cote/"),
+                               new PvcsVlogParser.Handler() {
+                                   public void record(final String fileName,
+                                                      final String revision,
+                                                      final Date modifiedTime,
+                                                      final String userName,
+                                                      final String comment)
+                                   {
+                                       fileNames.add(fileName);
+                                   }
+                               });
+
+        parser.parse(new InputStreamReader(getClass().getResourceAsStream("testPvcsLog3.log")));
+
+        assertEquals(11, fileNames.size());
+        for (String fileName : fileNames) {
+            assertTrue(fileName.startsWith("2008_10/MYORG-Java/aps/"));
+        }
+    }
+    // }}}
+}
@@ -0,0 +1,169 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.Launcher;
+
+import hudson.model.TaskListener;
+
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for PvcsProcessLimit.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsProcessLimit extends BaseTest
+{
+    // {{{ testQueue
+    /**
+     * Tests that a caller waits while the node's permits are taken, and
+     * that the wait is recorded.
+     */
+    public void testQueue() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        final TaskListener listener = new StreamTaskListener(log);
+        final Launcher launcher = new Launcher.LocalLauncher(listener);
+
+        List<PvcsProcessLimit.Permit> permits = new ArrayList<PvcsProcessLimit.Permit>();
+        for (int i = 0; i < 8; i++) {
+            permits.add(PvcsProcessLimit.acquire(launcher, listener, new PvcsCallStats("vlog")));
+        }
+
+        final PvcsCallStats queued = new PvcsCallStats("vlog");
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    PvcsProcessLimit.acquire(launcher, listener, queued).release();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        waiter.start();
+
+        Thread.sleep(100);
+        assertTrue(waiter.isAlive());
+        assertEquals(-1, queued.getQueueWaitMillis());
+
+        // releasing twice must not hand out an extra permit
+        permits.get(0).release();
+        permits.get(0).release();
+        waiter.join();
+
+        assertTrue(queued.getQueueWaitMillis() >= 100);
+        assertTrue(log.toString().contains("waiting for other pcli processes"));
+
+        for (PvcsProcessLimit.Permit permit : permits) {
+            permit.release();
+        }
+    }
+    // }}}
+
+    // {{{ testFair
+    /**
+     * Tests that a freed permit goes to the caller already waiting, not to
+     * one that comes later.
+     */
+    public void testFair() throws Exception {
+        final TaskListener listener = new StreamTaskListener(new ByteArrayOutputStream());
+        final Launcher launcher = new Launcher.LocalLauncher(listener);
+
+        List<PvcsProcessLimit.Permit> permits = new ArrayList<PvcsProcessLimit.Permit>();
+        for (int i = 0; i < 8; i++) {
+            permits.add(PvcsProcessLimit.acquire(launcher, listener, new PvcsCallStats("vlog")));
+        }
+
+        final PvcsProcessLimit.Permit[] got = new PvcsProcessLimit.Permit[2];
+        Thread first = new Thread() {
+            public void run() {
+                try {
+                    got[0] = PvcsProcessLimit.acquire(launcher, listener, new PvcsCallStats("vlog"));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        Thread later = new Thread() {
+            public void run() {
+                try {
+                    got[1] = PvcsProcessLimit.acquire(launcher, listener, new PvcsCallStats("vlog"));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        first.start();
+        while (first.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+
+        permits.remove(0).release();
+        later.start();
+
+        first.join(10000);
+        assertFalse(first.isAlive());
+
+        Thread.sleep(100);
+        assertTrue(later.isAlive());
+
+        got[0].release();
+        later.join();
+        got[1].release();
+
+        for (PvcsProcessLimit.Permit permit : permits) {
+            permit.release();
+        }
+    }
+    // }}}
+
+    // {{{ testInterrupt
+    /**
+     * Tests that an interrupted wait gives up without holding a permit.
+     */
+    public void testInterrupt() throws Exception {
+        final TaskListener listener = new StreamTaskListener(new ByteArrayOutputStream());
+        final Launcher launcher = new Launcher.LocalLauncher(listener);
+
+        List<PvcsProcessLimit.Permit> permits = new ArrayList<PvcsProcessLimit.Permit>();
+        for (int i = 0; i < 8; i++) {
+            permits.add(PvcsProcessLimit.acquire(launcher, listener, new PvcsCallStats("get")));
+        }
+
+        final boolean[] interrupted = new boolean[1];
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    PvcsProcessLimit.acquire(launcher, listener, new PvcsCallStats("get"));
+                } catch (InterruptedException e) {
+                    interrupted[0] = true;
+                }
+            }
+        };
+        waiter.start();
+
+        Thread.sleep(50);
+        waiter.interrupt();
+        waiter.join();
+
+        assertTrue(interrupted[0]);
+
+        for (PvcsProcessLimit.Permit permit : permits) {
+            permit.release();
+        }
+
+        // all 8 permits are free again
+        for (int i = 0; i < 8; i++) {
+            permits.set(i, PvcsProcessLimit.acquire(launcher, listener, new PvcsCallStats("get")));
+        }
+
+        for (PvcsProcessLimit.Permit permit : permits) {
+            permit.release();
+        }
+    }
+    // }}}
+}
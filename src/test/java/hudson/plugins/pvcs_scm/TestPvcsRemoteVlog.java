@@ -0,0 +1,70 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Test cases for PvcsRemoteVlog.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsRemoteVlog extends BaseTest
+{
+    /**
+     * Turns every record into one line.
+     */
+    private static final class Lines implements PvcsVlogParser.Handler
+    {
+        final List<String> lines = new ArrayList<String>();
+
+        public void record(final String fileName,
+                           final String revision,
+                           final Date modifiedTime,
+                           final String userName,
+                           final String comment)
+        {
+            lines.add(fileName + "|" + revision + "|" + ((modifiedTime != null) ? modifiedTime.getTime() : null)
+                      + "|" + userName + "|" + comment);
+        }
+    }
+
+    // {{{ testRecords
+    /**
+     * Records survive serialization unchanged and in order, with repeated
+     * strings sent once.
+     */
+    public void testRecords() throws Exception {
+        Lines expected = new Lines();
+        new PvcsVlogParser("//repository/pvcs/repository/MYORG_MAINT", "2008_10/", expected)
+            .parse(new InputStreamReader(getClass().getResourceAsStream("testPvcsLog3.log")));
+
+        PvcsRemoteVlog.Records records = new PvcsRemoteVlog.Records();
+        new PvcsVlogParser("//repository/pvcs/repository/MYORG_MAINT", "2008_10/", records)
+            .parse(new InputStreamReader(getClass().getResourceAsStream("testPvcsLog3.log")));
+        records.record("2008_10/nothing", null, null, null, null);
+        records.trim();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(records);
+        out.close();
+
+        PvcsRemoteVlog.Records copy = (PvcsRemoteVlog.Records)
+            new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        Lines actual = new Lines();
+        copy.replay(actual);
+
+        expected.lines.add("2008_10/nothing|null|null|null|null");
+        assertEquals(expected.lines, actual.lines);
+        assertTrue(copy.getStringCount() < copy.size() * 4);
+    }
+    // }}}
+}
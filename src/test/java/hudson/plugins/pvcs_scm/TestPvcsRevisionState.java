@@ -0,0 +1,72 @@
+package hudson.plugins.pvcs_scm;
+
+import java.util.Calendar;
+import java.util.Map;
+
+/**
+ * Test cases for PvcsRevisionState.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsRevisionState extends BaseTest
+{
+    // {{{ testLookup
+    /**
+     * Tests lookups across several front-coded blocks.
+     */
+    public void testLookup() {
+        PvcsRevisionState.Builder builder = new PvcsRevisionState.Builder(null);
+        for (int i = 0; i < 100; i++) {
+            builder.put("2008_10/MYORG-Java/aps/src/File" + i + ".java", "1." + i, null);
+        }
+
+        PvcsRevisionState state = builder.build();
+
+        assertEquals(100, state.size());
+        assertNull(state.getNewestCheckIn());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("1." + i, state.getRevision("2008_10/MYORG-Java/aps/src/File" + i + ".java"));
+        }
+
+        assertNull(state.getRevision("2008_10/MYORG-Java/aps/src/File100.java"));
+        assertNull(state.getRevision("2008_10/MYORG-Java/aps/src/File"));
+        assertNull(state.getRevision("0"));
+        assertNull(state.getRevision("z"));
+    }
+    // }}}
+
+    // {{{ testUpdate
+    /**
+     * Tests that a new state starts from the previous one.
+     */
+    public void testUpdate() {
+        Calendar older = Calendar.getInstance();
+        older.set(2008, Calendar.SEPTEMBER, 24, 13, 48, 52);
+
+        Calendar newer = Calendar.getInstance();
+        newer.set(2008, Calendar.OCTOBER, 16, 9, 15, 0);
+
+        PvcsRevisionState first = new PvcsRevisionState.Builder(null)
+            .put("2008_10/MYORG-Java/aps/.classpath", "1.5.6.0.1.0", older)
+            .put("2008_10/MYORG-Java/aps/.project", "1.2.5.1.1.0.1.0", older)
+            .build();
+
+        PvcsRevisionState second = new PvcsRevisionState.Builder(first)
+            .put("2008_10/MYORG-Java/aps/.project", "1.2.5.1.1.0.1.1", newer)
+            .put("2008_10/MYORG-Java/pom.xml", "1.0", older)
+            .build();
+
+        assertEquals(older.getTimeInMillis(), first.getNewestCheckIn().getTimeInMillis());
+        assertEquals(newer.getTimeInMillis(), second.getNewestCheckIn().getTimeInMillis());
+
+        assertEquals("1.5.6.0.1.0", second.getRevision("2008_10/MYORG-Java/aps/.classpath"));
+        assertEquals("1.2.5.1.1.0.1.1", second.getRevision("2008_10/MYORG-Java/aps/.project"));
+        assertEquals("1.0", second.getRevision("2008_10/MYORG-Java/pom.xml"));
+
+        Map<String, String> map = second.toMap();
+        assertEquals(3, map.size());
+        assertEquals("2008_10/MYORG-Java/aps/.classpath", map.keySet().iterator().next());
+    }
+    // }}}
+}
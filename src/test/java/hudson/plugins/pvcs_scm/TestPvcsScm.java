@@ -0,0 +1,60 @@
+package hudson.plugins.pvcs_scm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Test cases for PvcsScm.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsScm extends BaseTest
+{
+    // {{{ testParseSubprojects
+    /**
+     * Tests that only direct subprojects of the module are returned, sorted.
+     */
+    public void testParseSubprojects() {
+        String output =
+            "/2008_10/MYORG-Java/web [Project]\r\n" +
+            "/2008_10/MYORG-Java/aps [Project]\r\n" +
+            "/2008_10/MYORG-Java/aps/src [Project]\r\n" +
+            "/2008_10/MYORG-Java\r\n" +
+            "/2008_10/Other\r\n" +
+            "\r\n";
+
+        assertEquals(Arrays.asList("/2008_10/MYORG-Java/aps", "/2008_10/MYORG-Java/web"),
+                     PvcsScm.parseSubprojects(output, "/2008_10/MYORG-Java"));
+    }
+    // }}}
+
+    // {{{ testGetEntity
+    /**
+     * Changelog file names become project paths without the prefix fudge.
+     */
+    public void testGetEntity() {
+        assertEquals("/MYORG-Java/pom.xml", PvcsScm.getEntity("2008_10/MYORG-Java/pom.xml", "2008_10/"));
+        assertEquals("/MYORG-Java/pom.xml", PvcsScm.getEntity("MYORG-Java/pom.xml", null));
+        assertEquals("/MYORG-Java/pom.xml", PvcsScm.getEntity("MYORG-Java/pom.xml", "2008_10/"));
+    }
+    // }}}
+
+    // {{{ testLabelMoveInvalidatesManifest
+    /**
+     * A manifest written before the followed label moved does not match
+     * afterwards, even though the rest of the configuration is the same.
+     */
+    public void testLabelMoveInvalidatesManifest() throws Exception {
+        String before = PvcsScm.getWorkspaceConfig("//repository", "/MYORG-Java", "REL10", "12:00ff");
+        String after = PvcsScm.getWorkspaceConfig("//repository", "/MYORG-Java", "REL10", "12:01ff");
+
+        PvcsWorkspaceManifest manifest =
+            PvcsWorkspaceManifest.parse(new PvcsWorkspaceManifest(before, "1", new HashMap<String, String>())
+                                        .toString());
+
+        assertTrue(manifest.matches(before, "1"));
+        assertFalse(manifest.matches(after, "1"));
+        assertFalse(manifest.matches(PvcsScm.getWorkspaceConfig("//repository", "/MYORG-Java", "REL10", null), "1"));
+    }
+    // }}}
+}
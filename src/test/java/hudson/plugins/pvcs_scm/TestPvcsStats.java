@@ -0,0 +1,60 @@
+package hudson.plugins.pvcs_scm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * Test cases for the pcli call statistics.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsStats extends BaseTest
+{
+    // {{{ testMeter
+    public void testMeter() throws Exception {
+        PvcsCallStats call = new PvcsCallStats("vlog");
+        assertEquals(-1, call.getFirstByteMillis());
+
+        InputStream in = call.meter(new ByteArrayInputStream("one\ntwo\nthree".getBytes("US-ASCII")));
+        assertEquals('o', in.read());
+        while (in.read(new byte[4]) >= 0) {
+            // drain
+        }
+
+        call.finish(0);
+
+        assertEquals(13, call.getBytes());
+        assertEquals(2, call.getLines());
+        assertTrue(call.getFirstByteMillis() >= 0);
+        assertTrue(call.getWallMillis() >= call.getFirstByteMillis());
+    }
+    // }}}
+
+    // {{{ testRecord
+    public void testRecord() throws Exception {
+        long before = PvcsStats.INSTANCE.getGetCalls();
+
+        PvcsJobStats job = PvcsStats.INSTANCE.forJob("TestPvcsStats");
+        assertSame(job, PvcsStats.INSTANCE.forJob("TestPvcsStats"));
+
+        for (int i = 0; i < 60; i++) {
+            PvcsCallStats call = new PvcsCallStats("get");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            call.meter(out).write("//archive/a.java_v -> a.java\n//archive/b.java_v -> b.java\n".getBytes("US-ASCII"));
+            call.addFiles(PvcsScm.countWorkfiles(out.toString()));
+            call.finish(0);
+
+            PvcsStats.INSTANCE.record(job, call);
+        }
+
+        assertEquals(before + 60, PvcsStats.INSTANCE.getGetCalls());
+        assertEquals(60, job.getTotalCalls());
+        assertEquals(120, job.getTotalFiles());
+        assertEquals(50, job.getCalls().size());
+        assertTrue(PvcsStats.INSTANCE.getGetWallMillisMax() >= 0);
+        assertTrue(PvcsStats.INSTANCE.getBusiestJobs().length > 0);
+    }
+    // }}}
+}
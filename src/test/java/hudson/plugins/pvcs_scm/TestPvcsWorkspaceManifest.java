@@ -0,0 +1,136 @@
+package hudson.plugins.pvcs_scm;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Test cases for PvcsWorkspaceManifest.
+ *
+ * @author Brian Lalor &lt;blalor@bravo5.org&gt;
+ */
+public class TestPvcsWorkspaceManifest extends BaseTest
+{
+    // {{{ testRoundTrip
+    /**
+     * Tests that a written manifest reads back unchanged.
+     */
+    public void testRoundTrip() throws Exception {
+        Map<String, String> revisions = new HashMap<String, String>();
+        revisions.put("2008_10/MYORG-Java/pom.xml", "1.1");
+        revisions.put("2008_10/MYORG-Java/aps/.project", "1.2.5.1.1.0.1.0");
+
+        PvcsWorkspaceManifest manifest =
+            new PvcsWorkspaceManifest("//repository|/2008_10/MYORG-Java|", "2008-10-16_09-15-00", revisions);
+
+        PvcsWorkspaceManifest read = PvcsWorkspaceManifest.parse(manifest.toString());
+
+        assertNotNull(read);
+        assertTrue(read.matches("//repository|/2008_10/MYORG-Java|", "2008-10-16_09-15-00"));
+        assertFalse(read.matches("//repository|/2008_10/MYORG-Java|", "2008-10-17_09-15-00"));
+        assertEquals(revisions, read.getRevisions());
+    }
+    // }}}
+
+    // {{{ testFiles
+    /**
+     * Tests that the recorded workfiles read back unchanged, with and
+     * without digests.
+     */
+    public void testFiles() throws Exception {
+        Map<String, PvcsWorkspaceManifest.FileInfo> files = new HashMap<String, PvcsWorkspaceManifest.FileInfo>();
+        files.put("MYORG-Java/pom.xml", new PvcsWorkspaceManifest.FileInfo(1234, 1224163498000L, null));
+        files.put("MYORG-Java/my file.txt",
+                  new PvcsWorkspaceManifest.FileInfo(0, 1224163499000L, "d41d8cd98f00b204e9800998ecf8427e"));
+
+        PvcsWorkspaceManifest manifest =
+            new PvcsWorkspaceManifest("//repository|/2008_10/MYORG-Java|", "2008-10-16_09-15-00",
+                                      new HashMap<String, String>(), files);
+
+        PvcsWorkspaceManifest read = PvcsWorkspaceManifest.parse(manifest.toString());
+
+        assertNotNull(read);
+        assertEquals(files.keySet(), read.getFiles().keySet());
+
+        PvcsWorkspaceManifest.FileInfo pom = read.getFiles().get("MYORG-Java/pom.xml");
+        assertEquals(1234, pom.size);
+        assertEquals(1224163498000L, pom.modified);
+        assertNull(pom.hash);
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", read.getFiles().get("MYORG-Java/my file.txt").hash);
+
+        assertNull(PvcsWorkspaceManifest.parse(manifest.toString().replace("#file 1234\t", "#file big\t")));
+    }
+    // }}}
+
+    // {{{ testReconcile
+    /**
+     * Tests that strays and modified workfiles are deleted and reported,
+     * and everything else is left alone.
+     */
+    public void testReconcile() throws Exception {
+        File root = File.createTempFile("pvcs", "ws");
+        root.delete();
+        root.mkdir();
+
+        try {
+            Map<String, PvcsWorkspaceManifest.FileInfo> files = new TreeMap<String, PvcsWorkspaceManifest.FileInfo>();
+            for (String path : new String[] { "a/keep.txt", "a/mod.txt", "a/missing.txt" }) {
+                File file = write(root, path, "fetched");
+                files.put(path, new PvcsWorkspaceManifest.FileInfo(file.length(), file.lastModified(), null));
+            }
+
+            new File(root, "a/missing.txt").delete();
+            write(root, "a/mod.txt", "fetched, then edited");
+            write(root, "a/stray.txt", "built");
+            write(root, "out/classes/Main.class", "built");
+            write(root, PvcsWorkspaceManifest.FILE_NAME, "");
+
+            PvcsWorkspaceManifest.Reconciliation result = PvcsWorkspaceManifest.reconcileDirectory(root, files);
+
+            assertEquals(Arrays.asList("a/missing.txt", "a/mod.txt"), result.stale);
+            assertEquals(2, result.strays);
+
+            assertTrue(new File(root, "a/keep.txt").isFile());
+            assertTrue(new File(root, PvcsWorkspaceManifest.FILE_NAME).isFile());
+            assertFalse(new File(root, "a/mod.txt").exists());
+            assertFalse(new File(root, "a/stray.txt").exists());
+            assertFalse(new File(root, "out").exists());
+        } finally {
+            Util.deleteRecursive(root);
+        }
+    }
+    // }}}
+
+    // {{{ write
+    private static File write(final File root, final String path, final String content) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+    // }}}
+
+    // {{{ testIncomplete
+    /**
+     * Tests that a manifest without its header is rejected.
+     */
+    public void testIncomplete() throws Exception {
+        assertNull(PvcsWorkspaceManifest.parse("1.1\t2008_10/MYORG-Java/pom.xml\n"));
+        assertNull(PvcsWorkspaceManifest.parse(""));
+    }
+    // }}}
+}